@@ -0,0 +1,98 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Writes synthetic mailevents files for benchmarks. The same seed, size and places <br>
+ * always give the same file, byte for byte, so runs on different machines and <br>
+ * different days time the same data. <br>
+ * Events are spread over 2012 to 2014, about a third are parcels, and the places <br>
+ * are skewed so a few routes carry most of the mail, as they do at the depots.
+ */
+public class EventLogGenerator {
+
+	/** Comment after the xml header marking a file as generated */
+	static final String MARK = "<!--generated ";
+
+	private final long seed;
+	private final String[] places;
+
+	/**
+	 * @param seed Seed of the random numbers
+	 * @param places Places to send mail from and to
+	 */
+	public EventLogGenerator(long seed, String[] places){
+		this.seed = seed;
+		this.places = places;
+	}
+
+	/**
+	 * Writes a file of the given number of events. Written as a stream, so files of <br>
+	 * millions of events don't need to fit in memory.
+	 *
+	 * @param file File to write
+	 * @param events Number of events
+	 * @throws IOException
+	 */
+	public void write(File file, int events) throws IOException{
+		Random r = new Random(seed);
+		EventSink out = EventSink.xml(file, MARK.substring(4) + mark(events));
+		try {
+			for (int i = 0; i < events; i++){
+				boolean parcel = r.nextInt(3) == 0;
+				int month = 1 + r.nextInt(12);
+				String day = (1 + r.nextInt(28)) + (month < 10 ? "/0" : "/") + month + "/" + (2012 + r.nextInt(3));
+				String to = place(r);
+				String from = place(r);
+				int priority = 1 + r.nextInt(4);
+				if (parcel)
+					out.event(day, to, from, "" + (1 + r.nextInt(30)), "" + (1 + r.nextInt(10)), priority);
+				else
+					out.event(day, to, from, null, null, priority);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param file File to check
+	 * @param events Number of events
+	 * @return true if the file was written by a generator with this seed and places <br>
+	 * 		   for this many events
+	 */
+	public boolean isGenerated(File file, int events) throws IOException{
+		return (MARK + mark(events)).equals(readMark(file));
+	}
+
+	/**
+	 * @return The generated mark at the top of the file, or null if it wasn't generated
+	 */
+	static String readMark(File file) throws IOException{
+		if (!file.exists()) return null;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.readLine();
+			String line = raf.readLine();
+			if (line == null || !line.startsWith(MARK)) return null;
+			return line.substring(0, line.length() - "-->".length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	private String mark(int events){
+		return "seed " + seed + " events " + events + " places " + places.length;
+	}
+
+	/**
+	 * Picks a place, the first places far more often than the last.
+	 */
+	private String place(Random r){
+		double u = r.nextDouble();
+		return places[(int)(u * u * places.length)];
+	}
+}
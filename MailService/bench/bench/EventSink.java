@@ -0,0 +1,107 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Where generated events are written. Every sink writes as a stream, so files <br>
+ * far larger than memory can be made.
+ */
+public abstract class EventSink {
+
+	protected final Writer out;
+
+	protected EventSink(File file) throws IOException{
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 16);
+	}
+
+	/**
+	 * Writes an event.
+	 *
+	 * @param day Day in format dd/mm/yyyy
+	 * @param to Destination
+	 * @param from Origin
+	 * @param weight Weight of a parcel, or null for mail
+	 * @param volume Volume of a parcel, or null for mail
+	 * @param priority Priority
+	 */
+	public abstract void event(String day, String to, String from, String weight, String volume, int priority) throws IOException;
+
+	/**
+	 * Finishes the file.
+	 */
+	public abstract void close() throws IOException;
+
+	/**
+	 * @param file File to write
+	 * @param comment Comment to put after the xml header, or null
+	 * @return Sink writing in the format of mailevents.xml
+	 */
+	public static EventSink xml(File file, final String comment) throws IOException{
+		return new EventSink(file){
+			{
+				out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+				if (comment != null) out.write("<!--" + comment + "-->\n");
+				out.write("<mailevents>\n");
+			}
+
+			public void event(String day, String to, String from, String weight, String volume, int priority) throws IOException{
+				boolean parcel = weight != null;
+				out.write(parcel ? "\t<parcel>\n" : "\t<mail>\n");
+				out.write("\t\t<day>" + day + "</day>\n");
+				out.write("\t\t<to>" + escape(to) + "</to>\n");
+				out.write("\t\t<from>" + escape(from) + "</from>\n");
+				if (parcel){
+					out.write("\t\t<weight>" + weight + "</weight>\n");
+					out.write("\t\t<volume>" + volume + "</volume>\n");
+				}
+				out.write("\t\t<priority>" + priority + "</priority>\n");
+				out.write(parcel ? "\t</parcel>\n" : "\t</mail>\n");
+			}
+
+			public void close() throws IOException{
+				try {
+					out.write("</mailevents>\n");
+				} finally {
+					out.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param file File to write
+	 * @return Sink writing CSV with a header line, as read by BulkImport
+	 */
+	public static EventSink csv(File file) throws IOException{
+		return new EventSink(file){
+			{
+				out.write("day,to,from,priority,weight,volume,type\n");
+			}
+
+			public void event(String day, String to, String from, String weight, String volume, int priority) throws IOException{
+				boolean parcel = weight != null;
+				out.write(day + "," + quote(to) + "," + quote(from) + "," + priority + ","
+						+ (parcel ? weight + "," + volume + ",parcel\n" : ",,mail\n"));
+			}
+
+			public void close() throws IOException{
+				out.close();
+			}
+		};
+	}
+
+	private static String escape(String s){
+		if (s.indexOf('&') < 0 && s.indexOf('<') < 0 && s.indexOf('>') < 0) return s;
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	private static String quote(String s){
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0) return s;
+		return '"' + s.replace("\"", "\"\"") + '"';
+	}
+}
@@ -0,0 +1,145 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small benchmark runner in the style of JMH, for a tree with no build tool to <br>
+ * pull JMH in with. Each benchmark is run for a number of warmup iterations, which <br>
+ * are thrown away, then for a number of measured iterations of a fixed length. <br>
+ * What each operation returns is folded into a sink, so the JIT can't drop the work.
+ *
+ * Options, given before any other arguments:
+ *
+ * -wi n   warmup iterations (default 3) <br>
+ * -i n    measured iterations (default 5) <br>
+ * -t ms   length of each iteration (default 1000) <br>
+ * -only s only run benchmarks whose name contains s
+ */
+public class Harness {
+
+	/**
+	 * One operation of a benchmark.
+	 */
+	public interface Op {
+		/**
+		 * @return Anything the operation worked out, so it isn't optimised away
+		 */
+		Object run() throws Exception;
+	}
+
+	/**
+	 * Result of a benchmark.
+	 */
+	public static class Result {
+		private final String name;
+		private final double[] opsPerSecond;
+
+		Result(String name, double[] opsPerSecond){
+			this.name = name;
+			this.opsPerSecond = opsPerSecond;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public double getMean(){
+			double sum = 0;
+			for (double d: opsPerSecond) sum += d;
+			return sum / opsPerSecond.length;
+		}
+
+		public double getDeviation(){
+			if (opsPerSecond.length < 2) return 0;
+			double mean = getMean(), sum = 0;
+			for (double d: opsPerSecond) sum += (d - mean) * (d - mean);
+			return Math.sqrt(sum / (opsPerSecond.length - 1));
+		}
+
+		public String toString(){
+			double mean = getMean();
+			return String.format("%-40s %14.3f +- %10.3f ops/s %14.3f us/op", name, mean, getDeviation(), 1e6 / mean);
+		}
+	}
+
+	private static volatile int sink;
+
+	private int warmups = 3;
+	private int iterations = 5;
+	private long iterationMillis = 1000;
+	private String only;
+	private final String[] rest;
+	private final List<Result> results = new ArrayList<Result>();
+
+	/**
+	 * @param args Command line. The options above are taken off the front
+	 */
+	public Harness(String[] args){
+		int i = 0;
+		for (; i + 1 < args.length && args[i].startsWith("-"); i += 2){
+			if (args[i].equals("-wi")) warmups = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-i")) iterations = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-t")) iterationMillis = Long.parseLong(args[i + 1]);
+			else if (args[i].equals("-only")) only = args[i + 1];
+			else throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		rest = new String[args.length - i];
+		System.arraycopy(args, i, rest, 0, rest.length);
+	}
+
+	/**
+	 * @return The command line arguments after the options
+	 */
+	public String[] getArgs(){
+		return rest;
+	}
+
+	/**
+	 * Runs a benchmark and prints its result.
+	 *
+	 * @param name Name to report it under
+	 * @param op Operation to time
+	 * @return The result, or null if it was left out by -only
+	 */
+	public Result run(String name, Op op) throws Exception{
+		if (only != null && !name.contains(only)) return null;
+		for (int i = 0; i < warmups; i++)
+			iteration(op);
+		double[] ops = new double[iterations];
+		for (int i = 0; i < iterations; i++)
+			ops[i] = iteration(op);
+		Result r = new Result(name, ops);
+		results.add(r);
+		System.out.println(r);
+		return r;
+	}
+
+	/**
+	 * Runs the operation until the iteration time is up. Slow operations are still <br>
+	 * run at least once.
+	 * @return Operations per second
+	 */
+	private double iteration(Op op) throws Exception{
+		long start = System.nanoTime();
+		long end = start + iterationMillis * 1000000L;
+		long count = 0;
+		long now;
+		int h = 0;
+		do {
+			Object o = op.run();
+			h ^= o == null ? 0 : o.hashCode();
+			count++;
+			now = System.nanoTime();
+		} while (now < end);
+		sink ^= h;
+		return count * 1e9 / (now - start);
+	}
+
+	/**
+	 * @return Results of every benchmark run so far
+	 */
+	public List<Result> getResults(){
+		return results;
+	}
+}
@@ -0,0 +1,205 @@
+package bench;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import file.EventJournal;
+import file.EventReader;
+import file.XMLWorker;
+import service.EpochDay;
+import service.Mail;
+import service.Parcel;
+
+/**
+ * Fires mail events at the persistence layer at a set rate, as the clerks at a <br>
+ * busy depot would, and reports how long each took to be saved. <br>
+ * Events are sent on a fixed timetable whether or not earlier ones have finished, <br>
+ * and each is timed from when it was meant to be sent. A stall therefore shows up <br>
+ * in the latency of every event held up behind it, not just the one which stalled.
+ *
+ * XMLWorker writes to the working directory, so this is run from a scratch <br>
+ * directory holding a copy of routes.xml, costevents.xml and countries.xml, i.e.
+ *
+ * java -cp ../MailService/bin bench.ReplayDriver -rate 2000 -events 100000
+ *
+ * Options: <br>
+ * -rate n          events a second (default 1000) <br>
+ * -events n        events to send (default 10000) <br>
+ * -seed n          seed of the WorkloadGenerator (default 1) <br>
+ * -file f          replay the events in an xml file instead of generating them <br>
+ * -sync s          NONE or ALWAYS (default ALWAYS) <br>
+ * -window us       group commit window (default 2000) <br>
+ * -max n           most events written at once (default 256)
+ */
+public class ReplayDriver {
+
+	/**
+	 * Where events come from.
+	 */
+	interface Source {
+		/** @return The next event, or null if there are no more */
+		Mail next() throws Exception;
+	}
+
+	/**
+	 * An event sent and the time it was meant to be sent at.
+	 */
+	private static class Sent {
+		final int index;
+		final long due;
+		final Future<Void> future;
+
+		Sent(int index, long due, Future<Void> future){
+			this.index = index;
+			this.due = due;
+			this.future = future;
+		}
+	}
+
+	private static final Sent END = new Sent(-1, 0, null);
+
+	public static void main(String[] args) throws Exception{
+		double rate = 1000;
+		int events = 10000;
+		long seed = 1;
+		String replay = null;
+		EventJournal.SyncPolicy sync = EventJournal.SyncPolicy.ALWAYS;
+		long window = 2000;
+		int max = 256;
+		for (int i = 0; i < args.length; i += 2){
+			if (i + 1 >= args.length) throw new IllegalArgumentException("No value for " + args[i]);
+			if (args[i].equals("-rate")) rate = Double.parseDouble(args[i + 1]);
+			else if (args[i].equals("-events")) events = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-seed")) seed = Long.parseLong(args[i + 1]);
+			else if (args[i].equals("-file")) replay = args[i + 1];
+			else if (args[i].equals("-sync")) sync = EventJournal.SyncPolicy.valueOf(args[i + 1].toUpperCase());
+			else if (args[i].equals("-window")) window = Long.parseLong(args[i + 1]);
+			else if (args[i].equals("-max")) max = Integer.parseInt(args[i + 1]);
+			else throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+
+		for (String needed: new String[]{"routes.xml", "costevents.xml", "countries.xml"}){
+			if (!new File(needed).exists()){
+				System.err.println("Run from a directory with a copy of routes.xml, costevents.xml and countries.xml");
+				System.exit(1);
+			}
+		}
+		File xml = new File("mailevents.xml");
+		if (xml.exists() && EventLogGenerator.readMark(xml) == null){
+			System.err.println(xml.getAbsolutePath() + " wasn't generated, refusing to add to it");
+			System.exit(1);
+		}
+		if (!xml.exists())
+			EventSink.xml(xml, "generated for replay").close();
+
+		Source source = replay == null ? generated(seed, events) : file(replay);
+		XMLWorker.setSyncPolicy(sync);
+		XMLWorker.setGroupCommit(window, max);
+		XMLWorker.getMailStore();
+
+		long[] latency = new long[events];
+		final LinkedBlockingQueue<Sent> sent = new LinkedBlockingQueue<Sent>();
+		Collector collector = new Collector(sent, latency);
+		collector.start();
+
+		// Pricing the first event loads the routes and prices, which isn't what is timed
+		Mail first = source.next();
+		if (first != null) first.getCost();
+
+		long interval = (long)(1e9 / rate);
+		long start = System.nanoTime();
+		long worstLag = 0;
+		int n = 0;
+		for (Mail m = first; m != null && n < events; m = source.next(), n++){
+			long due = start + n * interval;
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0){
+				if (wait > 200000) LockSupport.parkNanos(wait - 100000);
+				else Thread.yield();
+			}
+			worstLag = Math.max(worstLag, System.nanoTime() - due);
+			sent.add(new Sent(n, due, XMLWorker.submitMail(m)));
+		}
+		long sending = System.nanoTime() - start;
+		sent.add(END);
+		collector.join();
+		long elapsed = System.nanoTime() - start;
+
+		long[] sorted = Arrays.copyOf(latency, n);
+		Arrays.sort(sorted);
+		System.out.printf("Sent %d events in %.2f s (%.0f/s asked for, %.0f/s sent, %.0f/s saved)%n",
+				n, sending / 1e9, rate, n * 1e9 / sending, n * 1e9 / elapsed);
+		System.out.printf("Latency ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+				ms(sorted, 0.5), ms(sorted, 0.9), ms(sorted, 0.99), ms(sorted, 0.999), n == 0 ? 0 : sorted[n - 1] / 1e6);
+		System.out.printf("Failed %d, sender fell behind by up to %.2f ms%n", collector.failed, worstLag / 1e6);
+		System.exit(collector.failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Waits for each event to be saved, in the order they were sent, which is the <br>
+	 * order they are written in.
+	 */
+	private static class Collector extends Thread {
+		private final LinkedBlockingQueue<Sent> sent;
+		private final long[] latency;
+		int failed;
+
+		Collector(LinkedBlockingQueue<Sent> sent, long[] latency){
+			super("replay-collector");
+			this.sent = sent;
+			this.latency = latency;
+		}
+
+		public void run(){
+			try {
+				for (Sent s = sent.take(); s != END; s = sent.take()){
+					try {
+						s.future.get();
+					} catch (ExecutionException e) {
+						if (failed++ == 0) e.getCause().printStackTrace();
+					}
+					latency[s.index] = System.nanoTime() - s.due;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static double ms(long[] sorted, double quantile){
+		if (sorted.length == 0) return 0;
+		return sorted[Math.min(sorted.length - 1, (int)Math.ceil(quantile * sorted.length) - 1)] / 1e6;
+	}
+
+	private static Source generated(long seed, int events){
+		final WorkloadGenerator g = new WorkloadGenerator(seed, XMLWorker.loadCountries(),
+				EpochDay.today(), 1, events);
+		return new Source(){
+			public Mail next(){
+				WorkloadGenerator.Event e = g.next();
+				return e == null ? null : e.toMail();
+			}
+		};
+	}
+
+	private static Source file(String filename) throws Exception{
+		String name = filename.endsWith(".xml") ? filename.substring(0, filename.length() - 4) : filename;
+		final EventReader r = new EventReader(name, new String[]{"mail", "parcel"},
+				new String[]{"day", "to", "from", "priority", "weight", "volume"});
+		return new Source(){
+			public Mail next() throws Exception{
+				if (!r.next()){
+					r.close();
+					return null;
+				}
+				if (r.getKeyTag().equals("parcel"))
+					return new Parcel(r.getValue(0), r.getValue(1), r.getValue(2), r.getValue(4), r.getValue(5), r.getValue(3));
+				return new Mail(r.getValue(0), r.getValue(1), r.getValue(2), r.getValue(3));
+			}
+		};
+	}
+}
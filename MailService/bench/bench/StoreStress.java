@@ -0,0 +1,169 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import file.EventJournal;
+import file.EventStore;
+import file.XMLWorker;
+import metrics.Histogram;
+import metrics.Metrics;
+import service.Mail;
+import service.Parcel;
+
+/**
+ * Checks no events are lost or seen half added when many threads add and query <br>
+ * mail at once. <br>
+ * Writer threads each add a run of events tagged with the writer and a sequence <br>
+ * number, some one at a time through the group commit and some in batches, while <br>
+ * reader threads query the store and check every query sees a whole number of each <br>
+ * batch and never sees the store shrink. At the end every tagged event must be in the store, and in the xml <br>
+ * when it is read again from scratch, exactly once. <br>
+ * The readers' queries are timed alongside the appends, so it also shows whether <br>
+ * queries wait on events being written: with fsync on, a query which waited for <br>
+ * an append would take at least as long as one.
+ *
+ * It adds events to mailevents.xml in the working directory, so run it in a copy of <br>
+ * the data folder: java bench.StoreStress [writers] [events per writer] [readers] [fsync]
+ */
+public class StoreStress {
+
+	private static final String DAY = "01/01/2000";
+	private static final int BATCH = 10;
+
+	public static void main(String[] args) throws Exception{
+		final int writers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		final int events = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		final int readers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		boolean fsync = args.length > 3 && "fsync".equals(args[3]);
+		// Tags the events of this run apart from those of earlier runs
+		final String tag = "Stress " + Long.toString(System.currentTimeMillis(), 36) + " Writer ";
+
+		XMLWorker.setSyncPolicy(fsync ? EventJournal.SyncPolicy.ALWAYS : EventJournal.SyncPolicy.NONE);
+		Metrics.setEnabled(true);
+		final Histogram reads = Metrics.histogram("stress.read");
+		Histogram writes = Metrics.histogram("journal.write");
+		final EventStore store = XMLWorker.getMailStore();
+		final int before = store.size();
+		final int beforeDay = XMLWorker.getMailBetweenDates(DAY, DAY).size();
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		final AtomicInteger errors = new AtomicInteger();
+		final AtomicInteger queries = new AtomicInteger();
+		reads.reset();
+		writes.reset();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int w = 0; w < writers; w++){
+			final String from = tag + w;
+			final boolean batched = w % 2 == 1;
+			threads.add(new Thread("stress-writer-" + w){
+				public void run(){
+					await(start);
+					try {
+						List<Mail> batch = new ArrayList<Mail>();
+						for (int i = 0; i < events; i++){
+							Mail m = !batched && i % 3 == 0 ? new Parcel(DAY, "Stress " + i, from, "1", "1", 1) : new Mail(DAY, "Stress " + i, from, 1);
+							if (!batched){
+								XMLWorker.addMail(m);
+								continue;
+							}
+							batch.add(m);
+							if (batch.size() == BATCH || i == events - 1){
+								XMLWorker.addMail(batch);
+								batch.clear();
+							}
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+						errors.incrementAndGet();
+					}
+				}
+			});
+		}
+		for (int r = 0; r < readers; r++){
+			final int reader = r;
+			threads.add(new Thread("stress-reader-" + r){
+				public void run(){
+					await(start);
+					int last = 0;
+					while (writing.get()){
+						// Batches of odd writers are added at once, so a query sees all or none
+						String from = tag + (2 * (reader % Math.max(1, writers / 2)) + 1);
+						// Batched writers only add mail, so one query sees every event they added
+						long began = Metrics.start();
+						int seen = XMLWorker.getMail(new String[]{null, null, from, null}).size();
+						reads.stop(began);
+						if (seen % BATCH != 0 && seen != events){
+							System.out.println("Saw part of a batch: " + seen + " events from " + from);
+							errors.incrementAndGet();
+						}
+						int now = XMLWorker.getMailBetweenDates(DAY, DAY).size() - beforeDay;
+						if (now < last){
+							System.out.println("Store went back from " + last + " to " + now + " events");
+							errors.incrementAndGet();
+						}
+						last = now;
+						queries.incrementAndGet();
+					}
+				}
+			});
+		}
+
+		long t = System.currentTimeMillis();
+		for (Thread th: threads) th.start();
+		start.countDown();
+		for (int i = 0; i < writers; i++) threads.get(i).join();
+		writing.set(false);
+		for (Thread th: threads) th.join();
+		long ms = System.currentTimeMillis() - t;
+
+		int expected = writers * events;
+		int added = XMLWorker.getMailStore().size() - before;
+		check("store", XMLWorker.getMailStore(), tag, writers, events, errors);
+		EventStore reread = EventStore.loadXML("mailevents");
+		check("xml", reread, tag, writers, events, errors);
+
+		System.out.println(expected + " events added by " + writers + " writers in " + ms + " ms, "
+				+ queries.get() + " queries by " + readers + " readers");
+		System.out.println("Store has " + added + " new events, xml has " + (reread.size() - before));
+		System.out.println(reads);
+		System.out.println(writes);
+		System.out.println(errors.get() == 0 ? "PASSED" : "FAILED with " + errors.get() + " errors");
+		if (errors.get() != 0) System.exit(1);
+	}
+
+	/**
+	 * Checks every tagged event is in the store exactly once.
+	 */
+	private static void check(String name, EventStore store, String tag, int writers, int events, AtomicInteger errors){
+		for (int w = 0; w < writers; w++){
+			String from = tag + w;
+			List<Mail> found = new ArrayList<Mail>(store.getMail(new String[]{null, null, from, null}));
+			found.addAll(store.getParcels(new String[]{null, null, from, null, null, null}));
+			HashSet<String> seen = new HashSet<String>();
+			for (Mail m: found)
+				if (!seen.add(m.getToAddress())){
+					System.out.println(name + ": " + m.getToAddress() + " from " + from + " is in twice");
+					errors.incrementAndGet();
+				}
+			if (seen.size() != events){
+				System.out.println(name + ": " + from + " has " + seen.size() + " of " + events + " events");
+				errors.incrementAndGet();
+			}
+		}
+	}
+
+	private static void await(CountDownLatch latch){
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
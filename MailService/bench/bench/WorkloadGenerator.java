@@ -0,0 +1,234 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import file.XMLWorker;
+import service.EpochDay;
+import service.Mail;
+import service.Parcel;
+
+/**
+ * Makes realistic KPS traffic for load and scale testing. <br>
+ * Mail is sent from New Zealand depots, most of it within New Zealand and the rest <br>
+ * to the countries in countries.xml. A few destinations get most of the mail (a <br>
+ * Zipf distribution over the places in a shuffled order), Auckland sends the most, <br>
+ * and the volume of mail follows the year: busy in the weeks before Christmas, <br>
+ * quiet in January and on Sundays. <br>
+ * Events come out in order of day, and the same seed always gives the same events.
+ *
+ * From the command line:
+ *
+ * java bench.WorkloadGenerator [-seed n] [-events n] [-start dd/mm/yyyy] [-days n] <br>
+ * 		[-format xml|csv] file
+ *
+ * CSV files can be loaded with file.BulkImport.
+ */
+public class WorkloadGenerator {
+
+	/** Depots mail is sent from, busiest first */
+	static final String[] DEPOTS = new String[]{"Auckland", "Wellington", "Christchurch", "Hamilton",
+		"Tauranga", "Dunedin", "Palmerston North", "Napier", "Nelson", "Rotorua", "New Plymouth",
+		"Whangarei", "Invercargill", "Whanganui", "Gisborne", "Eketahuna", "Clive", "Onehunga"};
+
+	/** Share of the mail which stays in New Zealand */
+	static final double DOMESTIC = 0.6;
+	/** Share of the events which are parcels */
+	static final double PARCELS = 0.35;
+	/** Exponent of the Zipf distributions. The bigger it is, the more skewed */
+	static final double SKEW = 1.1;
+
+	/**
+	 * One generated event.
+	 */
+	public static class Event {
+		String day;
+		int epochDay;
+		String to;
+		String from;
+		/** Null for mail */
+		String weight;
+		String volume;
+		int priority;
+
+		/**
+		 * @return The event as a Mail or Parcel
+		 */
+		public Mail toMail(){
+			return weight == null ? new Mail(day, to, from, priority) : new Parcel(day, to, from, weight, volume, priority);
+		}
+	}
+
+	private final Random random;
+	private final String[] countries;
+	private final double[] countryWeights;
+	private final double[] depotWeights;
+	private final int start;
+	private final int days;
+	private final long events;
+
+	private int day;
+	private long dayEvents;
+	private long made;
+	private double daysShare;
+	private final double totalShare;
+
+	/**
+	 * @param seed Seed of the random numbers
+	 * @param countries Countries to send international mail to
+	 * @param start First day, as days since 1/01/1970
+	 * @param days Number of days to spread the events over
+	 * @param events Number of events to make
+	 */
+	public WorkloadGenerator(long seed, List<String> countries, int start, int days, long events){
+		this.random = new Random(seed);
+		ArrayList<String> shuffled = new ArrayList<String>();
+		for (String c: countries)
+			if (!c.trim().equals("New Zealand")) shuffled.add(c.trim());
+		// So the busiest countries aren't simply the first alphabetically
+		Collections.shuffle(shuffled, new Random(seed));
+		if (shuffled.isEmpty()) throw new IllegalArgumentException("No countries to send mail to");
+		this.countries = shuffled.toArray(new String[shuffled.size()]);
+		this.countryWeights = zipf(this.countries.length);
+		this.depotWeights = zipf(DEPOTS.length);
+		this.start = start;
+		this.days = days;
+		this.events = events;
+
+		double total = 0;
+		for (int d = 0; d < days; d++) total += season(start + d);
+		this.totalShare = total;
+		this.day = -1;
+	}
+
+	/**
+	 * @return The next event, or null once they have all been made
+	 */
+	public Event next(){
+		if (made >= events) return null;
+		// Move on to the next day with events still to make. Rounding the running
+		// total keeps the count exact over the whole run
+		while (dayEvents == 0){
+			day++;
+			daysShare += season(start + day);
+			long upTo = day == days - 1 ? events : Math.round(events * daysShare / totalShare);
+			dayEvents = upTo - made;
+		}
+		dayEvents--;
+		made++;
+
+		Event e = new Event();
+		e.epochDay = start + day;
+		e.day = EpochDay.format(e.epochDay);
+		e.from = DEPOTS[pick(depotWeights)];
+		boolean domestic = random.nextDouble() < DOMESTIC;
+		e.to = domestic ? DEPOTS[pick(depotWeights)] : countries[pick(countryWeights)];
+		// Domestic Air 2 or Domestic Land 4, International Air 1 or International Sea 3
+		boolean air = random.nextDouble() < (domestic ? 0.3 : 0.55);
+		e.priority = domestic ? (air ? 2 : 4) : (air ? 1 : 3);
+		if (random.nextDouble() < PARCELS){
+			// Log normal weights: most parcels are around a kilo, a few are very heavy
+			double kg = Math.min(30, Math.max(0.1, Math.exp(0.3 + 0.9 * random.nextGaussian())));
+			// Heavier parcels are bigger, but not in proportion
+			double litres = Math.max(0.5, kg * (2 + 6 * random.nextDouble()));
+			e.weight = round(kg);
+			e.volume = round(litres);
+		}
+		return e;
+	}
+
+	/**
+	 * Writes every event to a sink.
+	 * @return Number of events written
+	 */
+	public long writeTo(EventSink sink) throws IOException{
+		long n = 0;
+		for (Event e = next(); e != null; e = next(), n++)
+			sink.event(e.day, e.to, e.from, e.weight, e.volume, e.priority);
+		return n;
+	}
+
+	/**
+	 * How busy a day is compared to an ordinary weekday.
+	 */
+	static double season(int epochDay){
+		int month = EpochDay.monthOf(epochDay) % 12 + 1;
+		int dayOfMonth = epochDay - EpochDay.startOfMonth(EpochDay.monthOf(epochDay)) + 1;
+		// 1/01/1970 was a Thursday
+		int weekday = ((epochDay % 7) + 7 + 3) % 7;
+		double w = 1;
+		if (month == 12 && dayOfMonth <= 24) w = 2.5;
+		else if (month == 11 && dayOfMonth > 15) w = 1.6;
+		else if (month == 1) w = 0.6;
+		// Mothers' day and end of financial year
+		else if (month == 5 && dayOfMonth < 12) w = 1.3;
+		else if (month == 3 && dayOfMonth > 20) w = 1.2;
+		if (weekday == 6) w *= 0.1;
+		else if (weekday == 5) w *= 0.4;
+		return w;
+	}
+
+	/**
+	 * @return Running totals of Zipf weights for n places
+	 */
+	private static double[] zipf(int n){
+		double[] cumulative = new double[n];
+		double sum = 0;
+		for (int i = 0; i < n; i++){
+			sum += 1 / Math.pow(i + 1, SKEW);
+			cumulative[i] = sum;
+		}
+		return cumulative;
+	}
+
+	private int pick(double[] cumulative){
+		double u = random.nextDouble() * cumulative[cumulative.length - 1];
+		int i = Arrays.binarySearch(cumulative, u);
+		return i >= 0 ? i : Math.min(-i - 1, cumulative.length - 1);
+	}
+
+	private static String round(double d){
+		return Double.toString(Math.round(d * 10) / 10.0);
+	}
+
+	public static void main(String[] args) throws IOException{
+		long seed = 1;
+		long events = 1000000;
+		int start = EpochDay.parse("01/01/2013");
+		int days = 365;
+		String format = "xml";
+		int i = 0;
+		for (; i + 1 < args.length && args[i].startsWith("-"); i += 2){
+			if (args[i].equals("-seed")) seed = Long.parseLong(args[i + 1]);
+			else if (args[i].equals("-events")) events = Long.parseLong(args[i + 1]);
+			else if (args[i].equals("-start")) start = EpochDay.parse(args[i + 1]);
+			else if (args[i].equals("-days")) days = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-format")) format = args[i + 1];
+			else throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		if (i >= args.length || start == EpochDay.INVALID || days < 1){
+			System.err.println("Usage: java bench.WorkloadGenerator [-seed n] [-events n] [-start dd/mm/yyyy] [-days n] [-format xml|csv] file");
+			System.exit(1);
+		}
+
+		if (!new File("countries.xml").exists()){
+			System.err.println("Run from a directory with a copy of countries.xml");
+			System.exit(1);
+		}
+		File file = new File(args[i]);
+		EventSink sink = format.equals("csv") ? EventSink.csv(file) : EventSink.xml(file, null);
+		long t = System.nanoTime();
+		long n;
+		try {
+			n = new WorkloadGenerator(seed, XMLWorker.loadCountries(), start, days, events).writeTo(sink);
+		} finally {
+			sink.close();
+		}
+		System.out.printf("Wrote %d events to %s in %.1f s%n", n, file, (System.nanoTime() - t) / 1e9);
+	}
+}
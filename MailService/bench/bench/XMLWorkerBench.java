@@ -0,0 +1,167 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+import file.EventJournal;
+import file.EventSnapshot;
+import file.XMLWorker;
+import service.Cost;
+import service.Mail;
+import service.Parcel;
+
+/**
+ * Benchmarks of reading, filtering, adding and pricing mail through XMLWorker, <br>
+ * over a generated mailevents.xml of a given size.
+ *
+ * XMLWorker reads the files in the working directory, so this is run from a <br>
+ * scratch directory holding a copy of routes.xml and costevents.xml, i.e.
+ *
+ * java -cp ../MailService/bin bench.XMLWorkerBench -i 5 100000 42
+ *
+ * for 100,000 events made with seed 42. The mailevents.xml there is generated the <br>
+ * first time and reused while the size and seed stay the same. It refuses to touch <br>
+ * a mailevents.xml it didn't generate, so it can't be run over real data. <br>
+ * The addMail benchmarks run last, and the file is put back as it was after them.
+ */
+public class XMLWorkerBench {
+
+	public static void main(String[] args) throws Exception{
+		Harness h = new Harness(args);
+		String[] rest = h.getArgs();
+		int events = rest.length > 0 ? Integer.parseInt(rest[0]) : 100000;
+		long seed = rest.length > 1 ? Long.parseLong(rest[1]) : 42;
+
+		if (!new File("routes.xml").exists() || !new File("costevents.xml").exists()){
+			System.err.println("Run from a directory with a copy of routes.xml and costevents.xml");
+			System.exit(1);
+		}
+		File xml = new File("mailevents.xml");
+		if (xml.exists() && EventLogGenerator.readMark(xml) == null){
+			System.err.println(xml.getAbsolutePath() + " wasn't generated, refusing to overwrite it");
+			System.exit(1);
+		}
+
+		final String[] places = places();
+		EventLogGenerator generator = new EventLogGenerator(seed, places);
+		if (!generator.isGenerated(xml, events)){
+			long start = System.nanoTime();
+			generator.write(xml, events);
+			// Anything kept next to the old file is now wrong
+			new File("mailevents.wal").delete();
+			EventSnapshot.deleteAll("mailevents");
+			new File("mailevents.figures").delete();
+			System.out.printf("Generated %d events in %.1f s%n", events, (System.nanoTime() - start) / 1e9);
+		}
+
+		long start = System.nanoTime();
+		XMLWorker.getMailStore();
+		System.out.printf("Loaded in %.1f s%n", (System.nanoTime() - start) / 1e9);
+
+		h.run("getMail", new Harness.Op(){
+			public Object run(){ return XMLWorker.getMail(new String[]{null, null, null, null}); }
+		});
+		h.run("getMail(to)", new Harness.Op(){
+			public Object run(){ return XMLWorker.getMail(new String[]{null, places[0], null, null}); }
+		});
+		h.run("getMail(to, from, priority)", new Harness.Op(){
+			public Object run(){ return XMLWorker.getMail(new String[]{null, places[0], places[1], "1"}); }
+		});
+		h.run("getParcels", new Harness.Op(){
+			public Object run(){ return XMLWorker.getParcels(new String[]{null, null, null, null, null, null}); }
+		});
+		h.run("getParcels(to)", new Harness.Op(){
+			public Object run(){ return XMLWorker.getParcels(new String[]{null, places[0], null, null, null, null}); }
+		});
+		h.run("getMailBetweenDates(month)", new Harness.Op(){
+			public Object run(){ return XMLWorker.getMailBetweenDates("01/03/2013", "31/03/2013"); }
+		});
+		final ArrayList<Mail> all = XMLWorker.getMail(new String[]{null, null, null, null});
+		h.run("getMailBetweenDates(list, month)", new Harness.Op(){
+			public Object run(){ return XMLWorker.getMailBetweenDates(all, "01/03/2013", "31/03/2013"); }
+		});
+
+		final String[] days = new String[1024];
+		for (int i = 0; i < days.length; i++)
+			days[i] = (1 + i % 28) + "/" + (1 + i % 12) + "/" + (2012 + i % 3);
+		h.run("parseDate", new Harness.Op(){
+			int i;
+			public Object run(){ return XMLWorker.parseDate(days[i++ & 1023]); }
+		});
+
+		final ArrayList<Mail> sample = new ArrayList<Mail>();
+		sample.addAll(all.subList(0, Math.min(512, all.size())));
+		ArrayList<Parcel> parcels = XMLWorker.getParcels(new String[]{null, null, null, null, null, null});
+		sample.addAll(parcels.subList(0, Math.min(512, parcels.size())));
+		if (!sample.isEmpty()){
+			h.run("Cost.getPrice", new Harness.Op(){
+				int i;
+				public Object run(){
+					Mail m = sample.get(i++ % sample.size());
+					return m instanceof Parcel ? new Cost((Parcel)m).getPrice() : new Cost(m).getPrice();
+				}
+			});
+		}
+
+		byte[] tail = tail(xml);
+		long length = xml.length();
+		try {
+			for (final EventJournal.SyncPolicy policy: EventJournal.SyncPolicy.values()){
+				XMLWorker.setSyncPolicy(policy);
+				h.run("addMail(" + policy + ")", new Harness.Op(){
+					int i;
+					public Object run(){
+						i++;
+						XMLWorker.addMail(new Mail("15/06/2013", places[i % places.length], places[0], 1 + i % 4));
+						return null;
+					}
+				});
+			}
+		} finally {
+			XMLWorker.setSyncPolicy(EventJournal.SyncPolicy.ALWAYS);
+			XMLWorker.saveSnapshot();
+			restore(xml, length, tail);
+		}
+	}
+
+	/**
+	 * @return Every depot in routes.xml, in the order they are first seen
+	 */
+	private static String[] places() throws Exception{
+		LinkedHashSet<String> found = new LinkedHashSet<String>();
+		found.addAll(XMLWorker.readTag("routes", "from"));
+		found.addAll(XMLWorker.readTag("routes", "to"));
+		return found.toArray(new String[found.size()]);
+	}
+
+	private static byte[] tail(File file) throws IOException{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] tail = new byte[(int)Math.min(64, raf.length())];
+			raf.seek(raf.length() - tail.length);
+			raf.readFully(tail);
+			return tail;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Cuts off the events added by the benchmarks. Appends only ever overwrite the <br>
+	 * closing tag, so putting back the old tail gives the file as it was.
+	 */
+	private static void restore(File file, long length, byte[] tail) throws IOException{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(length - tail.length);
+			raf.write(tail);
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+		new File("mailevents.wal").delete();
+	}
+}
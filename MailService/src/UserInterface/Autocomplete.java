@@ -0,0 +1,201 @@
+package UserInterface;
+
+import java.awt.event.*;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.concurrent.Callable;
+
+import javax.swing.*;
+import javax.swing.event.*;
+
+import file.AsyncWorker;
+import service.Gazetteer;
+
+/**
+ * Type-ahead for a text field, suggesting places from the Gazetteer under it as <br>
+ * the clerk types. The lookup waits until typing pauses and is done off the event <br>
+ * thread, so typing never waits on it, and suggestions for text which has since <br>
+ * changed are thrown away. <br>
+ * Up and down move through the suggestions, enter or a click takes one and escape <br>
+ * hides them.
+ *
+ * An example will illustrate how it is used.
+ *
+ * Autocomplete.attach(cityField, EnumSet.of(Gazetteer.Kind.DEPOT));
+ */
+public class Autocomplete implements DocumentListener, ActionListener {
+
+	/** Milliseconds typing must pause for before looking up */
+	static final int DELAY = 120;
+	/** Most suggestions shown */
+	static final int LIMIT = 8;
+
+	private final JTextField field;
+	private final EnumSet<Gazetteer.Kind> kinds;
+	private final Timer timer;
+	private final JPopupMenu popup = new JPopupMenu();
+	private final DefaultListModel suggestions = new DefaultListModel();
+	private final JList list = new JList(suggestions);
+
+	/** Number of the latest lookup. Results of any other are out of date */
+	private int lookups;
+	/** Set while a suggestion is being put in the field */
+	private boolean choosing;
+
+	private Autocomplete(JTextField field, EnumSet<Gazetteer.Kind> kinds){
+		this.field = field;
+		this.kinds = kinds;
+		timer = new Timer(DELAY, this);
+		timer.setRepeats(false);
+
+		list.setFocusable(false);
+		list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		list.addMouseListener(new MouseAdapter(){
+			public void mouseClicked(MouseEvent e){
+				choose();
+			}
+		});
+		popup.setFocusable(false);
+		popup.add(new JScrollPane(list));
+	}
+
+	/**
+	 * Gives a field type-ahead.
+	 *
+	 * @param field Field to suggest places for
+	 * @param kinds Kinds of place to suggest
+	 * @return The type-ahead of the field
+	 */
+	public static Autocomplete attach(JTextField field, EnumSet<Gazetteer.Kind> kinds){
+		final Autocomplete a = new Autocomplete(field, kinds);
+		field.getDocument().addDocumentListener(a);
+		a.bindKeys();
+		field.addFocusListener(new FocusAdapter(){
+			public void focusLost(FocusEvent e){
+				a.hide();
+			}
+		});
+		return a;
+	}
+
+	private void bindKeys(){
+		InputMap keys = field.getInputMap(JComponent.WHEN_FOCUSED);
+		ActionMap actions = field.getActionMap();
+		keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_DOWN, 0), "autocomplete-down");
+		keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_UP, 0), "autocomplete-up");
+		keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), "autocomplete-hide");
+		actions.put("autocomplete-down", new Move(1));
+		actions.put("autocomplete-up", new Move(-1));
+		actions.put("autocomplete-hide", new AbstractAction(){
+			public void actionPerformed(ActionEvent e){
+				hide();
+			}
+		});
+		// Enter takes the suggestion when there is one, otherwise does what it did before
+		final Action enter = actions.get(keys.get(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0)));
+		keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "autocomplete-choose");
+		actions.put("autocomplete-choose", new AbstractAction(){
+			public void actionPerformed(ActionEvent e){
+				if (popup.isVisible() && list.getSelectedIndex() >= 0) choose();
+				else if (enter != null) enter.actionPerformed(e);
+				else field.postActionEvent();
+			}
+		});
+	}
+
+	public void insertUpdate(DocumentEvent e){ changed(); }
+	public void removeUpdate(DocumentEvent e){ changed(); }
+	public void changedUpdate(DocumentEvent e){}
+
+	/**
+	 * Starts the wait for typing to pause again. Text set by the program while the <br>
+	 * field isn't being typed in isn't looked up.
+	 */
+	private void changed(){
+		lookups++;
+		if (choosing || !field.isFocusOwner()){
+			hide();
+			return;
+		}
+		timer.restart();
+	}
+
+	/**
+	 * Typing has paused, so looks up the text in the background.
+	 */
+	public void actionPerformed(ActionEvent e){
+		final String prefix = field.getText();
+		final int lookup = lookups;
+		if (prefix.trim().isEmpty()){
+			hide();
+			return;
+		}
+		AsyncWorker.submit(new Callable<ArrayList<String>>(){
+			public ArrayList<String> call(){
+				return Gazetteer.getDefault().complete(prefix, kinds, LIMIT);
+			}
+		}, new AsyncWorker.Callback<ArrayList<String>>(){
+			public void done(ArrayList<String> found){
+				if (lookup == lookups && field.isFocusOwner()) show(found);
+			}
+			public void failed(Throwable error){
+				hide();
+			}
+		});
+	}
+
+	private void show(ArrayList<String> found){
+		// Nothing to suggest if the only place is the one already typed
+		if (found.isEmpty() || found.size() == 1 && found.get(0).equalsIgnoreCase(field.getText().trim())){
+			hide();
+			return;
+		}
+		suggestions.clear();
+		for (String s: found)
+			suggestions.addElement(s);
+		list.setVisibleRowCount(found.size());
+		list.clearSelection();
+		popup.setPopupSize(Math.max(field.getWidth(), popup.getPreferredSize().width), popup.getPreferredSize().height);
+		popup.show(field, 0, field.getHeight());
+	}
+
+	private void hide(){
+		timer.stop();
+		popup.setVisible(false);
+	}
+
+	/**
+	 * Puts the selected suggestion in the field.
+	 */
+	private void choose(){
+		Object chosen = list.getSelectedValue();
+		hide();
+		if (chosen == null) return;
+		choosing = true;
+		try {
+			field.setText(chosen.toString());
+		} finally {
+			choosing = false;
+		}
+	}
+
+	/**
+	 * Moves the selection through the suggestions.
+	 */
+	private class Move extends AbstractAction {
+		private final int step;
+
+		Move(int step){
+			this.step = step;
+		}
+
+		public void actionPerformed(ActionEvent e){
+			if (!popup.isVisible()) return;
+			int i = list.getSelectedIndex() + step;
+			if (i < 0) i = suggestions.size() - 1;
+			if (i >= suggestions.size()) i = 0;
+			list.setSelectedIndex(i);
+			list.ensureIndexIsVisible(i);
+		}
+	}
+}
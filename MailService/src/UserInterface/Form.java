@@ -1,11 +1,17 @@
 package UserInterface;
 
 import java.awt.event.*;
-import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 import javax.swing.*;
 import javax.swing.event.*;
 
+import file.AsyncWorker;
+import service.EpochDay;
+import service.Gazetteer;
+import service.Mail;
+import service.Parcel;
+
 public class Form extends JPanel implements ActionListener{
 	JLabel CustomerName;
 	JTextField name;
@@ -32,6 +38,12 @@ public class Form extends JPanel implements ActionListener{
 	JTextField oriCity;
 	JTextField oriPostCode;
 
+	JTextField weight;
+	JTextField volume;
+
+	CustomButton submit;
+	JLabel status;
+
 	ArrayList<JTextField> textfields = new ArrayList<JTextField>();
 
 
@@ -52,6 +64,9 @@ public class Form extends JPanel implements ActionListener{
 		desCity = new JTextField("City");
 		desPostCode = new JTextField("Post Code");
 		desCountry = new JComboBox();
+		desCountry.setEditable(true);
+		Autocomplete.attach((JTextField)desCountry.getEditor().getEditorComponent(), EnumSet.of(Gazetteer.Kind.COUNTRY));
+		Autocomplete.attach(desCity, EnumSet.of(Gazetteer.Kind.DEPOT));
 		textfields.add(desStrNo);
 		textfields.add(desSuburb);
 		textfields.add(desCity);
@@ -75,6 +90,12 @@ public class Form extends JPanel implements ActionListener{
 		textfields.add(oriSuburb);
 		textfields.add(oriCity);
 		textfields.add(oriPostCode);
+		Autocomplete.attach(oriCity, EnumSet.of(Gazetteer.Kind.DEPOT));
+
+		weight = new JTextField("Weight (kg)");
+		volume = new JTextField("Volume (m3)");
+		textfields.add(weight);
+		textfields.add(volume);
 
 		for(final JTextField tf: textfields){
 			final String defaultText = tf.getText();
@@ -93,6 +114,19 @@ public class Form extends JPanel implements ActionListener{
 			});
 		}
 
+		type.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				boolean parcel = type.getValue().equals("Parcel");
+				weight.setEnabled(parcel);
+				volume.setEnabled(parcel);
+			}
+		});
+
+		submit = new CustomButton("Submit_Normal", "Submit_Pressed", "Submit_Hover", "submit");
+		submit.addActionListener(this);
+		status = new JLabel(" ");
+
 		addCountries();
 
 		GroupLayout layout = new GroupLayout(this);
@@ -121,7 +155,11 @@ public class Form extends JPanel implements ActionListener{
                         .addComponent(desCity, GroupLayout.PREFERRED_SIZE, 180, GroupLayout.PREFERRED_SIZE)
                         .addComponent(desCountry, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
                         .addComponent(desPostCode, GroupLayout.PREFERRED_SIZE, 70, GroupLayout.PREFERRED_SIZE)
-                        .addComponent(oriPostCode, GroupLayout.PREFERRED_SIZE, 70, GroupLayout.PREFERRED_SIZE))
+                        .addComponent(oriPostCode, GroupLayout.PREFERRED_SIZE, 70, GroupLayout.PREFERRED_SIZE)
+                        .addComponent(weight, GroupLayout.PREFERRED_SIZE, 100, GroupLayout.PREFERRED_SIZE)
+                        .addComponent(volume, GroupLayout.PREFERRED_SIZE, 100, GroupLayout.PREFERRED_SIZE)
+                        .addComponent(submit)
+                        .addComponent(status))
                     .addContainerGap(143, Short.MAX_VALUE))
             );
             layout.setVerticalGroup(
@@ -135,6 +173,10 @@ public class Form extends JPanel implements ActionListener{
                     .addGroup(layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
                         .addComponent(mailType, GroupLayout.PREFERRED_SIZE, 20, GroupLayout.PREFERRED_SIZE)
                         .addComponent(type, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE))
+                    .addPreferredGap(LayoutStyle.ComponentPlacement.RELATED)
+                    .addComponent(weight, GroupLayout.PREFERRED_SIZE, 20, GroupLayout.PREFERRED_SIZE)
+                    .addPreferredGap(LayoutStyle.ComponentPlacement.RELATED)
+                    .addComponent(volume, GroupLayout.PREFERRED_SIZE, 20, GroupLayout.PREFERRED_SIZE)
                     .addPreferredGap(LayoutStyle.ComponentPlacement.UNRELATED)
                     .addGroup(layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
                         .addComponent(priorityType, GroupLayout.PREFERRED_SIZE, 20, GroupLayout.PREFERRED_SIZE)
@@ -161,6 +203,10 @@ public class Form extends JPanel implements ActionListener{
                     .addComponent(desPostCode, GroupLayout.PREFERRED_SIZE, 20, GroupLayout.PREFERRED_SIZE)
                     .addPreferredGap(LayoutStyle.ComponentPlacement.UNRELATED)
                     .addComponent(desCountry, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
+                    .addPreferredGap(LayoutStyle.ComponentPlacement.UNRELATED)
+                    .addComponent(submit)
+                    .addPreferredGap(LayoutStyle.ComponentPlacement.RELATED)
+                    .addComponent(status)
                     .addContainerGap(117, Short.MAX_VALUE))
             );
 
@@ -178,19 +224,54 @@ public class Form extends JPanel implements ActionListener{
 		}
 	}
 
+	/**
+	 * Fills the country list from the Gazetteer. The first form made has to wait for <br>
+	 * it to load, so the list is filled in the background.
+	 */
 	public void addCountries(){ 
-		try{
-			Scanner sc = new Scanner(new File("List_of_Countries.txt"));
-			while(sc.hasNextLine()){
-				desCountry.addItem(sc.nextLine());
+		AsyncWorker.submit(new Callable<ArrayList<String>>(){
+			public ArrayList<String> call(){
+				return Gazetteer.getDefault().getAll(Gazetteer.Kind.COUNTRY);
 			}
-		} catch(FileNotFoundException e){ e.printStackTrace();}
-
-
+		}, new AsyncWorker.Callback<ArrayList<String>>(){
+			public void done(ArrayList<String> countries){
+				Object typed = desCountry.getSelectedItem();
+				for(String c: countries)
+					desCountry.addItem(c);
+				// Keep what was chosen or typed while the list loaded
+				desCountry.setSelectedItem(typed);
+				if(!desCountry.isEnabled())
+					desCountry.setSelectedItem("New Zealand");
+			}
+			public void failed(Throwable error){
+				status.setText("Could not read the countries: " + error.getMessage());
+			}
+		});
 	}
 
 	public void resetField(){
+		weight.setText("Weight (kg)");
+		volume.setText("Volume (m3)");
+	}
 
+	/**
+	 * Makes the event the form describes, dated today. The priority is the place of <br>
+	 * the mail type in the list, so International Air is 1.
+	 * @return The event, or null if a number on the form can't be read
+	 */
+	public Mail createEvent(){
+		String day = EpochDay.format(EpochDay.today());
+		String to = desCountry.isEnabled() && desCountry.getSelectedItem() != null ? desCountry.getSelectedItem().toString() : desCity.getText().trim();
+		String from = oriCity.getText().trim();
+		SpinnerListModel types = (SpinnerListModel)priority.getModel();
+		int p = types.getList().indexOf(priority.getValue()) + 1;
+		if(!type.getValue().equals("Parcel"))
+			return new Mail(day, to, from, p);
+		try{
+			Double.parseDouble(weight.getText().trim());
+			Double.parseDouble(volume.getText().trim());
+		} catch(NumberFormatException e){ return null;}
+		return new Parcel(day, to, from, weight.getText().trim(), volume.getText().trim(), p);
 	}
 
 	public void logEvent(){
@@ -201,9 +282,30 @@ public class Form extends JPanel implements ActionListener{
 		System.out.println(desCountry.getSelectedItem().toString());
 	}
 
+	/**
+	 * Saves the event in the background. The button is disabled until the save is <br>
+	 * done so the same event isn't sent twice, but the form stays responsive.
+	 */
 	@Override
 	public void actionPerformed(ActionEvent e) {
-		// TODO Auto-generated method stub
-		
+		if(!"submit".equals(e.getActionCommand())) return;
+		Mail mail = createEvent();
+		if(mail == null){
+			status.setText("Weight and volume must be numbers");
+			return;
+		}
+		submit.setEnabled(false);
+		status.setText("Saving...");
+		AsyncWorker.saveMail(mail, new AsyncWorker.Callback<Void>(){
+			public void done(Void result){
+				submit.setEnabled(true);
+				status.setText("Saved");
+				resetField();
+			}
+			public void failed(Throwable error){
+				submit.setEnabled(true);
+				status.setText("Could not save: " + error.getMessage());
+			}
+		});
 	}
 }
@@ -0,0 +1,149 @@
+package UserInterface;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.swing.table.AbstractTableModel;
+
+import file.AsyncWorker;
+import file.EventStore;
+import service.Mail;
+import service.Parcel;
+
+/**
+ * Table of every mail and parcel event sorted by day, which only builds the rows <br>
+ * on screen. Rows are read from the EventStore a page at a time as the table asks <br>
+ * for them, and only the last few pages are kept, so a history of millions of <br>
+ * events takes no more memory than one of a few hundred. <br>
+ * Pages are read in the background, as the store may be busy being added to, so <br>
+ * scrolling never waits on it. Rows show as loading until their page arrives. <br>
+ * Events whose day couldn't be read are listed after all the others, with the <br>
+ * day shown as it was stored.
+ *
+ * The table is empty until it is given a store, see setStore.
+ */
+public class HistoryTableModel extends AbstractTableModel {
+
+	private static final String[] COLUMNS = new String[]{"Day", "Type", "From", "To", "Priority", "Weight", "Volume"};
+
+	/** Rows read from the store at once */
+	static final int PAGE = 100;
+	/** Pages kept in memory */
+	static final int PAGES = 8;
+
+	/** Shown in the first column of a row whose page hasn't been read yet */
+	static final String LOADING = "Loading...";
+
+	private EventStore store;
+	private int rows;
+	/** Counts the stores given, so pages read from an earlier one are thrown away */
+	private int generation;
+	/** Pages being read */
+	private final HashSet<Integer> reading = new HashSet<Integer>();
+
+	/** Pages read so far by their number, least recently used first */
+	private final LinkedHashMap<Integer, ArrayList<Mail>> pages = new LinkedHashMap<Integer, ArrayList<Mail>>(PAGES * 2, 0.75f, true){
+		protected boolean removeEldestEntry(Map.Entry<Integer, ArrayList<Mail>> eldest){
+			return size() > PAGES;
+		}
+	};
+
+	/**
+	 * Shows the events of a store, or of the same store again once events have <br>
+	 * been added to it.
+	 *
+	 * @param store Store to read the events from
+	 */
+	public void setStore(final EventStore store){
+		final int given = ++generation;
+		AsyncWorker.submit(new Callable<Integer>(){
+			public Integer call(){
+				return store.size();
+			}
+		}, new AsyncWorker.Callback<Integer>(){
+			public void done(Integer size){
+				if (given != generation) return;
+				HistoryTableModel.this.store = store;
+				pages.clear();
+				reading.clear();
+				rows = size;
+				fireTableDataChanged();
+			}
+			public void failed(Throwable error){}
+		});
+	}
+
+	@Override
+	public int getRowCount() {
+		return rows;
+	}
+
+	@Override
+	public int getColumnCount() {
+		return COLUMNS.length;
+	}
+
+	@Override
+	public String getColumnName(int column) {
+		return COLUMNS[column];
+	}
+
+	@Override
+	public Object getValueAt(int row, int column) {
+		Mail m = getEvent(row);
+		if (m == null) return column == 0 ? LOADING : "";
+		switch (column){
+		case 0: return m.getDay();
+		case 1: return m instanceof Parcel ? "Parcel" : "Mail";
+		case 2: return m.getFrom();
+		case 3: return m.getToAddress();
+		case 4: return m.getPriority();
+		case 5: return m instanceof Parcel ? ((Parcel)m).getWeight() : "";
+		default: return m instanceof Parcel ? ((Parcel)m).getVolume() : "";
+		}
+	}
+
+	/**
+	 * @param row Row of the table
+	 * @return The event shown in the row, or null if its page is still being read <br>
+	 * 		   or the store no longer has it
+	 */
+	public Mail getEvent(int row){
+		Integer page = row / PAGE;
+		ArrayList<Mail> events = pages.get(page);
+		if (events == null){
+			read(page);
+			return null;
+		}
+		int i = row % PAGE;
+		return i < events.size() ? events.get(i) : null;
+	}
+
+	/**
+	 * Reads a page in the background, and redraws its rows once it has been read.
+	 */
+	private void read(final int page){
+		if (!reading.add(page)) return;
+		final EventStore from = store;
+		final int given = generation;
+		AsyncWorker.submit(new Callable<ArrayList<Mail>>(){
+			public ArrayList<Mail> call(){
+				return from.getInDayOrder(page * PAGE, PAGE);
+			}
+		}, new AsyncWorker.Callback<ArrayList<Mail>>(){
+			public void done(ArrayList<Mail> events){
+				if (given != generation || from != store) return;
+				reading.remove(page);
+				pages.put(page, events);
+				int first = page * PAGE;
+				if (first < rows) fireTableRowsUpdated(first, Math.min(rows, first + PAGE) - 1);
+			}
+			public void failed(Throwable error){
+				if (given == generation) reading.remove(page);
+			}
+		});
+	}
+}
@@ -6,12 +6,16 @@ import java.text.*;
 import java.util.*;
 import javax.swing.*;
 
+import file.AsyncWorker;
+
 public class KPSUserInterface extends JFrame implements ComponentListener{
 	private Time clock;
 	private JPanel topPanel;
 	private LoginScreen login;
 
 	public KPSUserInterface(){
+		// Read the database while the clerk logs in
+		AsyncWorker.preload();
 		login = new LoginScreen();
 		
 		setLayout(new BorderLayout());
@@ -1,7 +1,103 @@
 package UserInterface;
 
+import java.awt.*;
+import java.awt.event.*;
+
 import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+
+import file.AsyncWorker;
+import file.BusinessFigures;
+import file.EventStore;
+
+/**
+ * Dashboard of the business figures. The figures are running totals kept by <br>
+ * XMLWorker, so refreshing them doesn't read through the events. <br>
+ * The history tab lists every event, reading only the rows scrolled to.
+ */
+public class ManagerGUI extends JPanel implements ActionListener{
+
+	private static final String[] COLUMNS = new String[]{"", "Events", "Revenue", "Expenditure", "Profit", "Avg. Hours"};
+
+	private JLabel summary;
+	private DefaultTableModel byPriority;
+	private DefaultTableModel byRoute;
+	private HistoryTableModel history;
+
+	public ManagerGUI(){
+		setLayout(new BorderLayout());
+		setBackground(Color.BLACK);
+
+		summary = new JLabel(" ");
+		summary.setForeground(Color.WHITE);
+		summary.setFont(new Font("", Font.PLAIN, 20));
+		CustomButton refresh = new CustomButton("Refresh", "refresh");
+		refresh.addActionListener(this);
+
+		JPanel top = new JPanel(new FlowLayout());
+		top.setOpaque(false);
+		top.add(summary);
+		top.add(refresh);
+
+		byPriority = new DefaultTableModel(COLUMNS, 0);
+		byRoute = new DefaultTableModel(COLUMNS, 0);
+		JTabbedPane tables = new JTabbedPane();
+		tables.addTab("By Priority", new JScrollPane(new JTable(byPriority)));
+		tables.addTab("By Route", new JScrollPane(new JTable(byRoute)));
+		history = new HistoryTableModel();
+		tables.addTab("History", new JScrollPane(new JTable(history)));
+
+		add(top, BorderLayout.NORTH);
+		add(tables, BorderLayout.CENTER);
+		refresh();
+	}
+
+	/**
+	 * Reads the latest figures into the labels and tables. The first read may have <br>
+	 * to load the database, so it is done in the background.
+	 */
+	public void refresh(){
+		AsyncWorker.getBusinessFigures(new AsyncWorker.Callback<BusinessFigures>(){
+			public void done(BusinessFigures figures){
+				showFigures(figures);
+			}
+			public void failed(Throwable error){
+				summary.setText("Could not read the figures: " + error.getMessage());
+			}
+		});
+		AsyncWorker.getMailStore(new AsyncWorker.Callback<EventStore>(){
+			public void done(EventStore store){
+				history.setStore(store);
+			}
+			public void failed(Throwable error){
+				summary.setText("Could not read the history: " + error.getMessage());
+			}
+		});
+	}
+
+	private void showFigures(BusinessFigures figures){
+		BusinessFigures.Figures total = figures.getTotal();
+		summary.setText(String.format("%d events   Revenue $%.2f   Expenditure $%.2f   Profit $%.2f",
+				total.getCount(), total.getRevenue(), total.getExpenditure(), total.getProfit()));
+
+		byPriority.setRowCount(0);
+		for (double p: figures.getPriorities())
+			byPriority.addRow(row("Priority " + p, figures.getPriority(p)));
+		byRoute.setRowCount(0);
+		for (BusinessFigures.RouteKey route: figures.getRoutes())
+			byRoute.addRow(row(route.toString(), figures.getRoute(route)));
+	}
 
-public class ManagerGUI extends JPanel{
+	private static Object[] row(String name, BusinessFigures.Figures f){
+		double hours = f.getAverageDeliveryTime();
+		return new Object[]{name, f.getCount(), String.format("%.2f", f.getRevenue()), String.format("%.2f", f.getExpenditure()),
+				String.format("%.2f", f.getProfit()), Double.isNaN(hours) ? "-" : String.format("%.1f", hours)};
+	}
 
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		if("refresh".equals(e.getActionCommand())){
+			refresh();
+		}
+	}
 }
@@ -1,12 +1,71 @@
 package UserInterface;
 
 import java.awt.*;
+import java.awt.event.*;
 import javax.swing.*;
 
-public class PriceUI extends JPanel {
+import service.Depot;
+import service.Route;
+import service.RouteTable;
+
+public class PriceUI extends JPanel implements ActionListener{
+
+	JTextField origin;
+	JTextField destination;
+	JSpinner priority;
+	JLabel result;
 
-	
 	public PriceUI(){
 		setBackground(Color.BLUE);
+
+		origin = new JTextField("Wellington", 15);
+		destination = new JTextField(15);
+		priority = new JSpinner(new SpinnerListModel(new String[] {"International Air", "Domestic Air", "International Sea", "Domestic Land"}));
+		CustomButton quote = new CustomButton("Submit_Normal", "Submit_Pressed", "Submit_Hover", "quote");
+		quote.addActionListener(this);
+		result = new JLabel(" ");
+		result.setForeground(Color.WHITE);
+
+		JPanel fields = new JPanel(new GridLayout(4, 2, 10, 10));
+		fields.setOpaque(false);
+		fields.add(label("Origin"));
+		fields.add(origin);
+		fields.add(label("Destination"));
+		fields.add(destination);
+		fields.add(label("Mail Type"));
+		fields.add(priority);
+		fields.add(new JLabel());
+		fields.add(quote);
+
+		setLayout(new BorderLayout());
+		add(fields, BorderLayout.NORTH);
+		add(result, BorderLayout.CENTER);
+	}
+
+	private static JLabel label(String text){
+		JLabel l = new JLabel(text);
+		l.setForeground(Color.WHITE);
+		return l;
+	}
+
+	/**
+	 * Looks up the route in the shared route table, which only works out routes <br>
+	 * again when the legs they use change.
+	 */
+	@Override
+	public void actionPerformed(ActionEvent e) {
+		RouteTable.PriorityClass c = RouteTable.PriorityClass.forMailType(priority.getValue().toString());
+		Route r = RouteTable.getDefault().getRoute(origin.getText().trim(), destination.getText().trim(), c);
+		if (r == null){
+			result.setText("No route from " + origin.getText() + " to " + destination.getText());
+			return;
+		}
+
+		StringBuilder sb = new StringBuilder("<html>");
+		for (Depot d: r.getChangePoints())
+			sb.append(d.getAddress()).append(d == r.getChangePoints()[r.getChangePoints().length - 1] ? "" : " &rarr; ");
+		sb.append("<br>").append(Math.round(r.getDistance())).append(" km, ")
+			.append(Math.round(r.getDuration())).append(" hours</html>");
+		result.setText(sb.toString());
 	}
 }
@@ -0,0 +1,224 @@
+package file;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
+
+import service.Mail;
+import service.Parcel;
+
+/**
+ * Runs the reads and writes of XMLWorker off the Swing event thread, so the clerk's <br>
+ * screens never wait on the xml however large the database has grown. <br>
+ * Each method returns straight away with a Future, and when the work is done the <br>
+ * callback (if any) is run on the event thread with the result or the error.
+ *
+ * An example will illustrate how it is used.
+ *
+ * AsyncWorker.saveMail(mail, new AsyncWorker.Callback<Void>(){ <br>
+ * 		public void done(Void result){ status.setText("Saved"); } <br>
+ * 		public void failed(Throwable error){ status.setText(error.getMessage()); } <br>
+ * });
+ */
+public class AsyncWorker {
+
+	/**
+	 * Told on the Swing event thread how a task finished.
+	 */
+	public interface Callback<T> {
+		/**
+		 * @param result What the task returned
+		 */
+		void done(T result);
+
+		/**
+		 * @param error What the task threw
+		 */
+		void failed(Throwable error);
+	}
+
+	private static ExecutorService executor;
+
+	private AsyncWorker(){}
+
+	/**
+	 * Adds a mail and or parcel event to the mailevents database, see XMLWorker.addMail.
+	 *
+	 * @param mail Object to save data of
+	 * @param callback Told once the event is written, or null
+	 * @return Future which completes once the event is written
+	 */
+	public static Future<Void> saveMail(final Mail mail, Callback<Void> callback){
+		return submit(new Callable<Void>(){
+			public Void call() throws Exception{
+				// Pricing the event may read the routes, so it is done here too
+				try {
+					return XMLWorker.submitMail(mail).get();
+				} catch (ExecutionException e) {
+					throw rethrow(e.getCause());
+				}
+			}
+		}, callback);
+	}
+
+	/**
+	 * Finds mail events, see XMLWorker.getMail.
+	 *
+	 * @param match Data must match at the corresponding tag to be included in list
+	 * @param callback Given the list, or null
+	 * @return Future of the list
+	 */
+	public static Future<ArrayList<Mail>> getMail(final String[] match, Callback<ArrayList<Mail>> callback){
+		return submit(new Callable<ArrayList<Mail>>(){
+			public ArrayList<Mail> call() throws Exception{
+				return XMLWorker.getMailStore().getMail(match);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Finds parcel events, see XMLWorker.getParcels.
+	 *
+	 * @param match Data must match at the corresponding tag to be included in list
+	 * @param callback Given the list, or null
+	 * @return Future of the list
+	 */
+	public static Future<ArrayList<Parcel>> getParcels(final String[] match, Callback<ArrayList<Parcel>> callback){
+		return submit(new Callable<ArrayList<Parcel>>(){
+			public ArrayList<Parcel> call() throws Exception{
+				return XMLWorker.getMailStore().getParcels(match);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Reads the running totals of the database, see XMLWorker.getBusinessFigures.
+	 *
+	 * @param callback Given the figures, or null
+	 * @return Future of the figures
+	 */
+	public static Future<BusinessFigures> getBusinessFigures(Callback<BusinessFigures> callback){
+		return submit(new Callable<BusinessFigures>(){
+			public BusinessFigures call() throws Exception{
+				return XMLWorker.getBusinessFigures();
+			}
+		}, callback);
+	}
+
+	/**
+	 * Starts loading the mailevents database in the background, so the first save or <br>
+	 * query made from the screens doesn't have to wait for the xml to be read.
+	 *
+	 * @return Future which completes once the database is loaded
+	 */
+	public static Future<EventStore> preload(){
+		return submit(new Callable<EventStore>(){
+			public EventStore call() throws Exception{
+				return XMLWorker.getMailStore();
+			}
+		}, null);
+	}
+
+	/**
+	 * Loads the mailevents database if it isn't already, see XMLWorker.getMailStore.
+	 *
+	 * @param callback Given the store, or null
+	 * @return Future of the store
+	 */
+	public static Future<EventStore> getMailStore(Callback<EventStore> callback){
+		return submit(new Callable<EventStore>(){
+			public EventStore call() throws Exception{
+				return XMLWorker.getMailStore();
+			}
+		}, callback);
+	}
+
+	/**
+	 * Runs any task off the event thread.
+	 *
+	 * @param task Work to do
+	 * @param callback Told on the event thread how it finished, or null. Errors with <br>
+	 * 		  no callback to take them are printed
+	 * @return Future of what the task returns
+	 */
+	public static <T> Future<T> submit(Callable<T> task, Callback<T> callback){
+		Task<T> t = new Task<T>(task, callback);
+		getExecutor().execute(t);
+		return t;
+	}
+
+	/**
+	 * Uses a virtual thread per task where the JVM has them, otherwise a small pool. <br>
+	 * The tasks mostly wait on the disk and on XMLWorker's locks, so the pool is kept <br>
+	 * to a few threads rather than one per core.
+	 */
+	private static synchronized ExecutorService getExecutor(){
+		if (executor == null){
+			try {
+				Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				executor = (ExecutorService)m.invoke(null);
+			} catch (Exception e) {
+				executor = Executors.newFixedThreadPool(4, new ThreadFactory(){
+					private int count;
+					public synchronized Thread newThread(Runnable r){
+						Thread t = new Thread(r, "xml-io-" + count++);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+		}
+		return executor;
+	}
+
+	private static Exception rethrow(Throwable cause){
+		if (cause instanceof Exception) return (Exception)cause;
+		if (cause instanceof Error) throw (Error)cause;
+		return new RuntimeException(cause);
+	}
+
+	/**
+	 * A task which hands its outcome to its callback on the event thread when done.
+	 */
+	private static class Task<T> extends FutureTask<T> {
+		private final Callback<T> callback;
+
+		Task(Callable<T> task, Callback<T> callback){
+			super(task);
+			this.callback = callback;
+		}
+
+		protected void done(){
+			if (isCancelled()) return;
+			T result = null;
+			Throwable error = null;
+			try {
+				result = get();
+			} catch (ExecutionException e) {
+				error = e.getCause();
+			} catch (InterruptedException e) {
+				error = e;
+			}
+			if (callback == null){
+				if (error != null) error.printStackTrace();
+				return;
+			}
+			final T r = result;
+			final Throwable err = error;
+			SwingUtilities.invokeLater(new Runnable(){
+				public void run(){
+					if (err == null) callback.done(r);
+					else callback.failed(err);
+				}
+			});
+		}
+	}
+}
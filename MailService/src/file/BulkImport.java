@@ -0,0 +1,414 @@
+package file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import service.EpochDay;
+import service.Mail;
+import service.Parcel;
+
+/**
+ * Loads a large number of mail and parcel events, i.e. the logs of another branch, <br>
+ * into the mailevents database. <br>
+ * Records go through a reader, parser, validator and writer, each on its own thread <br>
+ * and joined by small bounded queues, so reading the input overlaps with writing and <br>
+ * memory use doesn't grow with the size of the input. The writer saves the events <br>
+ * BATCH_SIZE at a time with a single append to the file.
+ *
+ * CSV input has a record per line. If the first line names the columns (it has a <br>
+ * column called day) they may be in any order, and a "type" column of mail or parcel <br>
+ * may be given. Otherwise the columns are day, to, from, priority, weight, volume. <br>
+ * A record with no weight is mail. Fields may be in double quotes.
+ *
+ * XML input is in the same format as mailevents.xml.
+ *
+ * From the command line: java file.BulkImport events.csv more.xml
+ */
+public class BulkImport {
+
+	/** Events written to the file at a time */
+	public static final int BATCH_SIZE = 5000;
+	/** Records which can wait between two stages */
+	static final int QUEUE_SIZE = 1024;
+	/** Rejected records which are described in the result */
+	static final int MAX_ERRORS = 100;
+
+	private static final String[] COLUMNS = new String[]{"day", "to", "from", "priority", "weight", "volume"};
+	private static final int DAY = 0, TO = 1, FROM = 2, PRIORITY = 3, WEIGHT = 4, VOLUME = 5;
+
+	/**
+	 * What happened to the records of an import.
+	 */
+	public static class Result {
+		private int imported;
+		private int rejected;
+		private final List<String> errors = new ArrayList<String>();
+
+		/** @return Number of events saved */
+		public int getImported(){
+			return imported;
+		}
+
+		/** @return Number of records which couldn't be read or weren't valid */
+		public int getRejected(){
+			return rejected;
+		}
+
+		/** @return Why each record was rejected, for the first MAX_ERRORS of them */
+		public List<String> getErrors(){
+			return errors;
+		}
+
+		void reject(Record r){
+			rejected++;
+			if (errors.size() < MAX_ERRORS) errors.add(r.where + ": " + r.error);
+		}
+
+		public String toString(){
+			return imported + " imported, " + rejected + " rejected";
+		}
+	}
+
+	/**
+	 * A record as it goes down the pipeline.
+	 */
+	private static class Record {
+		final String where;
+		final String keyTag;
+		final String[] fields;
+		boolean isParcel;
+		int day;
+		double priority;
+		double weight;
+		double volume;
+		Mail mail;
+		String error;
+
+		Record(String where, String keyTag, String[] fields){
+			this.where = where;
+			this.keyTag = keyTag;
+			this.fields = fields;
+		}
+	}
+
+	/** Sent down the pipeline after the last record */
+	private static final Record END = new Record(null, null, null);
+
+	/**
+	 * Source of the records of an import.
+	 */
+	private interface Source {
+		void read(BlockingQueue<Record> out) throws Exception;
+	}
+
+	private BulkImport(){}
+
+	/**
+	 * Imports a file, as CSV unless its name ends in .xml.
+	 *
+	 * @param path File to import
+	 * @return What happened to each record
+	 * @throws IOException if the file couldn't be read or the events couldn't be saved. <br>
+	 * 		   Batches written before the error stay in the database
+	 */
+	public static Result importFile(String path) throws IOException{
+		InputStream in = new BufferedInputStream(new FileInputStream(path), 1 << 16);
+		try {
+			return path.toLowerCase().endsWith(".xml") ? importXML(in) : importCSV(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Imports CSV records from a stream. The stream is not closed.
+	 */
+	public static Result importCSV(final InputStream in) throws IOException{
+		return run(new Source(){
+			public void read(BlockingQueue<Record> out) throws Exception{
+				BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+				int[] columns = null;
+				int type = -1;
+				String line;
+				for (int n = 1; (line = reader.readLine()) != null; n++){
+					if (line.trim().length() == 0) continue;
+					String[] values = splitCSV(line);
+					if (columns == null){
+						columns = new int[COLUMNS.length];
+						type = readHeader(values, columns);
+						if (type != -2) continue;
+						for (int c = 0; c < columns.length; c++) columns[c] = c;
+						type = -1;
+					}
+					String[] fields = new String[COLUMNS.length];
+					for (int c = 0; c < columns.length; c++)
+						fields[c] = columns[c] >= 0 && columns[c] < values.length ? values[columns[c]] : null;
+					String keyTag = type >= 0 && type < values.length ? values[type].trim().toLowerCase() : null;
+					out.put(new Record("line " + n, keyTag, fields));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Imports mail and parcel elements from a stream of xml. The stream is closed.
+	 */
+	public static Result importXML(final InputStream in) throws IOException{
+		return run(new Source(){
+			public void read(BlockingQueue<Record> out) throws Exception{
+				EventReader reader = new EventReader(in, new String[]{"mail", "parcel"}, COLUMNS);
+				try {
+					for (int n = 1; reader.next(); n++){
+						String[] fields = new String[COLUMNS.length];
+						for (int c = 0; c < fields.length; c++) fields[c] = reader.getValue(c);
+						out.put(new Record("record " + n, reader.getKeyTag(), fields));
+					}
+				} finally {
+					reader.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs the pipeline. The reader, parser and validator each get a thread, and the <br>
+	 * writer runs on the calling thread.
+	 */
+	private static Result run(final Source source) throws IOException{
+		final BlockingQueue<Record> read = new ArrayBlockingQueue<Record>(QUEUE_SIZE);
+		final BlockingQueue<Record> parsed = new ArrayBlockingQueue<Record>(QUEUE_SIZE);
+		final BlockingQueue<Record> validated = new ArrayBlockingQueue<Record>(QUEUE_SIZE);
+		final Throwable[] failure = new Throwable[1];
+
+		Thread[] stages = new Thread[]{
+			new Stage("import-reader", null, read, failure){
+				void process(Record r){}
+				void produce() throws Exception{ source.read(out); }
+			},
+			new Stage("import-parser", read, parsed, failure){
+				void process(Record r){ parse(r); }
+			},
+			new Stage("import-validator", parsed, validated, failure){
+				void process(Record r){ validate(r); }
+			}
+		};
+		for (Thread t: stages) t.start();
+
+		Result result = new Result();
+		try {
+			List<Mail> batch = new ArrayList<Mail>(BATCH_SIZE);
+			for (Record r = validated.take(); r != END; r = validated.take()){
+				if (r.error != null){
+					result.reject(r);
+					continue;
+				}
+				batch.add(r.mail);
+				if (batch.size() == BATCH_SIZE){
+					XMLWorker.addMail(batch);
+					result.imported += batch.size();
+					batch.clear();
+				}
+			}
+			XMLWorker.addMail(batch);
+			result.imported += batch.size();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Import interrupted");
+		} finally {
+			// Stops the other stages if the writer failed
+			for (Thread t: stages) t.interrupt();
+		}
+
+		synchronized (failure){
+			if (failure[0] instanceof IOException) throw (IOException)failure[0];
+			if (failure[0] != null){
+				IOException e = new IOException("Import failed: " + failure[0]);
+				e.initCause(failure[0]);
+				throw e;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Turns the text of a record into numbers. Records which can't be read are <br>
+	 * passed on with an error.
+	 */
+	private static void parse(Record r){
+		String[] f = r.fields;
+		for (int c = 0; c < f.length; c++)
+			if (f[c] != null) f[c] = f[c].trim().replaceAll("\\s+", " ");
+
+		boolean hasWeight = f[WEIGHT] != null && f[WEIGHT].length() > 0;
+		r.isParcel = r.keyTag == null || r.keyTag.length() == 0 ? hasWeight : r.keyTag.equals("parcel");
+		if (r.keyTag != null && r.keyTag.length() > 0 && !r.keyTag.equals("mail") && !r.keyTag.equals("parcel")){
+			r.error = "Unknown type " + r.keyTag;
+			return;
+		}
+
+		r.day = EpochDay.parse(f[DAY]);
+		if (r.day == EpochDay.INVALID){
+			r.error = "Bad day " + f[DAY];
+			return;
+		}
+		try {
+			r.priority = Double.parseDouble(f[PRIORITY]);
+			if (r.isParcel){
+				r.weight = Double.parseDouble(f[WEIGHT]);
+				r.volume = Double.parseDouble(f[VOLUME]);
+			}
+		} catch (RuntimeException e) {
+			r.error = "Bad number in " + f[PRIORITY] + ", " + f[WEIGHT] + ", " + f[VOLUME];
+		}
+	}
+
+	/**
+	 * Checks a parsed record makes sense and creates its Mail or Parcel, with the <br>
+	 * day and numbers written the same way as those added by the clerks.
+	 */
+	private static void validate(Record r){
+		if (r.error != null) return;
+		String[] f = r.fields;
+		if (f[TO] == null || f[TO].length() == 0) r.error = "No destination";
+		else if (f[FROM] == null || f[FROM].length() == 0) r.error = "No origin";
+		else if (!(r.priority > 0)) r.error = "Bad priority " + f[PRIORITY];
+		else if (r.isParcel && !(r.weight > 0)) r.error = "Bad weight " + f[WEIGHT];
+		else if (r.isParcel && !(r.volume >= 0)) r.error = "Bad volume " + f[VOLUME];
+		if (r.error != null) return;
+
+		String day = EpochDay.format(r.day);
+		if (r.isParcel)
+			r.mail = new Parcel(day, f[TO], f[FROM], number(r.weight), number(r.volume), number(r.priority));
+		else
+			r.mail = new Mail(day, f[TO], f[FROM], number(r.priority));
+	}
+
+	private static String number(double d){
+		return d == Math.rint(d) && Math.abs(d) < 1e15 ? Long.toString((long)d) : Double.toString(d);
+	}
+
+	/**
+	 * Reads the first line of a CSV file as column names if it has a column called day.
+	 * @return Index of the type column, -1 if there isn't one, or -2 if the line <br>
+	 * 		   isn't a header
+	 */
+	private static int readHeader(String[] values, int[] columns){
+		int type = -1;
+		boolean header = false;
+		for (int c = 0; c < columns.length; c++) columns[c] = -1;
+		for (int i = 0; i < values.length; i++){
+			String name = values[i].trim().toLowerCase();
+			if (name.equals("type")) type = i;
+			for (int c = 0; c < COLUMNS.length; c++){
+				if (COLUMNS[c].equals(name)){
+					columns[c] = i;
+					if (c == DAY) header = true;
+				}
+			}
+		}
+		return header ? type : -2;
+	}
+
+	/**
+	 * Splits a line of CSV. Fields in double quotes may contain commas, and two <br>
+	 * double quotes in a row inside them stand for one.
+	 */
+	static String[] splitCSV(String line){
+		List<String> values = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++){
+			char c = line.charAt(i);
+			if (quoted){
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"'){
+					sb.append('"');
+					i++;
+				}
+				else if (c == '"') quoted = false;
+				else sb.append(c);
+			}
+			else if (c == '"') quoted = true;
+			else if (c == ','){
+				values.add(sb.toString());
+				sb.setLength(0);
+			}
+			else sb.append(c);
+		}
+		values.add(sb.toString());
+		return values.toArray(new String[values.size()]);
+	}
+
+	/**
+	 * A stage of the pipeline: takes each record from in, processes it and passes it <br>
+	 * on to out. A stage with no in produces the records instead. END is always <br>
+	 * passed on, even if the stage fails, so the stages after it finish.
+	 */
+	private static abstract class Stage extends Thread {
+		final BlockingQueue<Record> in;
+		final BlockingQueue<Record> out;
+		final Throwable[] failure;
+
+		Stage(String name, BlockingQueue<Record> in, BlockingQueue<Record> out, Throwable[] failure){
+			super(name);
+			this.in = in;
+			this.out = out;
+			this.failure = failure;
+			setDaemon(true);
+		}
+
+		abstract void process(Record r);
+
+		void produce() throws Exception{
+			for (Record r = in.take(); r != END; r = in.take()){
+				process(r);
+				out.put(r);
+			}
+		}
+
+		public void run(){
+			try {
+				produce();
+			} catch (InterruptedException e) {
+				return;
+			} catch (Throwable e) {
+				synchronized (failure){
+					if (failure[0] == null) failure[0] = e;
+				}
+			}
+			try {
+				out.put(END);
+			} catch (InterruptedException e) {
+				// The writer has stopped
+			}
+		}
+	}
+
+	public static void main(String[] args){
+		if (args.length == 0){
+			System.out.println("Usage: java file.BulkImport <events.csv|events.xml> ...");
+			return;
+		}
+		for (String path: args){
+			long start = System.currentTimeMillis();
+			try {
+				Result r = importFile(path);
+				System.out.println(path + ": " + r + " in " + (System.currentTimeMillis() - start) + " ms");
+				for (String error: r.getErrors())
+					System.out.println("  " + error);
+				if (r.getRejected() > r.getErrors().size())
+					System.out.println("  ... and " + (r.getRejected() - r.getErrors().size()) + " more");
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		XMLWorker.saveSnapshot();
+	}
+}
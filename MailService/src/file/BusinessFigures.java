@@ -0,0 +1,532 @@
+package file;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import service.Cost;
+import service.EventBatch;
+import service.Mail;
+import service.Parcel;
+import service.Route;
+import service.RouteTable;
+
+/**
+ * Running totals of the events in an EventStore: revenue, expenditure, counts, <br>
+ * weight, volume and delivery time, overall and by day, route and priority. <br>
+ * The totals are worked out once from the store, then kept up to date as each <br>
+ * event is added, so reading any figure is a lookup. <br>
+ * They are saved next to the xml file (mailevents.xml has mailevents.figures) and <br>
+ * are only read back while the xml is as it was when they were saved.
+ *
+ * Revenue is what the pricing engine charges. Expenditure is the cost per kg of the <br>
+ * legs of the shortest route times the weight, with a letter counted as weighing <br>
+ * LETTER_WEIGHT. Delivery time is the duration of the shortest route.
+ */
+public class BusinessFigures {
+
+	static final int MAGIC = 0x4B505346; // "KPSF"
+	static final int VERSION = 2;
+
+	/** Held while figures are saved or read, so two saves never write over each <br>
+	 *  other and a read never sees the file replaced part way through */
+	private static final Object writeLock = new Object();
+
+	/** Weight in kg a letter is counted as when working out what it cost to send */
+	public static final double LETTER_WEIGHT = 0.02;
+
+	/**
+	 * Origin and destination of a route the figures are kept by. The two are kept <br>
+	 * apart, so places with " -> " in their name can't be mixed up.
+	 */
+	public static final class RouteKey implements Comparable<RouteKey> {
+		private final String from;
+		private final String to;
+
+		public RouteKey(String from, String to){
+			this.from = from;
+			this.to = to;
+		}
+
+		public String getFrom() {
+			return from;
+		}
+
+		public String getTo() {
+			return to;
+		}
+
+		public boolean equals(Object o){
+			if (!(o instanceof RouteKey)) return false;
+			RouteKey k = (RouteKey)o;
+			return from.equals(k.from) && to.equals(k.to);
+		}
+
+		public int hashCode(){
+			return from.hashCode() * 31 + to.hashCode();
+		}
+
+		public int compareTo(RouteKey k){
+			int c = from.compareTo(k.from);
+			return c != 0 ? c : to.compareTo(k.to);
+		}
+
+		/**
+		 * @return The route as it is shown, i.e. "Wellington -> Sydney"
+		 */
+		public String toString(){
+			return from + " -> " + to;
+		}
+	}
+
+	/**
+	 * Totals for one group of events.
+	 */
+	public static class Figures {
+		private long mail;
+		private long parcels;
+		private long routed;
+		private double revenue;
+		private double expenditure;
+		private double weight;
+		private double volume;
+		private double hours;
+
+		Figures(){}
+
+		Figures(Figures f){
+			mail = f.mail;
+			parcels = f.parcels;
+			routed = f.routed;
+			revenue = f.revenue;
+			expenditure = f.expenditure;
+			weight = f.weight;
+			volume = f.volume;
+			hours = f.hours;
+		}
+
+		void add(boolean isParcel, double revenue, double expenditure, double weight, double volume, double hours){
+			if (isParcel) parcels++;
+			else mail++;
+			this.revenue += revenue;
+			this.expenditure += expenditure;
+			this.weight += weight;
+			this.volume += volume;
+			if (!Double.isNaN(hours)){
+				this.hours += hours;
+				routed++;
+			}
+		}
+
+		public long getCount(){
+			return mail + parcels;
+		}
+
+		public long getMailCount(){
+			return mail;
+		}
+
+		public long getParcelCount(){
+			return parcels;
+		}
+
+		public double getRevenue(){
+			return revenue;
+		}
+
+		public double getExpenditure(){
+			return expenditure;
+		}
+
+		public double getProfit(){
+			return revenue - expenditure;
+		}
+
+		public double getWeight(){
+			return weight;
+		}
+
+		public double getVolume(){
+			return volume;
+		}
+
+		/**
+		 * @return Average delivery time in hours of the events there was a route for, <br>
+		 * 		   or NaN if there were none
+		 */
+		public double getAverageDeliveryTime(){
+			return routed == 0 ? Double.NaN : hours / routed;
+		}
+
+		/**
+		 * @return Number of events with no known route, which aren't in the delivery time
+		 */
+		public long getUnroutedCount(){
+			return getCount() - routed;
+		}
+
+		void write(DataOutputStream out) throws IOException{
+			out.writeLong(mail);
+			out.writeLong(parcels);
+			out.writeLong(routed);
+			out.writeDouble(revenue);
+			out.writeDouble(expenditure);
+			out.writeDouble(weight);
+			out.writeDouble(volume);
+			out.writeDouble(hours);
+		}
+
+		void read(DataInputStream in) throws IOException{
+			mail = in.readLong();
+			parcels = in.readLong();
+			routed = in.readLong();
+			revenue = in.readDouble();
+			expenditure = in.readDouble();
+			weight = in.readDouble();
+			volume = in.readDouble();
+			hours = in.readDouble();
+		}
+	}
+
+	private long sourceLength;
+	private long sourceModified;
+
+	private final Figures total = new Figures();
+	private final HashMap<Integer, Figures> byDay = new HashMap<Integer, Figures>();
+	private final HashMap<RouteKey, Figures> byRoute = new HashMap<RouteKey, Figures>();
+	private final HashMap<Double, Figures> byPriority = new HashMap<Double, Figures>();
+
+	BusinessFigures(){}
+
+	/**
+	 * Returns the figures of the events in the store, read from the figures file <br>
+	 * if it is up to date, otherwise worked out from the store and saved for next time.
+	 *
+	 * @param filename XML file the store was read from (without the .xml extension)
+	 * @param store Store of every event in the file
+	 * @return Figures of every event in the store
+	 */
+	public static BusinessFigures load(String filename, EventStore store){
+		BusinessFigures figures = read(filename);
+		if (figures != null && figures.sourceLength == store.getSourceLength()
+				&& figures.sourceModified == store.getSourceModified())
+			return figures;
+
+		figures = of(store);
+		try {
+			figures.write(filename);
+		} catch (IOException e) {
+			// The figures are still fine, the next start will just work them out again
+			e.printStackTrace();
+		}
+		return figures;
+	}
+
+	/**
+	 * Works out the figures of every event in the store. Events are priced as one <br>
+	 * batch and each different route is only looked up once.
+	 */
+	static BusinessFigures of(EventStore store){
+		BusinessFigures figures = new BusinessFigures();
+		figures.markSource(store);
+
+		EventBatch batch = store.toBatch();
+		double[] prices = Cost.getEngine().quote(batch);
+		int[] days = batch.getDays();
+		int[] to = batch.getTo();
+		int[] from = batch.getFrom();
+		double[] priority = batch.getPriority();
+		double[] weight = batch.getWeight();
+		double[] volume = batch.getVolume();
+		boolean[] parcel = batch.getParcel();
+
+		HashMap<Long, Route> routes = new HashMap<Long, Route>();
+		for (int i = 0; i < batch.size(); i++){
+			Long key = ((long)from[i] << 32) | to[i];
+			Route r = routes.get(key);
+			if (r == null && !routes.containsKey(key)){
+				r = route(batch.getLocation(from[i]), batch.getLocation(to[i]));
+				routes.put(key, r);
+			}
+			double kg = parcel[i] ? weight[i] : LETTER_WEIGHT;
+			figures.add(days[i], batch.getLocation(from[i]), batch.getLocation(to[i]), priority[i], parcel[i],
+					prices[i], r == null ? 0 : r.getCost() * kg, weight[i], volume[i], r == null ? Double.NaN : r.getDuration());
+		}
+		return figures;
+	}
+
+	/**
+	 * Works out the revenue, expenditure and delivery time of an event. This prices <br>
+	 * the event and finds its route, so it is best done before taking any locks.
+	 *
+	 * @param m Event
+	 * @return {revenue, expenditure, delivery time in hours or NaN if there is no route}
+	 */
+	public static double[] measure(Mail m){
+		Route r = route(m.getFrom(), m.getToAddress());
+		double kg = m instanceof Parcel ? ((Parcel)m).getWeight() : LETTER_WEIGHT;
+		return new double[]{m.getCost(), r == null ? 0 : r.getCost() * kg, r == null ? Double.NaN : r.getDuration()};
+	}
+
+	/**
+	 * Adds an event to the figures.
+	 *
+	 * @param m Event added to the store
+	 * @param measured What measure(m) returned
+	 */
+	public synchronized void add(Mail m, double[] measured){
+		boolean isParcel = m instanceof Parcel;
+		double weight = isParcel ? ((Parcel)m).getWeight() : 0;
+		double volume = isParcel ? ((Parcel)m).getVolume() : 0;
+		add(m.getEpochDay(), m.getFrom(), m.getToAddress(), m.getPriority(), isParcel,
+				measured[0], measured[1], weight, volume, measured[2]);
+	}
+
+	private void add(int day, String from, String to, double priority, boolean isParcel,
+			double revenue, double expenditure, double weight, double volume, double hours){
+		total.add(isParcel, revenue, expenditure, weight, volume, hours);
+		figures(byDay, day).add(isParcel, revenue, expenditure, weight, volume, hours);
+		figures(byRoute, new RouteKey(from, to)).add(isParcel, revenue, expenditure, weight, volume, hours);
+		figures(byPriority, priority).add(isParcel, revenue, expenditure, weight, volume, hours);
+	}
+
+	private static <K> Figures figures(HashMap<K, Figures> map, K key){
+		Figures f = map.get(key);
+		if (f == null){
+			f = new Figures();
+			map.put(key, f);
+		}
+		return f;
+	}
+
+	private static Route route(String from, String to){
+		return RouteTable.getDefault().getRoute(from, to, RouteTable.PriorityClass.SHORTEST);
+	}
+
+	/**
+	 * Records that the figures are of the store as it is now.
+	 */
+	synchronized void markSource(EventStore store){
+		sourceLength = store.getSourceLength();
+		sourceModified = store.getSourceModified();
+	}
+
+	/**
+	 * @return Figures of every event
+	 */
+	public synchronized Figures getTotal(){
+		return new Figures(total);
+	}
+
+	/**
+	 * @param epochDay Days since 1/01/1970
+	 * @return Figures of the events on the day
+	 */
+	public synchronized Figures getDay(int epochDay){
+		return copy(byDay.get(epochDay));
+	}
+
+	/**
+	 * @return Figures of the events from one place to another
+	 */
+	public synchronized Figures getRoute(String from, String to){
+		return copy(byRoute.get(new RouteKey(from, to)));
+	}
+
+	/**
+	 * @return Figures of the events with the priority
+	 */
+	public synchronized Figures getPriority(double priority){
+		return copy(byPriority.get(priority));
+	}
+
+	/**
+	 * @return Every day there are events on, in order
+	 */
+	public synchronized int[] getDays(){
+		int[] days = new int[byDay.size()];
+		int i = 0;
+		for (Integer d: byDay.keySet()) days[i++] = d;
+		Arrays.sort(days);
+		return days;
+	}
+
+	/**
+	 * @return Key of every route there are events on, in order
+	 */
+	public synchronized List<RouteKey> getRoutes(){
+		List<RouteKey> routes = new ArrayList<RouteKey>(byRoute.keySet());
+		Collections.sort(routes);
+		return routes;
+	}
+
+	/**
+	 * @return Figures of each route, by the keys in getRoutes()
+	 */
+	public synchronized Figures getRoute(RouteKey key){
+		return copy(byRoute.get(key));
+	}
+
+	/**
+	 * @return Every priority there are events with, in order
+	 */
+	public synchronized double[] getPriorities(){
+		double[] priorities = new double[byPriority.size()];
+		int i = 0;
+		for (Double p: byPriority.keySet()) priorities[i++] = p;
+		Arrays.sort(priorities);
+		return priorities;
+	}
+
+	private static Figures copy(Figures f){
+		return f == null ? new Figures() : new Figures(f);
+	}
+
+	/**
+	 * @param filename XML file (without the .xml extension)
+	 * @return The figures file
+	 */
+	public static File fileFor(String filename){
+		return new File(filename + ".figures");
+	}
+
+	/**
+	 * @param filename XML file (without the .xml extension)
+	 * @return true if the figures file was written for the xml as it is now
+	 */
+	public static boolean isCurrent(String filename){
+		File xml = new File(filename + ".xml");
+		File file = fileFor(filename);
+		if (!file.exists()) return false;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				return in.readInt() == MAGIC && in.readInt() == VERSION
+						&& in.readLong() == xml.length() && in.readLong() == xml.lastModified();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Saves the figures. They are written to a temporary file of their own first <br>
+	 * and then renamed, so a crash never leaves half a file behind, and figures <br>
+	 * saved by two threads or programs at once can't be written into one file.
+	 *
+	 * @param filename XML file the figures are of (without the .xml extension)
+	 * @throws IOException
+	 */
+	public synchronized void write(String filename) throws IOException{
+		synchronized (writeLock){
+			File target = fileFor(filename);
+			File dir = target.getAbsoluteFile().getParentFile();
+			File temp = File.createTempFile(target.getName() + ".", ".tmp", dir);
+			try {
+				write(temp, target);
+			} finally {
+				temp.delete();
+			}
+		}
+	}
+
+	private void write(File temp, File target) throws IOException{
+		CRC32 crc = new CRC32();
+		FileOutputStream fos = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fos), crc));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(sourceLength);
+			out.writeLong(sourceModified);
+			total.write(out);
+			out.writeInt(byDay.size());
+			for (Map.Entry<Integer, Figures> e: byDay.entrySet()){
+				out.writeInt(e.getKey());
+				e.getValue().write(out);
+			}
+			out.writeInt(byRoute.size());
+			for (Map.Entry<RouteKey, Figures> e: byRoute.entrySet()){
+				out.writeUTF(e.getKey().getFrom());
+				out.writeUTF(e.getKey().getTo());
+				e.getValue().write(out);
+			}
+			out.writeInt(byPriority.size());
+			for (Map.Entry<Double, Figures> e: byPriority.entrySet()){
+				out.writeDouble(e.getKey());
+				e.getValue().write(out);
+			}
+			out.flush();
+			new DataOutputStream(fos).writeLong(crc.getValue());
+			fos.getChannel().force(false);
+		} finally {
+			out.close();
+		}
+
+		if (!temp.renameTo(target)){
+			// Windows won't rename over an existing file
+			target.delete();
+			if (!temp.renameTo(target))
+				throw new IOException("Could not replace " + target);
+		}
+	}
+
+	/**
+	 * Reads the figures file, if it is valid.
+	 * @return The figures, or null if there is no usable file
+	 */
+	static BusinessFigures read(String filename){
+		synchronized (writeLock){
+			File file = fileFor(filename);
+			if (!file.exists() || file.length() < 32 || file.length() > Integer.MAX_VALUE) return null;
+
+			try {
+				byte[] bytes = new byte[(int)file.length()];
+				DataInputStream in = new DataInputStream(new FileInputStream(file));
+				try {
+					in.readFully(bytes);
+				} finally {
+					in.close();
+				}
+
+				CRC32 crc = new CRC32();
+				crc.update(bytes, 0, bytes.length - 8);
+				in = new DataInputStream(new ByteArrayInputStream(bytes, bytes.length - 8, 8));
+				if (in.readLong() != crc.getValue()) return null;
+
+				in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+				BusinessFigures figures = new BusinessFigures();
+				figures.sourceLength = in.readLong();
+				figures.sourceModified = in.readLong();
+				figures.total.read(in);
+				for (int n = in.readInt(); n > 0; n--)
+					figures(figures.byDay, in.readInt()).read(in);
+				for (int n = in.readInt(); n > 0; n--)
+					figures(figures.byRoute, new RouteKey(in.readUTF(), in.readUTF())).read(in);
+				for (int n = in.readInt(); n > 0; n--)
+					figures(figures.byPriority, in.readDouble()).read(in);
+				return figures;
+			} catch (IOException e) {
+				// Damaged figures just mean working them out again
+				e.printStackTrace();
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.List;
+
+import metrics.Histogram;
+import metrics.Metrics;
+
+/**
+ * Append-only writer for event files such as mailevents.xml. <br>
+ * New elements are written over the closing root tag at the end of the file, <br>
+ * which is then written again after them. Only the tail of the file is ever read <br>
+ * or written, so an append costs the same however large the file gets, and the <br>
+ * file is always left as well formed xml for the readers. <br>
+ * Appends from different threads are written one after the other, and the file is <br>
+ * locked while it is written so appends from other programs can't interleave. <br>
+ * Every append is first logged in a WriteAheadLog, and only the log is forced to <br>
+ * the disk on each append. The xml is forced at each checkpoint, after which the <br>
+ * log is emptied. recover() does again any append a crash cut short, so the file <br>
+ * is never left without its closing tag. It is run before the first append if it <br>
+ * hasn't been already, so nothing is written after an append which never landed, <br>
+ * and again before any append which finds the file changed by something else. <br>
+ * Appends are only done again if the file is still as the log left it, part way <br>
+ * through them. A file which has been appended to by another program, or replaced, <br>
+ * since is left alone and the log is thrown away.
+ */
+public class EventJournal {
+
+	/**
+	 * When appended data is forced out to the disk.
+	 */
+	public enum SyncPolicy {
+		/** Leave flushing to the operating system */
+		NONE,
+		/** fsync the log after every append before returning */
+		ALWAYS
+	}
+
+	private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n";
+	private static final int TAIL_READ = 4096;
+	/** Size the log may grow to before the xml is forced and the log emptied */
+	static final long CHECKPOINT_BYTES = 256 << 10;
+	/** Milliseconds an append may stay in the log before the xml is forced and the log emptied */
+	static final long CHECKPOINT_MILLIS = 10000;
+
+	private static final Histogram WRITE = Metrics.histogram("journal.write");
+	private static final Histogram CHECKPOINT = Metrics.histogram("journal.checkpoint");
+
+	private final File file;
+	private final String rootTag;
+	private final byte[] closeTag;
+	private final File logFile;
+	private final WriteAheadLog log;
+	private SyncPolicy syncPolicy = SyncPolicy.ALWAYS;
+	/** Whether recover() has been run since the journal was made */
+	private boolean recovered;
+	/** When the oldest append in the log was logged */
+	private long firstLogged;
+
+	/**
+	 * @param filename XML file to append to (without the .xml extension)
+	 * @param rootTag Tag which contains all the data, i.e. "mailevents"
+	 */
+	public EventJournal(String filename, String rootTag){
+		this.file = new File(filename + ".xml");
+		this.rootTag = rootTag;
+		this.closeTag = bytes("</" + rootTag + ">");
+		this.logFile = WriteAheadLog.fileFor(filename);
+		this.log = new WriteAheadLog(logFile);
+	}
+
+	public SyncPolicy getSyncPolicy() {
+		return syncPolicy;
+	}
+
+	public void setSyncPolicy(SyncPolicy syncPolicy) {
+		this.syncPolicy = syncPolicy;
+	}
+
+	/**
+	 * Appends a single element to the end of the file.
+	 *
+	 * @param keyTag Tag of the new element, i.e. "mail"
+	 * @param tags Tags of the children of the element
+	 * @param data Text of each child, in the order of tags
+	 * @return Length of the file before the element was added
+	 * @throws IOException
+	 */
+	public long append(String keyTag, String[] tags, String[] data) throws IOException{
+		StringBuilder sb = new StringBuilder();
+		appendElement(sb, keyTag, tags, data);
+		return write(sb);
+	}
+
+	/**
+	 * Appends a number of elements with a single write (and fsync).
+	 *
+	 * @param keyTags Tag of each new element
+	 * @param tags Tags of the children of each element
+	 * @param data Text of the children of each element
+	 * @return Length of the file before the elements were added
+	 * @throws IOException
+	 */
+	public long appendAll(List<String> keyTags, List<String[]> tags, List<String[]> data) throws IOException{
+		if (keyTags.isEmpty()) return file.length();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < keyTags.size(); i++)
+			appendElement(sb, keyTags.get(i), tags.get(i), data.get(i));
+		return write(sb);
+	}
+
+	/**
+	 * Writes the elements over the closing tag, logging the write first.
+	 * @return Length of the file before they were written
+	 */
+	private synchronized long write(StringBuilder elements) throws IOException{
+		elements.append("</").append(rootTag).append(">\n");
+
+		long start = Metrics.start();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// Released when the file is closed
+			raf.getChannel().lock();
+			// The log may still hold appends from before a crash, which must go in first,
+			// or no longer be of the file if something else has written it since
+			long logged = log.getLoggedLength();
+			if (!recovered || logged >= 0 && logged != raf.length()){
+				recover(raf);
+				recovered = true;
+			}
+			long before = raf.length();
+			long pos = findInsertPosition(raf, elements);
+			byte[] out = bytes(elements.toString());
+			byte[] replaced = new byte[(int)(before - pos)];
+			raf.seek(pos);
+			raf.readFully(replaced);
+			if (log.size() == 0) firstLogged = System.currentTimeMillis();
+			log.append(pos, out, replaced, syncPolicy == SyncPolicy.ALWAYS);
+			raf.seek(pos);
+			raf.write(out);
+			raf.setLength(pos + out.length);
+			if (log.size() >= CHECKPOINT_BYTES || System.currentTimeMillis() - firstLogged >= CHECKPOINT_MILLIS)
+				checkpoint(raf);
+			return before;
+		} finally {
+			raf.close();
+			WRITE.stop(start);
+		}
+	}
+
+	/**
+	 * Does again any append which was logged but may not have reached the file, and <br>
+	 * empties the log. To be called before the file is read after a start. Only the <br>
+	 * appends since the last checkpoint are looked at, however large the file is. <br>
+	 * If the file isn't as the log left it, part way through its appends, it has <br>
+	 * been changed by something else, so it is left alone and the log thrown away.
+	 *
+	 * @return Number of appends done again
+	 * @throws IOException
+	 */
+	public synchronized int recover() throws IOException{
+		if (!logFile.exists()){
+			recovered = true;
+			return 0;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.getChannel().lock();
+			int redone = recover(raf);
+			recovered = true;
+			return redone;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private int recover(RandomAccessFile raf) throws IOException{
+		List<WriteAheadLog.Record> records = log.read();
+		if (records.isEmpty()) return 0;
+
+		int from = findUnwritten(raf, records);
+		if (from < 0)
+			new IOException(file + " has been changed since the appends in " + logFile + ", so they are not done again").printStackTrace();
+		for (int i = Math.max(from, 0); from >= 0 && i < records.size(); i++){
+			WriteAheadLog.Record r = records.get(i);
+			raf.seek(r.getPosition());
+			raf.write(r.getData());
+			raf.setLength(r.getLengthAfter());
+		}
+		checkpoint(raf);
+		return from < 0 ? 0 : records.size() - from;
+	}
+
+	/**
+	 * Finds how far through the logged appends the file got.
+	 * @return The first append which didn't reach the file whole, the number of <br>
+	 * 		   appends if they all did, or -1 if the file isn't as any of them left it
+	 */
+	private static int findUnwritten(RandomAccessFile raf, List<WriteAheadLog.Record> records) throws IOException{
+		// Each append must start from the file the one before left
+		for (int i = 1; i < records.size(); i++)
+			if (records.get(i).getLengthBefore() != records.get(i - 1).getLengthAfter()) return -1;
+		if (isWritten(raf, records.get(records.size() - 1))) return records.size();
+		for (int i = records.size() - 1; i >= 0; i--)
+			if (isPartlyWritten(raf, records.get(i))) return i;
+		return -1;
+	}
+
+	/**
+	 * Forces the file out to the disk and empties the log, if anything has been <br>
+	 * appended since the last checkpoint.
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint() throws IOException{
+		if (log.size() == 0) return;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.getChannel().lock();
+			checkpoint(raf);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void checkpoint(RandomAccessFile raf) throws IOException{
+		long start = Metrics.start();
+		raf.getChannel().force(false);
+		log.checkpoint();
+		CHECKPOINT.stop(start);
+	}
+
+	/**
+	 * @return Bytes of appends logged since the last checkpoint
+	 */
+	public long getLogSize(){
+		return log.size();
+	}
+
+	/**
+	 * Whether the file holds exactly the data of the record at its position.
+	 */
+	private static boolean isWritten(RandomAccessFile raf, WriteAheadLog.Record r) throws IOException{
+		byte[] data = r.getData();
+		if (raf.length() != r.getPosition() + data.length) return false;
+		byte[] found = new byte[data.length];
+		raf.seek(r.getPosition());
+		raf.readFully(found);
+		return Arrays.equals(found, data);
+	}
+
+	/**
+	 * Whether the file holds the bytes the record replaces, with the start of its <br>
+	 * data written over them, which is how a crash part way through it leaves it.
+	 */
+	private static boolean isPartlyWritten(RandomAccessFile raf, WriteAheadLog.Record r) throws IOException{
+		byte[] data = r.getData();
+		byte[] replaced = r.getReplaced();
+		long length = raf.length() - r.getPosition();
+		if (length < 0 || length > Math.max(data.length, replaced.length)) return false;
+		byte[] found = new byte[(int)length];
+		raf.seek(r.getPosition());
+		raf.readFully(found);
+		// Tries each number of bytes of the data which may have been written
+		for (int m = 0; m < data.length && (m == 0 || m <= found.length && found[m - 1] == data[m - 1]); m++){
+			if (found.length != Math.max(m, replaced.length)) continue;
+			int i = m;
+			while (i < found.length && found[i] == replaced[i]) i++;
+			if (i == found.length) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Finds where new elements should be written, which is the start of the closing <br>
+	 * root tag. For an empty file the header and opening root tag are put in front of <br>
+	 * the elements, so they are written (and logged) along with them.
+	 */
+	private long findInsertPosition(RandomAccessFile raf, StringBuilder elements) throws IOException{
+		long length = raf.length();
+		if (length == 0){
+			elements.insert(0, HEADER + "<" + rootTag + ">\n");
+			return 0;
+		}
+
+		int n = (int)Math.min(length, TAIL_READ);
+		byte[] tail = new byte[n];
+		raf.seek(length - n);
+		raf.readFully(tail);
+
+		int at = lastIndexOf(tail, closeTag);
+		if (at >= 0)
+			return length - n + at;
+
+		// A root with no children is written as <rootTag/>
+		byte[] empty = bytes("<" + rootTag + "/>");
+		at = lastIndexOf(tail, empty);
+		if (at >= 0){
+			elements.insert(0, "<" + rootTag + ">\n");
+			return length - n + at;
+		}
+
+		throw new IOException(file + " has no closing </" + rootTag + "> tag");
+	}
+
+	private static int lastIndexOf(byte[] arr, byte[] target){
+		for (int i = arr.length - target.length; i >= 0; i--){
+			int k = 0;
+			while (k < target.length && arr[i + k] == target[k]) k++;
+			if (k == target.length) return i;
+		}
+		return -1;
+	}
+
+	private static void appendElement(StringBuilder sb, String keyTag, String[] tags, String[] data){
+		sb.append('\t').append('<').append(keyTag).append(">\n");
+		for (int i = 0; i < tags.length; i++){
+			sb.append("\t\t<").append(tags[i]).append('>');
+			escape(sb, data[i]);
+			sb.append("</").append(tags[i]).append(">\n");
+		}
+		sb.append("\t</").append(keyTag).append(">\n");
+	}
+
+	private static void escape(StringBuilder sb, String text){
+		for (int i = 0; i < text.length(); i++){
+			char c = text.charAt(i);
+			if (c == '&') sb.append("&amp;");
+			else if (c == '<') sb.append("&lt;");
+			else if (c == '>') sb.append("&gt;");
+			else sb.append(c);
+		}
+	}
+
+	private static byte[] bytes(String s){
+		try { return s.getBytes("UTF-8"); }
+		catch (UnsupportedEncodingException e) { throw new RuntimeException(e); }
+	}
+}
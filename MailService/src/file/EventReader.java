@@ -0,0 +1,153 @@
+package file;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Streaming (pull based) reader for event files such as mailevents.xml. <br>
+ * Only one record is ever decoded at a time so memory use stays the same <br>
+ * no matter how large the file gets.
+ *
+ * An example will illustrate how it is used.
+ *
+ * EventReader r = new EventReader("mailevents", new String[]{"mail"}, new String[]{"day", "to"});
+ * while (r.next()){
+ * 		r.getValue(0); // day of the current mail
+ * 		r.getValue(1); // to of the current mail
+ * }
+ * r.close();
+ */
+public class EventReader {
+
+	private static final XMLInputFactory factory = createFactory();
+
+	private final InputStream in;
+	private final XMLStreamReader reader;
+	private final String[] keyTags;
+	private final String[] tags;
+	private final String[] values;
+	private String keyTag;
+
+	/**
+	 * Opens the given xml file for reading.
+	 *
+	 * @param filename XML file to read (without the .xml extension)
+	 * @param keyTags Names of the record tags to return, i.e. "mail" and "parcel"
+	 * @param tags Tags within each record to read the data of
+	 * @throws IOException
+	 * @throws SAXException if the file is not well formed xml
+	 */
+	public EventReader(String filename, String[] keyTags, String[] tags) throws IOException, SAXException{
+		this(new BufferedInputStream(new FileInputStream(new File(filename + ".xml")), 1 << 16), keyTags, tags);
+	}
+
+	/**
+	 * Reads events from the given stream. The stream is closed by {@link #close()}.
+	 */
+	public EventReader(InputStream in, String[] keyTags, String[] tags) throws IOException, SAXException{
+		this.in = in;
+		this.keyTags = keyTags;
+		this.tags = tags;
+		this.values = new String[tags.length];
+		try {
+			// Factories are not guaranteed to be thread safe
+			synchronized (factory) { this.reader = factory.createXMLStreamReader(in); }
+		} catch (XMLStreamException e) {
+			in.close();
+			throw new SAXException(e);
+		}
+	}
+
+	/**
+	 * Moves on to the next record in the file.
+	 *
+	 * @return false once there are no records left
+	 * @throws SAXException if the file is not well formed xml
+	 */
+	public boolean next() throws SAXException{
+		try {
+			while (reader.hasNext()){
+				if (reader.next() == XMLStreamConstants.START_ELEMENT
+						&& indexOf(keyTags, reader.getLocalName()) >= 0){
+					keyTag = reader.getLocalName();
+					readRecord();
+					return true;
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new SAXException(e);
+		}
+		keyTag = null;
+		return false;
+	}
+
+	/**
+	 * Reads the children of the current record up until its end tag. Like <br>
+	 * getElementsByTagName only the first occurrence of each tag is kept.
+	 */
+	private void readRecord() throws XMLStreamException{
+		for (int i = 0; i < values.length; i++)
+			values[i] = null;
+
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()){
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT){
+				int slot = indexOf(tags, reader.getLocalName());
+				if (slot >= 0 && values[slot] == null){
+					// getElementText consumes the matching end tag
+					values[slot] = reader.getElementText();
+				}
+				else depth++;
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT){
+				depth--;
+			}
+		}
+	}
+
+	private static int indexOf(String[] arr, String s){
+		for (int i = 0; i < arr.length; i++)
+			if (arr[i].equals(s)) return i;
+		return -1;
+	}
+
+	/**
+	 * @return Name of the current record's tag, i.e. "mail" or "parcel"
+	 */
+	public String getKeyTag(){
+		return keyTag;
+	}
+
+	/**
+	 * @param slot Index into the tags this reader was opened with
+	 * @return Text of that tag in the current record, or null if the record doesn't have it
+	 */
+	public String getValue(int slot){
+		return values[slot];
+	}
+
+	public void close(){
+		try { reader.close(); }
+		catch (XMLStreamException e) { e.printStackTrace(); }
+		try { in.close(); }
+		catch (IOException e) { e.printStackTrace(); }
+	}
+
+	private static XMLInputFactory createFactory(){
+		XMLInputFactory f = XMLInputFactory.newInstance();
+		f.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		return f;
+	}
+}
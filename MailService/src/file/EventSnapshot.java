@@ -0,0 +1,347 @@
+package file;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary copy of an EventStore, written next to the xml file it was read from <br>
+ * (mailevents.xml has mailevents.1.snapshot, mailevents.2.snapshot and so on). <br>
+ * Reading it back needs no xml parsing, so the store loads far faster than from <br>
+ * the xml.
+ *
+ * The layout of the file is:
+ *
+ * int magic, int version, long xml length, long xml last modified, <br>
+ * int number of strings, int number of events, <br>
+ * each string as int length followed by its UTF-8 bytes, <br>
+ * each event as ROW_BYTES (see below), <br>
+ * long CRC32 of everything before it.
+ *
+ * Every string in the store is written once and events refer to them by their <br>
+ * index, with -1 for a missing value. <br>
+ * A snapshot is only used while the xml still has the length and last modified <br>
+ * time it was written for, otherwise the store is read from the xml.
+ *
+ * Each snapshot is written under a new generation number and the newest one is <br>
+ * the one used. An old snapshot is never replaced in place, as Windows won't <br>
+ * delete or rename over a file a reader still has mapped. Old generations are <br>
+ * deleted once nothing maps them, or by a later write if they still are.
+ */
+public class EventSnapshot {
+
+	static final int MAGIC = 0x4B505345; // "KPSE"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4 + 4;
+
+	/**
+	 * Each event is: int kind (0 mail, 1 parcel), int epoch day, <br>
+	 * int string index of day, to, from, priority, weight and volume, <br>
+	 * double priority, weight and volume.
+	 */
+	static final int ROW_BYTES = 4 * 8 + 8 * 3;
+	static final int KIND = 0, EPOCH_DAY = 4, STRINGS = 8, PRIORITY = 32, WEIGHT = 40, VOLUME = 48;
+
+	private static final String SUFFIX = ".snapshot";
+
+	/**
+	 * @param filename XML file the snapshot is of (without the .xml extension)
+	 * @return The newest snapshot file. It doesn't exist if none has been written
+	 */
+	public static File fileFor(String filename){
+		return generation(filename, latest(filename));
+	}
+
+	/**
+	 * @return The snapshot file of the given generation
+	 */
+	static File generation(String filename, long generation){
+		return new File(filename + "." + generation + SUFFIX);
+	}
+
+	/**
+	 * @return The newest generation of snapshot of the file, or 0 if there is none
+	 */
+	static long latest(String filename){
+		File base = new File(filename).getAbsoluteFile();
+		String[] names = base.getParentFile().list();
+		long latest = 0;
+		if (names != null)
+			for (String name: names)
+				latest = Math.max(latest, generationOf(name, base.getName() + "."));
+		return latest;
+	}
+
+	/**
+	 * @return Generation of the snapshot with the given file name, or -1 if it is <br>
+	 * 		   not a snapshot of the file
+	 */
+	private static long generationOf(String name, String prefix){
+		if (!name.startsWith(prefix) || !name.endsWith(SUFFIX) || name.length() <= prefix.length() + SUFFIX.length()) return -1;
+		String number = name.substring(prefix.length(), name.length() - SUFFIX.length());
+		if (number.length() > 18) return -1;
+		for (int i = 0; i < number.length(); i++)
+			if (number.charAt(i) < '0' || number.charAt(i) > '9') return -1;
+		return Long.parseLong(number);
+	}
+
+	/**
+	 * Deletes every snapshot of the file older than the given generation. Any which <br>
+	 * are still mapped on Windows are left for the next write to delete.
+	 */
+	static void deleteOlder(String filename, long generation){
+		File base = new File(filename).getAbsoluteFile();
+		String[] names = base.getParentFile().list();
+		if (names == null) return;
+		for (String name: names){
+			long g = generationOf(name, base.getName() + ".");
+			if (g >= 0 && g < generation) new File(base.getParentFile(), name).delete();
+		}
+		// Written before snapshots had generations
+		new File(filename + SUFFIX).delete();
+	}
+
+	/**
+	 * Deletes every snapshot of the file, i.e. when the xml has been replaced.
+	 *
+	 * @param filename XML file (without the .xml extension)
+	 */
+	public static void deleteAll(String filename){
+		deleteOlder(filename, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Writes a snapshot of the store as the next generation. It is written to a <br>
+	 * temporary file first and then renamed, so a crash never leaves half a <br>
+	 * snapshot behind.
+	 *
+	 * @param store Store to write
+	 * @param filename XML file the store was read from (without the .xml extension)
+	 * @return The snapshot file written
+	 * @throws IOException
+	 */
+	public static synchronized File write(EventStore store, String filename) throws IOException{
+		// No events can be added while the rows are written
+		store.readLock().lock();
+		try {
+			return writeLocked(store, filename);
+		} finally {
+			store.readLock().unlock();
+		}
+	}
+
+	private static File writeLocked(EventStore store, String filename) throws IOException{
+		long generation = latest(filename) + 1;
+		File target = generation(filename, generation);
+		File temp = new File(target.getPath() + ".tmp");
+
+		// Give every different string an index
+		HashMap<String, Integer> index = new HashMap<String, Integer>();
+		ArrayList<String> strings = new ArrayList<String>();
+		int size = store.size();
+		int[][] codes = new int[EventStore.TAGS.length][size];
+		for (int c = 0; c < EventStore.TAGS.length; c++){
+			for (int id = 0; id < size; id++){
+				String value = store.getValue(c, id);
+				if (value == null){
+					codes[c][id] = -1;
+					continue;
+				}
+				Integer code = index.get(value);
+				if (code == null){
+					code = strings.size();
+					strings.add(value);
+					index.put(value, code);
+				}
+				codes[c][id] = code;
+			}
+		}
+
+		CRC32 crc = new CRC32();
+		FileOutputStream fos = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fos, 1 << 16), crc));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(store.getSourceLength());
+			out.writeLong(store.getSourceModified());
+			out.writeInt(strings.size());
+			out.writeInt(size);
+			for (String s: strings){
+				byte[] b = s.getBytes("UTF-8");
+				out.writeInt(b.length);
+				out.write(b);
+			}
+			for (int id = 0; id < size; id++){
+				out.writeInt(store.isParcel(id) ? 1 : 0);
+				out.writeInt(store.getEpochDay(id));
+				for (int c = 0; c < EventStore.TAGS.length; c++)
+					out.writeInt(codes[c][id]);
+				out.writeDouble(store.getPriority(id));
+				out.writeDouble(store.getWeight(id));
+				out.writeDouble(store.getVolume(id));
+			}
+			out.flush();
+			// The checksum itself is not part of what it covers
+			new DataOutputStream(fos).writeLong(crc.getValue());
+			fos.getChannel().force(false);
+		} finally {
+			out.close();
+		}
+
+		// Nothing has the new name yet, so this works on Windows too
+		if (!temp.renameTo(target))
+			throw new IOException("Could not rename " + temp + " to " + target);
+		deleteOlder(filename, generation);
+		return target;
+	}
+
+	/**
+	 * Reads the snapshot of the given xml file, if there is one which is up to date.
+	 *
+	 * @param filename XML file (without the .xml extension)
+	 * @return The store, or null if there is no usable snapshot
+	 */
+	public static EventStore read(String filename){
+		File xml = new File(filename + ".xml");
+		File file = fileFor(filename);
+		if (!file.exists() || !xml.exists()) return null;
+
+		try {
+			ByteBuffer buf = map(file);
+			if (buf == null || !isValid(buf)) return null;
+			if (buf.getLong(8) != xml.length() || buf.getLong(16) != xml.lastModified())
+				return null;
+
+			EventStore store = new EventStore(xml);
+			store.markSource(buf.getLong(8), buf.getLong(16));
+			load(buf, store);
+			return store;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} catch (RuntimeException e) {
+			// A damaged snapshot just means reading the xml instead
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * @param filename XML file (without the .xml extension)
+	 * @return true if the snapshot was written for the xml as it is now
+	 */
+	public static boolean isCurrent(String filename){
+		File xml = new File(filename + ".xml");
+		File file = fileFor(filename);
+		if (!file.exists() || file.length() < HEADER_BYTES + 8) return false;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				return in.readInt() == MAGIC && in.readInt() == VERSION
+						&& in.readLong() == xml.length() && in.readLong() == xml.lastModified();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Maps the whole snapshot into memory, read only.
+	 * @return The mapped file, or null if it is too small to be a snapshot
+	 */
+	static MappedByteBuffer map(File file) throws IOException{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < HEADER_BYTES + 8) return null;
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// The mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Checks the magic number, version and checksum of a mapped snapshot.
+	 */
+	static boolean isValid(ByteBuffer buf){
+		if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) return false;
+
+		int end = buf.capacity() - 8;
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[1 << 16];
+		ByteBuffer b = buf.duplicate();
+		b.position(0);
+		while (b.position() < end){
+			int n = Math.min(chunk.length, end - b.position());
+			b.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		return buf.getLong(end) == crc.getValue();
+	}
+
+	/**
+	 * Reads the string table of a mapped snapshot.
+	 * @return Each string, by index
+	 */
+	static String[] readStrings(ByteBuffer buf){
+		String[] strings = new String[buf.getInt(24)];
+		ByteBuffer b = buf.duplicate();
+		b.position(HEADER_BYTES);
+		byte[] bytes = new byte[64];
+		for (int i = 0; i < strings.length; i++){
+			int n = b.getInt();
+			if (n > bytes.length) bytes = new byte[n];
+			b.get(bytes, 0, n);
+			strings[i] = decode(bytes, n);
+		}
+		return strings;
+	}
+
+	/**
+	 * @return Offset of the first event in a mapped snapshot
+	 */
+	static int rowsStart(ByteBuffer buf){
+		int pos = HEADER_BYTES;
+		int count = buf.getInt(24);
+		for (int i = 0; i < count; i++)
+			pos += 4 + buf.getInt(pos);
+		return pos;
+	}
+
+	private static void load(ByteBuffer buf, EventStore store){
+		String[] strings = readStrings(buf);
+		int rows = buf.getInt(28);
+		int pos = rowsStart(buf);
+		String[] row = new String[EventStore.TAGS.length];
+		for (int i = 0; i < rows; i++, pos += ROW_BYTES){
+			for (int c = 0; c < row.length; c++){
+				int code = buf.getInt(pos + STRINGS + c * 4);
+				row[c] = code < 0 ? null : strings[code];
+			}
+			store.add(buf.getInt(pos + KIND) == 1, row, buf.getInt(pos + EPOCH_DAY),
+					buf.getDouble(pos + PRIORITY), buf.getDouble(pos + WEIGHT), buf.getDouble(pos + VOLUME));
+		}
+	}
+
+	private static String decode(byte[] bytes, int n){
+		try { return new String(bytes, 0, n, "UTF-8"); }
+		catch (UnsupportedEncodingException e) { throw new RuntimeException(e); }
+	}
+}
@@ -0,0 +1,816 @@
+package file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.xml.sax.SAXException;
+
+import metrics.Histogram;
+import metrics.Metrics;
+import service.EpochDay;
+import service.EventBatch;
+import service.Mail;
+import service.ParallelScan;
+import service.Parcel;
+
+/**
+ * In memory copy of the mail and parcel events of an event file, loaded once and <br>
+ * kept up to date as events are added. <br>
+ * Events are indexed on to, from, day and priority so a query only looks at the <br>
+ * events which could possibly match, instead of rescanning the whole file. <br>
+ * Any number of threads can query the store while events are added. Adding takes <br>
+ * the write lock and queries the read lock, so a query sees every event added <br>
+ * before it started and none added while it runs.
+ */
+public class EventStore {
+
+	/** Tags of every event, in the order of the columns */
+	static final String[] TAGS = new String[]{"day", "to", "from", "priority", "weight", "volume"};
+	static final int DAY = 0, TO = 1, FROM = 2, PRIORITY = 3, WEIGHT = 4, VOLUME = 5;
+
+	/** Columns the match of getMail and getParcels correspond to */
+	private static final int[] MAIL_MATCH = new int[]{DAY, TO, FROM, PRIORITY};
+	private static final int[] PARCEL_MATCH = new int[]{DAY, TO, FROM, WEIGHT, VOLUME, PRIORITY};
+
+	/** Cursor to pass for the first page of a paged query */
+	public static final long FIRST = Long.MIN_VALUE;
+
+	private static final Histogram LOAD_SNAPSHOT = Metrics.histogram("store.snapshot");
+	private static final Histogram PARSE = Metrics.histogram("store.parse");
+
+	private final File source;
+	private volatile long sourceLength;
+	private volatile long sourceModified;
+
+	private int size;
+	private String[][] columns = new String[TAGS.length][16];
+	private int[] epochDays = new int[16];
+	private double[] priorities = new double[16];
+	private double[] weights = new double[16];
+	private double[] volumes = new double[16];
+
+	private final BitSet mail = new BitSet();
+	private final BitSet parcels = new BitSet();
+	private final HashMap<String, IntList> toIndex = new HashMap<String, IntList>();
+	private final HashMap<String, IntList> fromIndex = new HashMap<String, IntList>();
+	/** Every event as (epoch day << 32 | id), sorted so each day is one contiguous run */
+	private long[] byDay = new long[16];
+	private boolean byDaySorted = true;
+	private final HashMap<String, BitSet> priorityIndex = new HashMap<String, BitSet>();
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	EventStore(File source){
+		this.source = source;
+	}
+
+	/**
+	 * Reads every mail and parcel event in the given file into a new store. <br>
+	 * If the file has a snapshot which is up to date the events are read from that, <br>
+	 * otherwise the xml is read and a new snapshot written for next time.
+	 *
+	 * @param filename XML file to read (without the .xml extension)
+	 * @return Store of the events in the file
+	 * @throws IOException
+	 * @throws SAXException
+	 */
+	public static EventStore load(String filename) throws IOException, SAXException{
+		long start = Metrics.start();
+		EventStore store = EventSnapshot.read(filename);
+		if (store != null){
+			LOAD_SNAPSHOT.stop(start);
+			return store;
+		}
+
+		start = Metrics.start();
+		store = loadXML(filename);
+		PARSE.stop(start);
+		try {
+			EventSnapshot.write(store, filename);
+		} catch (IOException e) {
+			// The store is still fine, the next start will just read the xml again
+			e.printStackTrace();
+		}
+		return store;
+	}
+
+	/**
+	 * Reads every mail and parcel event in the given xml file into a new store, <br>
+	 * without looking at or writing a snapshot.
+	 */
+	public static EventStore loadXML(String filename) throws IOException, SAXException{
+		EventStore store = new EventStore(new File(filename + ".xml"));
+		store.markSourceWritten();
+
+		EventReader reader = new EventReader(filename, new String[]{"mail", "parcel"}, TAGS);
+		try {
+			String[] row = new String[TAGS.length];
+			while (reader.next()){
+				for (int i = 0; i < row.length; i++)
+					row[i] = reader.getValue(i);
+				store.add("parcel".equals(reader.getKeyTag()), row);
+			}
+		} finally {
+			reader.close();
+		}
+		return store;
+	}
+
+	/**
+	 * @return true if the file has been changed by something other than this store <br>
+	 * 		   since it was loaded
+	 */
+	public boolean isStale(){
+		return source.length() != sourceLength || source.lastModified() != sourceModified;
+	}
+
+	/**
+	 * Records that the file has been written to by the owner of this store, with <br>
+	 * the same events that were added to the store.
+	 */
+	public void markSourceWritten(){
+		markSource(source.length(), source.lastModified());
+	}
+
+	/**
+	 * Records the length and modification time of the file the events came from.
+	 */
+	void markSource(long length, long modified){
+		sourceLength = length;
+		sourceModified = modified;
+	}
+
+	long getSourceLength(){
+		return sourceLength;
+	}
+
+	long getSourceModified(){
+		return sourceModified;
+	}
+
+	/**
+	 * Adds a mail or parcel event to the store.
+	 *
+	 * @param m Event to add
+	 */
+	public void add(Mail m){
+		lock.writeLock().lock();
+		try {
+			addEvent(m);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds a number of events to the store at once. Queries see either none of them <br>
+	 * or all of them.
+	 *
+	 * @param events Events to add, in order
+	 */
+	public void addAll(List<? extends Mail> events){
+		lock.writeLock().lock();
+		try {
+			for (Mail m: events)
+				addEvent(m);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void addEvent(Mail m){
+		if (m instanceof Parcel){
+			String[] d = ((Parcel)m).getData();
+			add(true, new String[]{d[0], d[1], d[2], d[5], d[3], d[4]});
+		}
+		else {
+			String[] d = m.getData();
+			add(false, new String[]{d[0], d[1], d[2], d[3], null, null});
+		}
+	}
+
+	/**
+	 * @param isParcel Whether the event is a parcel
+	 * @param row Data of the event in the order of TAGS
+	 */
+	private void add(boolean isParcel, String[] row){
+		// Events without the data to build them can't be returned by queries
+		for (int c = 0; c < (isParcel ? TAGS.length : PRIORITY + 1); c++)
+			if (row[c] == null) return;
+		double priority, weight = 0, volume = 0;
+		try {
+			priority = Double.parseDouble(row[PRIORITY]);
+			if (isParcel){
+				weight = Double.parseDouble(row[WEIGHT]);
+				volume = Double.parseDouble(row[VOLUME]);
+			}
+		} catch (NumberFormatException e) { return; }
+
+		add(isParcel, row, EpochDay.parse(row[DAY]), priority, weight, volume);
+	}
+
+	/**
+	 * Adds an event whose numbers have already been read, i.e. from a snapshot.
+	 *
+	 * @param isParcel Whether the event is a parcel
+	 * @param row Data of the event in the order of TAGS
+	 * @param day Day of the event in days since 1/01/1970
+	 */
+	void add(boolean isParcel, String[] row, int day, double priority, double weight, double volume){
+		lock.writeLock().lock();
+		try {
+			addRow(isParcel, row, day, priority, weight, volume);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void addRow(boolean isParcel, String[] row, int day, double priority, double weight, double volume){
+		if (size == columns[0].length){
+			for (int c = 0; c < columns.length; c++)
+				columns[c] = Arrays.copyOf(columns[c], size * 2);
+			epochDays = Arrays.copyOf(epochDays, size * 2);
+			priorities = Arrays.copyOf(priorities, size * 2);
+			weights = Arrays.copyOf(weights, size * 2);
+			volumes = Arrays.copyOf(volumes, size * 2);
+			byDay = Arrays.copyOf(byDay, size * 2);
+		}
+		int id = size++;
+
+		(isParcel ? parcels : mail).set(id);
+		columns[TO][id] = addTo(toIndex, row[TO], id);
+		columns[FROM][id] = addTo(fromIndex, row[FROM], id);
+		columns[DAY][id] = row[DAY];
+		columns[PRIORITY][id] = row[PRIORITY];
+		columns[WEIGHT][id] = row[WEIGHT];
+		columns[VOLUME][id] = row[VOLUME];
+		priorities[id] = priority;
+		weights[id] = weight;
+		volumes[id] = volume;
+
+		epochDays[id] = day;
+		byDay[id] = dayEntry(day, id);
+		// Events mostly arrive in day order, so the index only needs sorting again
+		// when one comes in for an earlier day
+		if (id > 0 && byDay[id] < byDay[id - 1])
+			byDaySorted = false;
+
+		BitSet bits = priorityIndex.get(row[PRIORITY]);
+		if (bits == null) priorityIndex.put(row[PRIORITY], bits = new BitSet());
+		bits.set(id);
+	}
+
+	/**
+	 * Adds the id to the index under value. The key already in the index is returned <br>
+	 * so every event going to the same place shares one String.
+	 */
+	private static String addTo(HashMap<String, IntList> index, String value, int id){
+		IntList ids = index.get(value);
+		if (ids == null){
+			index.put(value, ids = new IntList());
+			ids.key = value;
+		}
+		ids.add(id);
+		return ids.key;
+	}
+
+	private static long dayEntry(int day, int id){
+		return ((long)day << 32) | id;
+	}
+
+	/**
+	 * Takes the read lock, first sorting the day index if events have come in out <br>
+	 * of order since it was last sorted.
+	 */
+	private void lockForQuery(){
+		lock.readLock().lock();
+		if (byDaySorted) return;
+
+		// Sorting changes the index, so it needs the write lock
+		lock.readLock().unlock();
+		lock.writeLock().lock();
+		try {
+			if (!byDaySorted){
+				Arrays.sort(byDay, 0, size);
+				byDaySorted = true;
+			}
+			lock.readLock().lock();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The read lock, for reading the events one by one (i.e. to write a <br>
+	 * 		   snapshot) without any being added part way through
+	 */
+	Lock readLock(){
+		return lock.readLock();
+	}
+
+	/**
+	 * Finds the run of the day index between the two days (inclusive) by binary search. <br>
+	 * The index must be sorted, see lockForQuery.
+	 * @return {start, end} of the run in byDay
+	 */
+	private int[] dayRange(int from, int to){
+		int start = Arrays.binarySearch(byDay, 0, size, dayEntry(from, 0) - 1);
+		int end = Arrays.binarySearch(byDay, 0, size, dayEntry(to, Integer.MAX_VALUE) + 1);
+		// Neither key can be in the index, so binarySearch returns -(insertion point) - 1
+		return new int[]{-start - 1, -end - 1};
+	}
+
+	/**
+	 * Method which finds all mail and parcel events on or between two days.
+	 *
+	 * @param from First day, in days since 1/01/1970
+	 * @param to Last day, in days since 1/01/1970
+	 * @return List of events sorted by day. Events on the same day are in the order they <br>
+	 * 		   were added
+	 */
+	public ArrayList<Mail> getBetweenDays(int from, int to){
+		if (from > to){
+			int temp = from;
+			from = to;
+			to = temp;
+		}
+		ArrayList<Mail> list = new ArrayList<Mail>();
+		if (from == EpochDay.INVALID) return list;
+		lockForQuery();
+		try {
+			int[] range = dayRange(from, to);
+			for (int i = range[0]; i < range[1]; i++)
+				list.add(build((int)byDay[i]));
+		} finally {
+			lock.readLock().unlock();
+		}
+		return list;
+	}
+
+	/**
+	 * Method which finds one page of the mail and parcel events on or between two <br>
+	 * days, in the same order as getBetweenDays. The cursor is the day and id of the <br>
+	 * last event of the page, so paging carries on from the right place even if <br>
+	 * events are added in between.
+	 *
+	 * @param from First day, in days since 1/01/1970
+	 * @param to Last day, in days since 1/01/1970
+	 * @param after getNext() of the page before, or FIRST
+	 * @param limit Most events to return
+	 * @return The page
+	 */
+	public Page<Mail> getDayPage(int from, int to, long after, int limit){
+		if (from > to){
+			int temp = from;
+			from = to;
+			to = temp;
+		}
+		ArrayList<Mail> list = new ArrayList<Mail>();
+		if (from == EpochDay.INVALID) return new Page<Mail>(list, after, false);
+		lockForQuery();
+		try {
+			int[] range = dayRange(from, to);
+			int i = range[0];
+			if (after != FIRST){
+				int at = Arrays.binarySearch(byDay, range[0], range[1], after);
+				i = at >= 0 ? at + 1 : Math.max(range[0], -at - 1);
+			}
+			long last = after;
+			for (; i < range[1] && list.size() < limit; i++){
+				list.add(build((int)byDay[i]));
+				last = byDay[i];
+			}
+			return new Page<Mail>(list, last, i < range[1]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method which finds the events on or between two days by their place in the <br>
+	 * day order, for showing a long history a screen at a time. Finding the start <br>
+	 * of the page takes the same time wherever it is.
+	 *
+	 * @param from First day, in days since 1/01/1970
+	 * @param to Last day, in days since 1/01/1970
+	 * @param offset Number of events to skip
+	 * @param limit Most events to return
+	 * @return List of events sorted by day
+	 */
+	public ArrayList<Mail> getBetweenDays(int from, int to, int offset, int limit){
+		ArrayList<Mail> list = new ArrayList<Mail>();
+		if (from == EpochDay.INVALID || to == EpochDay.INVALID) return list;
+		lockForQuery();
+		try {
+			int[] range = dayRange(Math.min(from, to), Math.max(from, to));
+			int end = (int)Math.min(range[1], (long)range[0] + offset + limit);
+			for (int i = range[0] + offset; i < end; i++)
+				list.add(build((int)byDay[i]));
+		} finally {
+			lock.readLock().unlock();
+		}
+		return list;
+	}
+
+	/**
+	 * @param from First day, in days since 1/01/1970
+	 * @param to Last day, in days since 1/01/1970
+	 * @return Number of events on or between the two days
+	 */
+	public int countBetweenDays(int from, int to){
+		if (from == EpochDay.INVALID || to == EpochDay.INVALID) return 0;
+		lockForQuery();
+		try {
+			int[] range = dayRange(Math.min(from, to), Math.max(from, to));
+			return range[1] - range[0];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method which finds events by their place in the day order of every event in <br>
+	 * the store, for showing the whole history a screen at a time. Events whose day <br>
+	 * couldn't be read come after all the others, in the order they were added, so <br>
+	 * there are size() places in all.
+	 *
+	 * @param offset Number of events to skip
+	 * @param limit Most events to return
+	 * @return List of events sorted by day
+	 */
+	public ArrayList<Mail> getInDayOrder(int offset, int limit){
+		ArrayList<Mail> list = new ArrayList<Mail>();
+		lockForQuery();
+		try {
+			// INVALID sorts before every real day, so those events are at the front of the index
+			int undated = -Arrays.binarySearch(byDay, 0, size, dayEntry(EpochDay.INVALID, Integer.MAX_VALUE) + 1) - 1;
+			int end = (int)Math.min(size, (long)offset + limit);
+			for (int i = Math.max(offset, 0); i < end; i++)
+				list.add(build((int)byDay[(i + undated) % size]));
+		} finally {
+			lock.readLock().unlock();
+		}
+		return list;
+	}
+
+	/**
+	 * Creates a Mail or Parcel with the data of the event.
+	 */
+	private Mail build(int id){
+		if (parcels.get(id))
+			return new Parcel(columns[DAY][id], columns[TO][id], columns[FROM][id],
+					columns[WEIGHT][id], columns[VOLUME][id], columns[PRIORITY][id]);
+		return new Mail(columns[DAY][id], columns[TO][id], columns[FROM][id], columns[PRIORITY][id]);
+	}
+
+	/**
+	 * Method which finds all mail events with the given conditions, like <br>
+	 * {@link XMLWorker#getMail(String[])}.
+	 *
+	 * @param match Conditions in the order {"day", "to", "from", "priority"}, null for none
+	 * @return List of mail matching every condition, in the order they were added
+	 */
+	public ArrayList<Mail> getMail(String[] match){
+		ArrayList<Mail> list = new ArrayList<Mail>();
+		lockForQuery();
+		try {
+			for (int id: select(mail, MAIL_MATCH, match))
+				list.add(build(id));
+		} finally {
+			lock.readLock().unlock();
+		}
+		return list;
+	}
+
+	/**
+	 * Method which finds all parcel events with the given conditions, like <br>
+	 * {@link XMLWorker#getParcels(String[])}.
+	 *
+	 * @param match Conditions in the order {"day", "to", "from", "weight", "volume", "priority"}, null for none
+	 * @return List of parcels matching every condition, in the order they were added
+	 */
+	public ArrayList<Parcel> getParcels(String[] match){
+		ArrayList<Parcel> list = new ArrayList<Parcel>();
+		lockForQuery();
+		try {
+			for (int id: select(parcels, PARCEL_MATCH, match))
+				list.add((Parcel)build(id));
+		} finally {
+			lock.readLock().unlock();
+		}
+		return list;
+	}
+
+	/**
+	 * Method which finds one page of the mail events with the given conditions, in <br>
+	 * the order they were added. Only the events up to the end of the page are looked <br>
+	 * at, and only the events on the page are built, however many match.
+	 *
+	 * @param match Conditions in the order {"day", "to", "from", "priority"}, null for none
+	 * @param after getNext() of the page before, or FIRST
+	 * @param limit Most events to return
+	 * @return The page
+	 */
+	public Page<Mail> getMailPage(String[] match, long after, int limit){
+		ArrayList<Mail> list = new ArrayList<Mail>();
+		lockForQuery();
+		try {
+			int[] ids = selectPage(mail, MAIL_MATCH, match, after, limit + 1);
+			for (int i = 0; i < ids.length && i < limit; i++)
+				list.add(build(ids[i]));
+			return new Page<Mail>(list, list.isEmpty() ? after : ids[list.size() - 1], ids.length > limit);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method which finds one page of the parcel events with the given conditions, <br>
+	 * see getMailPage.
+	 *
+	 * @param match Conditions in the order {"day", "to", "from", "weight", "volume", "priority"}, null for none
+	 * @param after getNext() of the page before, or FIRST
+	 * @param limit Most events to return
+	 * @return The page
+	 */
+	public Page<Parcel> getParcelPage(String[] match, long after, int limit){
+		ArrayList<Parcel> list = new ArrayList<Parcel>();
+		lockForQuery();
+		try {
+			int[] ids = selectPage(parcels, PARCEL_MATCH, match, after, limit + 1);
+			for (int i = 0; i < ids.length && i < limit; i++)
+				list.add((Parcel)build(ids[i]));
+			return new Page<Parcel>(list, list.isEmpty() ? after : ids[list.size() - 1], ids.length > limit);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds the ids of the events of a kind which match every condition. <br>
+	 * The smallest of the to, from and day lists is used to pick the events to <br>
+	 * look at, and each of those is then checked against the other conditions.
+	 */
+	private int[] select(BitSet kind, int[] matchColumns, String[] match){
+		Plan plan = plan(matchColumns, match);
+		if (plan == null) return new int[0];
+
+		// Check the candidates a chunk at a time, in parallel for big stores
+		final IntList candidates = plan.driver;
+		final BitSet fKind = kind, fPrio = plan.prio;
+		final String[] fCond = plan.cond;
+		IntList driver = plan.driver;
+		List<IntList> parts = ParallelScan.run(driver != null ? driver.size : size, new ParallelScan.Task<IntList>(){
+			public IntList scan(int from, int to){
+				IntList part = new IntList();
+				if (candidates != null){
+					for (int i = from; i < to; i++){
+						int id = candidates.ids[i];
+						if (fKind.get(id) && (fPrio == null || fPrio.get(id)) && matches(id, fCond)) part.add(id);
+					}
+				}
+				else {
+					BitSet set = fPrio == null ? fKind : fPrio;
+					for (int id = set.nextSetBit(from); id >= 0 && id < to; id = set.nextSetBit(id + 1))
+						if (fKind.get(id) && matches(id, fCond)) part.add(id);
+				}
+				return part;
+			}
+		});
+
+		IntList result = new IntList();
+		for (IntList part: parts)
+			result.addAll(part);
+		return result.toArray();
+	}
+
+	/**
+	 * Finds the first ids after the cursor of the events of a kind which match every <br>
+	 * condition, looking at the candidates in order and stopping once there are enough.
+	 */
+	private int[] selectPage(BitSet kind, int[] matchColumns, String[] match, long after, int limit){
+		Plan plan = plan(matchColumns, match);
+		if (plan == null) return new int[0];
+		int start = after == FIRST ? 0 : (int)Math.min(Integer.MAX_VALUE, after + 1);
+
+		IntList page = new IntList();
+		if (plan.driver != null){
+			// Candidate lists are in increasing order of id
+			int i = Arrays.binarySearch(plan.driver.ids, 0, plan.driver.size, start);
+			for (i = i >= 0 ? i : -i - 1; i < plan.driver.size && page.size < limit; i++){
+				int id = plan.driver.ids[i];
+				if (kind.get(id) && (plan.prio == null || plan.prio.get(id)) && matches(id, plan.cond)) page.add(id);
+			}
+		}
+		else {
+			BitSet set = plan.prio == null ? kind : plan.prio;
+			for (int id = set.nextSetBit(start); id >= 0 && id < size && page.size < limit; id = set.nextSetBit(id + 1))
+				if (kind.get(id) && matches(id, plan.cond)) page.add(id);
+		}
+		return page.toArray();
+	}
+
+	/**
+	 * How a query will find its events: the conditions by column, the smallest list <br>
+	 * of candidates (null to look at every event) and the events with the priority.
+	 */
+	private static class Plan {
+		String[] cond;
+		IntList driver;
+		BitSet prio;
+	}
+
+	/**
+	 * @return The plan of a query, or null if no event can match it
+	 */
+	private Plan plan(int[] matchColumns, String[] match){
+		Plan plan = new Plan();
+		String[] cond = plan.cond = new String[TAGS.length];
+		for (int i = 0; i < matchColumns.length; i++)
+			cond[matchColumns[i]] = match[i];
+
+		IntList driver = null;
+		if (cond[TO] != null){
+			driver = smallest(driver, toIndex.get(cond[TO]));
+			if (driver == null) return null;
+		}
+		if (cond[FROM] != null){
+			driver = smallest(driver, fromIndex.get(cond[FROM]));
+			if (driver == null) return null;
+		}
+		// A day that can't be read is left to the string check
+		if (cond[DAY] != null && EpochDay.parse(cond[DAY]) != EpochDay.INVALID){
+			int day = EpochDay.parse(cond[DAY]);
+			int[] range = dayRange(day, day);
+			if (range[0] == range[1]) return null;
+			if (driver == null || range[1] - range[0] < driver.size){
+				driver = new IntList();
+				for (int i = range[0]; i < range[1]; i++)
+					driver.add((int)byDay[i]);
+			}
+		}
+		plan.driver = driver;
+
+		if (cond[PRIORITY] != null){
+			plan.prio = priorityIndex.get(cond[PRIORITY]);
+			if (plan.prio == null) return null;
+		}
+		return plan;
+	}
+
+	/**
+	 * Returns the shorter list, or null if the new list is missing (nothing matches).
+	 */
+	private static IntList smallest(IntList current, IntList ids){
+		if (ids == null) return null;
+		return current == null || ids.size < current.size ? ids : current;
+	}
+
+	private boolean matches(int id, String[] cond){
+		for (int c = 0; c < cond.length; c++)
+			if (cond[c] != null && !cond[c].equals(columns[c][id])) return false;
+		return true;
+	}
+
+	/**
+	 * Copies every event in the store into a column by column batch, in the order <br>
+	 * they were added.
+	 *
+	 * @return Batch of every event
+	 */
+	public EventBatch toBatch(){
+		lock.readLock().lock();
+		try {
+			EventBatch.Builder b = new EventBatch.Builder(size);
+			for (int id = 0; id < size; id++)
+				b.add(epochDays[id], columns[TO][id], columns[FROM][id], priorities[id], weights[id], volumes[id], parcels.get(id));
+			return b.build();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param from Id of the first event
+	 * @param to One past the id of the last event
+	 * @return The events, in the order they were added
+	 */
+	ArrayList<Mail> getRange(int from, int to){
+		lock.readLock().lock();
+		try {
+			ArrayList<Mail> list = new ArrayList<Mail>();
+			for (int id = from; id < Math.min(to, size); id++)
+				list.add(build(id));
+			return list;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	boolean isParcel(int id){
+		return parcels.get(id);
+	}
+
+	/**
+	 * @param column One of DAY, TO, FROM, PRIORITY, WEIGHT or VOLUME
+	 * @return The event's data for that column as it was in the file
+	 */
+	String getValue(int column, int id){
+		return columns[column][id];
+	}
+
+	int getEpochDay(int id){
+		return epochDays[id];
+	}
+
+	double getPriority(int id){
+		return priorities[id];
+	}
+
+	double getWeight(int id){
+		return weights[id];
+	}
+
+	double getVolume(int id){
+		return volumes[id];
+	}
+
+	/**
+	 * @return Number of events in the store
+	 */
+	public int size(){
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * One page of the events a query found.
+	 */
+	public static class Page<T> {
+		private final ArrayList<T> items;
+		private final long next;
+		private final boolean more;
+
+		Page(ArrayList<T> items, long next, boolean more){
+			this.items = items;
+			this.next = next;
+			this.more = more;
+		}
+
+		/**
+		 * @return Events on the page, in order
+		 */
+		public ArrayList<T> getItems() {
+			return items;
+		}
+
+		/**
+		 * @return Cursor to ask for the next page with
+		 */
+		public long getNext() {
+			return next;
+		}
+
+		/**
+		 * @return false if this is the last page
+		 */
+		public boolean hasMore() {
+			return more;
+		}
+	}
+
+	/**
+	 * Growable list of event ids. Ids are always added in increasing order.
+	 */
+	static class IntList {
+		String key;
+		int[] ids = new int[4];
+		int size;
+
+		void add(int id){
+			if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = id;
+		}
+
+		void addAll(IntList other){
+			if (size + other.size > ids.length) ids = Arrays.copyOf(ids, Math.max(size + other.size, size * 2));
+			System.arraycopy(other.ids, 0, ids, size, other.size);
+			size += other.size;
+		}
+
+		int[] toArray(){
+			return Arrays.copyOf(ids, size);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package file;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue which writes items from any number of threads together, so many writes <br>
+ * share one write (and fsync) of the file. <br>
+ * A single thread takes the first item waiting, then keeps taking items until the <br>
+ * window has passed or maxItems have been taken, and writes them all at once. <br>
+ * Each caller gets a Future which completes once its item is written, or fails with <br>
+ * the error the write failed with. <br>
+ * The window is only waited for while items are arriving together, that is while <br>
+ * the last group had more than one item. A caller writing on its own has its items <br>
+ * written straight away.
+ */
+public class GroupCommit<T> {
+
+	/**
+	 * Writes a group of items.
+	 */
+	public interface Writer<T> {
+		/**
+		 * @param items Items to write, in the order they were submitted
+		 * @throws Exception if none of the items could be written
+		 */
+		void write(List<T> items) throws Exception;
+	}
+
+	private final String name;
+	private final Writer<T> writer;
+	private final LinkedBlockingQueue<Pending<T>> queue = new LinkedBlockingQueue<Pending<T>>();
+	private volatile long windowNanos;
+	private volatile int maxItems;
+	private Thread thread;
+
+	private long groups;
+	private long items;
+	/** Size of the last group written, only used by the writing thread */
+	private int lastGroupSize;
+
+	/**
+	 * @param name Name of the thread which does the writing
+	 * @param writer Writes each group
+	 * @param window Longest time in microseconds to wait for more items after the first
+	 * @param maxItems Most items to write at once
+	 */
+	public GroupCommit(String name, Writer<T> writer, long window, int maxItems){
+		this.name = name;
+		this.writer = writer;
+		setWindow(window, maxItems);
+	}
+
+	/**
+	 * @param window Longest time in microseconds to wait for more items after the <br>
+	 * 		  first. 0 writes whatever is waiting straight away
+	 * @param maxItems Most items to write at once
+	 */
+	public void setWindow(long window, int maxItems){
+		if (window < 0 || maxItems < 1) throw new IllegalArgumentException("Bad window " + window + "us, " + maxItems);
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(window);
+		this.maxItems = maxItems;
+	}
+
+	/**
+	 * Queues an item to be written.
+	 *
+	 * @param item Item to write
+	 * @return Future which completes when the item has been written
+	 */
+	public Future<Void> submit(T item){
+		Pending<T> p = new Pending<T>(item);
+		start();
+		queue.add(p);
+		return p;
+	}
+
+	private synchronized void start(){
+		if (thread != null) return;
+		thread = new Thread(name){
+			public void run(){
+				while (true){
+					try {
+						writeGroup();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Waits for an item, gathers the group it starts and writes it.
+	 */
+	private void writeGroup() throws InterruptedException{
+		List<Pending<T>> group = new ArrayList<Pending<T>>();
+		group.add(queue.take());
+		int max = maxItems;
+		long deadline = System.nanoTime() + (lastGroupSize > 1 ? windowNanos : 0);
+		while (group.size() < max){
+			long left = deadline - System.nanoTime();
+			Pending<T> p = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+			if (p == null) break;
+			group.add(p);
+		}
+
+		List<T> toWrite = new ArrayList<T>(group.size());
+		for (Pending<T> p: group) toWrite.add(p.item);
+		Throwable failure = null;
+		try {
+			writer.write(toWrite);
+		} catch (Throwable e) {
+			failure = e;
+		}
+		lastGroupSize = group.size();
+		synchronized (this){
+			groups++;
+			items += group.size();
+		}
+		for (Pending<T> p: group) p.complete(failure);
+	}
+
+	/**
+	 * @return Number of groups written so far
+	 */
+	public synchronized long getGroupCount(){
+		return groups;
+	}
+
+	/**
+	 * @return Number of items written so far
+	 */
+	public synchronized long getItemCount(){
+		return items;
+	}
+
+	/**
+	 * An item waiting to be written, and the Future its caller waits on.
+	 */
+	private static class Pending<T> extends FutureTask<Void> {
+		private static final Callable<Void> NOTHING = new Callable<Void>(){
+			public Void call(){ return null; }
+		};
+
+		final T item;
+
+		Pending(T item){
+			super(NOTHING);
+			this.item = item;
+		}
+
+		void complete(Throwable failure){
+			if (failure == null) set(null);
+			else setException(failure);
+		}
+	}
+}
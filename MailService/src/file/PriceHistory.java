@@ -0,0 +1,294 @@
+package file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xml.sax.SAXException;
+
+import metrics.Histogram;
+import metrics.Metrics;
+import service.EpochDay;
+import service.Leg;
+import service.RouteGraph;
+import service.TransportType;
+
+/**
+ * In memory copy of the price and transport cost changes in costevents.xml. <br>
+ * Each change takes effect from a day and lasts until the next change to the same <br>
+ * thing. The changes to each route are kept sorted by day, so the one in force on <br>
+ * any day is found with a binary search instead of a scan of the whole history.
+ *
+ * A price event sets the rate per km customers are charged on a route for a priority:
+ *
+ * &lt;price&gt;&lt;day&gt;01/01/2013&lt;/day&gt;&lt;from&gt;Wellington&lt;/from&gt;&lt;to&gt;Sydney&lt;/to&gt; <br>
+ * &lt;priority&gt;1&lt;/priority&gt;&lt;rate&gt;1.5&lt;/rate&gt;&lt;/price&gt;
+ *
+ * A cost event sets the cost per kg and duration of a leg between two depots:
+ *
+ * &lt;cost&gt;&lt;day&gt;01/01/2013&lt;/day&gt;&lt;from&gt;Wellington&lt;/from&gt;&lt;to&gt;Sydney&lt;/to&gt; <br>
+ * &lt;type&gt;AIR&lt;/type&gt;&lt;cost&gt;3.5&lt;/cost&gt;&lt;duration&gt;3&lt;/duration&gt;&lt;/cost&gt;
+ *
+ * Two changes on the same day are applied in the order they are in the file.
+ */
+public class PriceHistory {
+
+	private static final Histogram PARSE = Metrics.histogram("prices.parse");
+
+	/** Tags of every event, in the order they are read */
+	static final String[] TAGS = new String[]{"day", "from", "to", "priority", "rate", "type", "cost", "duration"};
+	static final int DAY = 0, FROM = 1, TO = 2, PRIORITY = 3, RATE = 4, TYPE = 5, COST = 6, DURATION = 7;
+
+	private final File source;
+	private long sourceLength;
+	private long sourceModified;
+
+	private final HashMap<Key, Series> prices = new HashMap<Key, Series>();
+	private final HashMap<Key, Series> costs = new HashMap<Key, Series>();
+	private int version;
+
+	PriceHistory(File source){
+		this.source = source;
+	}
+
+	/**
+	 * Reads every price and cost event in the given file into a new history.
+	 *
+	 * @param filename XML file to read (without the .xml extension)
+	 * @return History of the events in the file
+	 * @throws IOException
+	 * @throws SAXException
+	 */
+	public static PriceHistory load(String filename) throws IOException, SAXException{
+		long start = Metrics.start();
+		PriceHistory history = new PriceHistory(new File(filename + ".xml"));
+		history.markSourceWritten();
+
+		EventReader reader = new EventReader(filename, new String[]{"price", "cost"}, TAGS);
+		try {
+			while (reader.next()){
+				try {
+					int day = EpochDay.parse(reader.getValue(DAY));
+					if (day == EpochDay.INVALID) throw new IllegalArgumentException("Bad day " + reader.getValue(DAY));
+					if ("price".equals(reader.getKeyTag()))
+						history.addPrice(day, reader.getValue(FROM), reader.getValue(TO),
+								Double.parseDouble(reader.getValue(PRIORITY)), Double.parseDouble(reader.getValue(RATE)));
+					else
+						history.addCost(day, reader.getValue(FROM), reader.getValue(TO), TransportType.valueOf(reader.getValue(TYPE)),
+								Double.parseDouble(reader.getValue(COST)), Double.parseDouble(reader.getValue(DURATION)));
+				} catch (RuntimeException e) {
+					// One bad event shouldn't lose the rest of the history
+					e.printStackTrace();
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		PARSE.stop(start);
+		return history;
+	}
+
+	/**
+	 * @return true if the file has been changed by something other than this history <br>
+	 * 		   since it was loaded
+	 */
+	public boolean isStale(){
+		return source.length() != sourceLength || source.lastModified() != sourceModified;
+	}
+
+	/**
+	 * Records that the file has been written to by the owner of this history, with <br>
+	 * the same events that were added to it.
+	 */
+	public void markSourceWritten(){
+		sourceLength = source.length();
+		sourceModified = source.lastModified();
+	}
+
+	/**
+	 * @return Number of events added to the history. Goes up by one with every event, <br>
+	 * 		   so anything worked out from the history can tell when to redo it
+	 */
+	public synchronized int getVersion(){
+		return version;
+	}
+
+	/**
+	 * @return true if there has been any price event
+	 */
+	public synchronized boolean hasPrices(){
+		return !prices.isEmpty();
+	}
+
+	/**
+	 * Records a change to the rate customers are charged.
+	 *
+	 * @param day Epoch day the rate takes effect
+	 * @param from Origin
+	 * @param to Destination
+	 * @param priority Priority the rate is for
+	 * @param rate Rate per km
+	 */
+	public synchronized void addPrice(int day, String from, String to, double priority, double rate){
+		series(prices, new Key(from, to, priority, null)).add(day, rate, 0);
+		version++;
+	}
+
+	/**
+	 * Records a change to what a leg costs to send mail along.
+	 *
+	 * @param day Epoch day the cost takes effect
+	 * @param from Origin of the leg
+	 * @param to Destination of the leg
+	 * @param type Transport the leg uses
+	 * @param cost Cost per kg
+	 * @param duration Duration in hours
+	 */
+	public synchronized void addCost(int day, String from, String to, TransportType type, double cost, double duration){
+		series(costs, new Key(from, to, 0, type)).add(day, cost, duration);
+		version++;
+	}
+
+	/**
+	 * @return Rate per km on the route for the priority in force on the day, or NaN <br>
+	 * 		   if there has been no price event for it by then
+	 */
+	public synchronized double rateOn(String from, String to, double priority, int day){
+		Series s = prices.get(new Key(from, to, priority, null));
+		int i = s == null ? -1 : s.find(day);
+		return i < 0 ? Double.NaN : s.a[i];
+	}
+
+	/**
+	 * @return Day the rate in force on the given day took effect, or EpochDay.INVALID <br>
+	 * 		   if there has been no price event for it by then. Every day with the same <br>
+	 * 		   answer has the same rate
+	 */
+	public synchronized int rateSince(String from, String to, double priority, int day){
+		Series s = prices.get(new Key(from, to, priority, null));
+		int i = s == null ? -1 : s.find(day);
+		return i < 0 ? EpochDay.INVALID : s.days[i];
+	}
+
+	/**
+	 * @return Cost per kg of the leg in force on the day, or NaN if there has been <br>
+	 * 		   no cost event for it by then
+	 */
+	public synchronized double costOn(String from, String to, TransportType type, int day){
+		Series s = costs.get(new Key(from, to, 0, type));
+		int i = s == null ? -1 : s.find(day);
+		return i < 0 ? Double.NaN : s.a[i];
+	}
+
+	/**
+	 * @return Duration in hours of the leg in force on the day, or NaN if there has <br>
+	 * 		   been no cost event for it by then
+	 */
+	public synchronized double durationOn(String from, String to, TransportType type, int day){
+		Series s = costs.get(new Key(from, to, 0, type));
+		int i = s == null ? -1 : s.find(day);
+		return i < 0 ? Double.NaN : s.b[i];
+	}
+
+	/**
+	 * Sets the cost and duration of every leg of the graph to those in force on the <br>
+	 * given day. Legs without a cost event by then are left as they are.
+	 *
+	 * @param graph Graph to update
+	 * @param day Epoch day
+	 */
+	public synchronized void applyCosts(RouteGraph graph, int day){
+		for (Map.Entry<Key, Series> e: costs.entrySet()){
+			int i = e.getValue().find(day);
+			if (i < 0) continue;
+			Key k = e.getKey();
+			double cost = e.getValue().a[i];
+			double duration = e.getValue().b[i];
+			for (Leg old: graph.getLegs(k.from, k.to)){
+				if (old.getType() != k.type || (old.getCost() == cost && old.getDuration() == duration)) continue;
+				graph.replaceLeg(old, new Leg(old.getFrom(), old.getTo(), old.getType(), old.getDistance(), cost, duration));
+			}
+		}
+	}
+
+	private static Series series(HashMap<Key, Series> map, Key key){
+		Series s = map.get(key);
+		if (s == null){
+			s = new Series();
+			map.put(key, s);
+		}
+		return s;
+	}
+
+	/**
+	 * Changes to one thing, sorted by the day they take effect.
+	 */
+	private static class Series {
+		int size;
+		int[] days = new int[4];
+		double[] a = new double[4];
+		double[] b = new double[4];
+
+		/**
+		 * Adds a change after any others on the same day. Changes almost always come <br>
+		 * in order of day, so this is nearly always an append.
+		 */
+		void add(int day, double valueA, double valueB){
+			if (size == days.length){
+				days = Arrays.copyOf(days, size * 2);
+				a = Arrays.copyOf(a, size * 2);
+				b = Arrays.copyOf(b, size * 2);
+			}
+			int at = find(day) + 1;
+			System.arraycopy(days, at, days, at + 1, size - at);
+			System.arraycopy(a, at, a, at + 1, size - at);
+			System.arraycopy(b, at, b, at + 1, size - at);
+			days[at] = day;
+			a[at] = valueA;
+			b[at] = valueB;
+			size++;
+		}
+
+		/**
+		 * @return Index of the last change on or before the day, or -1 if there is none
+		 */
+		int find(int day){
+			int lo = 0, hi = size;
+			while (lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if (days[mid] <= day) lo = mid + 1;
+				else hi = mid;
+			}
+			return lo - 1;
+		}
+	}
+
+	private static class Key {
+		final String from;
+		final String to;
+		final double priority;
+		final TransportType type;
+
+		Key(String from, String to, double priority, TransportType type){
+			this.from = from == null ? "" : from.trim();
+			this.to = to == null ? "" : to.trim();
+			this.priority = priority;
+			this.type = type;
+		}
+
+		public boolean equals(Object o){
+			if (!(o instanceof Key)) return false;
+			Key k = (Key)o;
+			return from.equals(k.from) && to.equals(k.to) && Double.compare(priority, k.priority) == 0 && type == k.type;
+		}
+
+		public int hashCode(){
+			long p = Double.doubleToLongBits(priority);
+			int h = from.hashCode() * 31 + to.hashCode();
+			h = h * 31 + (int)(p ^ (p >>> 32));
+			return h * 31 + (type == null ? 0 : type.hashCode());
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import service.EpochDay;
+import service.Mail;
+import service.Parcel;
+
+/**
+ * Query which runs straight over the memory mapped rows of an EventSnapshot. <br>
+ * Conditions on places are turned into string indexes once, by comparing bytes in <br>
+ * the string table, and every row is then checked using only the ints and doubles <br>
+ * in the mapped file. Mail and Parcel objects are only created for matching rows. <br>
+ * A query from XMLWorker.querySnapshot also checks the events added to the store <br>
+ * since the snapshot was written, so it is up to date without writing a new one.
+ *
+ * An example will illustrate how it is used.
+ *
+ * ArrayList<Mail> found = new SnapshotQuery("mailevents").parcels().to("Timbuktu") <br>
+ * 		.priority(1).between("01/01/2013", "31/12/2013").run();
+ */
+public class SnapshotQuery {
+
+	private static final int ANY = -2;
+
+	private final ByteBuffer buf;
+	private final int rows;
+	private final int rowsStart;
+	/** Offset of each string in the string table */
+	private final int[] stringOffsets;
+	/** Store the snapshot is the start of, whose later events are checked too, or null */
+	private final EventStore tail;
+
+	private int kind = -1;
+	private String to;
+	private String from;
+	private double priority = Double.NaN;
+	private int firstDay = Integer.MIN_VALUE;
+	private int lastDay = Integer.MAX_VALUE;
+	private boolean badDate;
+
+	/**
+	 * Maps the snapshot of the given xml file. The snapshot must exist and be valid, <br>
+	 * see {@link XMLWorker#querySnapshot()} for one which is always up to date.
+	 *
+	 * @param filename XML file the snapshot is of (without the .xml extension)
+	 * @throws IOException if there is no valid snapshot
+	 */
+	public SnapshotQuery(String filename) throws IOException{
+		this(new Mapping(EventSnapshot.fileFor(filename)), null);
+	}
+
+	/**
+	 * @param mapping Snapshot to query
+	 * @param tail Store whose first events are the ones in the snapshot, to check the <br>
+	 * 		  events added after them too, or null
+	 */
+	SnapshotQuery(Mapping mapping, EventStore tail){
+		this.buf = mapping.buf;
+		this.rows = mapping.rows;
+		this.rowsStart = mapping.rowsStart;
+		this.stringOffsets = mapping.stringOffsets;
+		this.tail = tail;
+	}
+
+	/**
+	 * A mapped snapshot whose checksum has been checked, so any number of queries <br>
+	 * can be run over it without reading the whole file again.
+	 */
+	static class Mapping {
+		final ByteBuffer buf;
+		final int rows;
+		final int rowsStart;
+		final int[] stringOffsets;
+
+		/**
+		 * @throws IOException if the file isn't a valid snapshot
+		 */
+		Mapping(File file) throws IOException{
+			ByteBuffer mapped = file.exists() ? EventSnapshot.map(file) : null;
+			if (mapped == null || !EventSnapshot.isValid(mapped))
+				throw new IOException("No valid snapshot " + file);
+			this.buf = mapped;
+			this.rows = mapped.getInt(28);
+			this.stringOffsets = new int[mapped.getInt(24)];
+			int pos = EventSnapshot.HEADER_BYTES;
+			for (int i = 0; i < stringOffsets.length; i++){
+				stringOffsets[i] = pos;
+				pos += 4 + mapped.getInt(pos);
+			}
+			this.rowsStart = pos;
+		}
+	}
+
+	/** Only return mail */
+	public SnapshotQuery mail(){
+		kind = 0;
+		return this;
+	}
+
+	/** Only return parcels */
+	public SnapshotQuery parcels(){
+		kind = 1;
+		return this;
+	}
+
+	/** Only return events to the given place */
+	public SnapshotQuery to(String to){
+		this.to = to;
+		return this;
+	}
+
+	/** Only return events from the given place */
+	public SnapshotQuery from(String from){
+		this.from = from;
+		return this;
+	}
+
+	/** Only return events with the given priority. "1" and "1.0" are the same priority */
+	public SnapshotQuery priority(double priority){
+		this.priority = priority;
+		return this;
+	}
+
+	/**
+	 * Only return events on or between the two dates.
+	 * @param date1 Date in format dd/mm/yyyy
+	 * @param date2 Date in format dd/mm/yyyy
+	 */
+	public SnapshotQuery between(String date1, String date2){
+		int d1 = EpochDay.parse(date1);
+		int d2 = EpochDay.parse(date2);
+		badDate = d1 == EpochDay.INVALID || d2 == EpochDay.INVALID;
+		firstDay = Math.min(d1, d2);
+		lastDay = Math.max(d1, d2);
+		return this;
+	}
+
+	/**
+	 * Runs the query.
+	 * @return Matching events in the order they are in the file
+	 */
+	public ArrayList<Mail> run(){
+		ArrayList<Mail> found = new ArrayList<Mail>();
+		if (badDate) return found;
+
+		int toCode = to == null ? ANY : findString(to);
+		int fromCode = from == null ? ANY : findString(from);
+		// A place no event in the snapshot has can still be in the newer events
+		if (toCode != -1 && fromCode != -1) scan(toCode, fromCode, found);
+		if (tail != null) scanTail(found);
+		return found;
+	}
+
+	private void scan(int toCode, int fromCode, ArrayList<Mail> found){
+		HashMap<Integer, String> decoded = new HashMap<Integer, String>();
+		int pos = rowsStart;
+		for (int i = 0; i < rows; i++, pos += EventSnapshot.ROW_BYTES){
+			if (kind >= 0 && buf.getInt(pos + EventSnapshot.KIND) != kind) continue;
+			int day = buf.getInt(pos + EventSnapshot.EPOCH_DAY);
+			if (day < firstDay || day > lastDay) continue;
+			if (toCode != ANY && code(pos, EventStore.TO) != toCode) continue;
+			if (fromCode != ANY && code(pos, EventStore.FROM) != fromCode) continue;
+			if (!Double.isNaN(priority) && buf.getDouble(pos + EventSnapshot.PRIORITY) != priority) continue;
+
+			found.add(build(pos, decoded));
+		}
+	}
+
+	/**
+	 * Checks the events added to the store after the ones in the snapshot.
+	 */
+	private void scanTail(ArrayList<Mail> found){
+		tail.readLock().lock();
+		try {
+			for (int id = rows; id < tail.size(); id++){
+				if (kind >= 0 && (tail.isParcel(id) ? 1 : 0) != kind) continue;
+				int day = tail.getEpochDay(id);
+				if (day < firstDay || day > lastDay) continue;
+				if (to != null && !to.equals(tail.getValue(EventStore.TO, id))) continue;
+				if (from != null && !from.equals(tail.getValue(EventStore.FROM, id))) continue;
+				if (!Double.isNaN(priority) && tail.getPriority(id) != priority) continue;
+
+				String d = tail.getValue(EventStore.DAY, id);
+				String t = tail.getValue(EventStore.TO, id);
+				String f = tail.getValue(EventStore.FROM, id);
+				String p = tail.getValue(EventStore.PRIORITY, id);
+				if (tail.isParcel(id))
+					found.add(new Parcel(d, t, f, tail.getValue(EventStore.WEIGHT, id), tail.getValue(EventStore.VOLUME, id), p));
+				else found.add(new Mail(d, t, f, p));
+			}
+		} finally {
+			tail.readLock().unlock();
+		}
+	}
+
+	private int code(int pos, int column){
+		return buf.getInt(pos + EventSnapshot.STRINGS + column * 4);
+	}
+
+	/**
+	 * Finds the index of a string by comparing its bytes with the string table.
+	 * @return The index, or -1 if no event uses the string
+	 */
+	private int findString(String s){
+		byte[] target = encode(s);
+		for (int i = 0; i < stringOffsets.length; i++){
+			int pos = stringOffsets[i];
+			if (buf.getInt(pos) != target.length) continue;
+			int k = 0;
+			while (k < target.length && buf.get(pos + 4 + k) == target[k]) k++;
+			if (k == target.length) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Creates the Mail or Parcel of a matching row. Strings are decoded once each.
+	 */
+	private Mail build(int pos, HashMap<Integer, String> decoded){
+		String day = string(code(pos, EventStore.DAY), decoded);
+		String to = string(code(pos, EventStore.TO), decoded);
+		String from = string(code(pos, EventStore.FROM), decoded);
+		String priority = string(code(pos, EventStore.PRIORITY), decoded);
+		if (buf.getInt(pos + EventSnapshot.KIND) == 1)
+			return new Parcel(day, to, from, string(code(pos, EventStore.WEIGHT), decoded),
+					string(code(pos, EventStore.VOLUME), decoded), priority);
+		return new Mail(day, to, from, priority);
+	}
+
+	private String string(int code, HashMap<Integer, String> decoded){
+		String s = decoded.get(code);
+		if (s == null){
+			int pos = stringOffsets[code];
+			byte[] bytes = new byte[buf.getInt(pos)];
+			ByteBuffer b = buf.duplicate();
+			b.position(pos + 4);
+			b.get(bytes);
+			s = decode(bytes);
+			decoded.put(code, s);
+		}
+		return s;
+	}
+
+	private static byte[] encode(String s){
+		try { return s.getBytes("UTF-8"); }
+		catch (UnsupportedEncodingException e) { throw new RuntimeException(e); }
+	}
+
+	private static String decode(byte[] bytes){
+		try { return new String(bytes, "UTF-8"); }
+		catch (UnsupportedEncodingException e) { throw new RuntimeException(e); }
+	}
+}
@@ -0,0 +1,293 @@
+package file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Log of the writes made to an event file, kept next to it (mailevents.xml has <br>
+ * mailevents.wal). Each write is logged, and forced to the disk, before the event <br>
+ * file is touched, so a write cut short by a crash can be done again on the next <br>
+ * start. Once the event file itself has been forced to the disk the log is emptied <br>
+ * (a checkpoint), so it only ever holds the writes since then.
+ *
+ * The layout of the file is:
+ *
+ * int magic, int version, long sequence number of the first record, <br>
+ * each record as int length of its data, int length of the bytes it replaces, <br>
+ * long sequence number, long position in the event file, the data, the bytes it <br>
+ * replaces, int CRC32 of everything in the record after the two lengths.
+ *
+ * The bytes a write replaces are the end of the event file from its position, so <br>
+ * a record says what the file held just before it as well as just after, and a <br>
+ * file which has since been changed by something else can be told apart. <br>
+ * A record which was only partly written, whose checksum doesn't match or whose <br>
+ * sequence number doesn't follow on from the one before is the end of the log. <br>
+ * It and anything after it are cut off when the log is read. A log written by an <br>
+ * older version can't be checked against the file, so it is emptied. <br>
+ * Records are only added while the event file is locked, see EventJournal.
+ */
+public class WriteAheadLog {
+
+	static final int MAGIC = 0x4B50574C; // "KPWL"
+	static final int VERSION = 2;
+	static final int HEADER_BYTES = 4 + 4 + 8;
+	/** Bytes of a record other than its data and the bytes it replaces */
+	static final int RECORD_BYTES = 4 + 4 + 8 + 8 + 4;
+
+	/**
+	 * A write to the event file: data written at position, replacing everything <br>
+	 * after it.
+	 */
+	public static class Record {
+		private final long seq;
+		private final long position;
+		private final byte[] data;
+		private final byte[] replaced;
+
+		Record(long seq, long position, byte[] data, byte[] replaced){
+			this.seq = seq;
+			this.position = position;
+			this.data = data;
+			this.replaced = replaced;
+		}
+
+		public long getSeq() {
+			return seq;
+		}
+
+		public long getPosition() {
+			return position;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * @return The bytes of the event file from position to its end before the <br>
+		 * 		   write
+		 */
+		public byte[] getReplaced() {
+			return replaced;
+		}
+
+		/**
+		 * @return Length of the event file before the write
+		 */
+		public long getLengthBefore() {
+			return position + replaced.length;
+		}
+
+		/**
+		 * @return Length of the event file after the write
+		 */
+		public long getLengthAfter() {
+			return position + data.length;
+		}
+	}
+
+	private final File file;
+	private RandomAccessFile raf;
+	private long nextSeq;
+	private long end;
+	/** Length of the event file after the last record, or -1 if there are none */
+	private long loggedLength = -1;
+
+	/**
+	 * @param file File to keep the log in. It is created on the first write
+	 */
+	public WriteAheadLog(File file){
+		this.file = file;
+	}
+
+	/**
+	 * @param filename Event file the log is of (without the .xml extension)
+	 * @return The log file
+	 */
+	public static File fileFor(String filename){
+		return new File(filename + ".wal");
+	}
+
+	/**
+	 * Logs a write.
+	 *
+	 * @param position Where in the event file the data is to be written
+	 * @param data Bytes to write there
+	 * @param replaced Bytes of the event file from position to its end, which the <br>
+	 * 		  data replaces
+	 * @param sync Whether to force the record to the disk before returning
+	 * @return Sequence number of the record
+	 * @throws IOException
+	 */
+	public synchronized long append(long position, byte[] data, byte[] replaced, boolean sync) throws IOException{
+		open();
+		// Another program may have written to, or emptied, the log since
+		if (raf.length() != end) read();
+		long seq = nextSeq++;
+		ByteBuffer b = ByteBuffer.allocate(RECORD_BYTES + data.length + replaced.length);
+		b.putInt(data.length);
+		b.putInt(replaced.length);
+		b.putLong(seq);
+		b.putLong(position);
+		b.put(data);
+		b.put(replaced);
+		CRC32 crc = new CRC32();
+		crc.update(b.array(), 8, 16 + data.length + replaced.length);
+		b.putInt((int)crc.getValue());
+
+		raf.seek(end);
+		raf.write(b.array());
+		end += b.capacity();
+		loggedLength = position + data.length;
+		if (sync)
+			raf.getChannel().force(false);
+		return seq;
+	}
+
+	/**
+	 * Reads every whole record in the log, cutting off a damaged or partly written <br>
+	 * one at the end.
+	 *
+	 * @return The records, in the order they were written
+	 * @throws IOException if the file is not a log
+	 */
+	public synchronized List<Record> read() throws IOException{
+		open();
+		List<Record> records = new ArrayList<Record>();
+		long length = raf.length();
+		raf.seek(8);
+		long firstSeq = raf.readLong();
+		long pos = HEADER_BYTES;
+		byte[] head = new byte[RECORD_BYTES - 4];
+		CRC32 crc = new CRC32();
+		while (pos + RECORD_BYTES <= length){
+			raf.seek(pos);
+			raf.readFully(head);
+			ByteBuffer h = ByteBuffer.wrap(head);
+			int n = h.getInt();
+			int r = h.getInt();
+			if (n < 0 || r < 0 || pos + RECORD_BYTES + n + r > length) break;
+			byte[] data = new byte[n];
+			byte[] replaced = new byte[r];
+			raf.readFully(data);
+			raf.readFully(replaced);
+			int stored = raf.readInt();
+			crc.reset();
+			crc.update(head, 8, 16);
+			crc.update(data);
+			crc.update(replaced);
+			if ((int)crc.getValue() != stored) break;
+			long seq = h.getLong();
+			if (seq != firstSeq + records.size()) break;
+
+			records.add(new Record(seq, h.getLong(), data, replaced));
+			pos += RECORD_BYTES + n + r;
+		}
+		if (pos < length){
+			raf.setLength(pos);
+			raf.getChannel().force(false);
+		}
+		end = pos;
+		nextSeq = records.isEmpty() ? Math.max(nextSeq, firstSeq) : records.get(records.size() - 1).getSeq() + 1;
+		loggedLength = records.isEmpty() ? -1 : records.get(records.size() - 1).getLengthAfter();
+		return records;
+	}
+
+	/**
+	 * Empties the log. Only to be called once everything logged has been forced out <br>
+	 * to the event file. Sequence numbers carry on from where they were.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint() throws IOException{
+		open();
+		if (end == HEADER_BYTES) return;
+		// Cut the records off first, so a crash part way leaves an empty log
+		raf.setLength(HEADER_BYTES);
+		writeHeader(nextSeq);
+		raf.getChannel().force(false);
+		end = HEADER_BYTES;
+		loggedLength = -1;
+	}
+
+	/**
+	 * @return Bytes of records in the log
+	 */
+	public synchronized long size(){
+		return raf == null ? 0 : end - HEADER_BYTES;
+	}
+
+	/**
+	 * @return Length the event file should be after the last record, or -1 if the <br>
+	 * 		   log is empty
+	 * @throws IOException
+	 */
+	public synchronized long getLoggedLength() throws IOException{
+		open();
+		if (raf.length() != end) read();
+		return loggedLength;
+	}
+
+	/**
+	 * @return Sequence number the next record will be given
+	 */
+	public synchronized long getNextSeq(){
+		return nextSeq;
+	}
+
+	/**
+	 * Closes the file. It is opened again by the next call which needs it.
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException{
+		if (raf == null) return;
+		raf.close();
+		raf = null;
+	}
+
+	/**
+	 * Opens the log, starting a new one if there is none, and finds its end.
+	 */
+	private void open() throws IOException{
+		if (raf != null) return;
+		raf = new RandomAccessFile(file, "rw");
+		if (raf.length() < HEADER_BYTES){
+			raf.setLength(0);
+			writeHeader(0);
+			raf.getChannel().force(false);
+			nextSeq = 0;
+			end = HEADER_BYTES;
+			return;
+		}
+
+		raf.seek(0);
+		if (raf.readInt() != MAGIC){
+			raf.close();
+			raf = null;
+			throw new IOException(file + " is not a write-ahead log");
+		}
+		if (raf.readInt() != VERSION){
+			new IOException(file + " was written by another version, the writes in it are discarded").printStackTrace();
+			raf.setLength(0);
+			writeHeader(0);
+			raf.getChannel().force(false);
+			nextSeq = 0;
+			end = HEADER_BYTES;
+			return;
+		}
+		// Finds the real end, and the sequence number after the last record
+		read();
+	}
+
+	private void writeHeader(long firstSeq) throws IOException{
+		raf.seek(0);
+		raf.writeInt(MAGIC);
+		raf.writeInt(VERSION);
+		raf.writeLong(firstSeq);
+	}
+}
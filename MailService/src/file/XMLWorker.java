@@ -10,17 +10,15 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -28,11 +26,73 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.Metrics;
+import service.Cost;
+import service.EpochDay;
+import service.EventBatch;
+import service.Leg;
 import service.Mail;
+import service.ParallelScan;
 import service.Parcel;
+import service.RateTable;
+import service.RollupCube;
+import service.RouteGraph;
+import service.TransportType;
 
 public class XMLWorker {
 
+	private static final String[] MAIL_TAGS = new String[]{"day", "to", "from", "priority"};
+	private static final String[] PARCEL_TAGS = new String[]{"day", "to", "from", "weight", "volume", "priority"};
+
+	private static final Histogram QUERY = Metrics.histogram("query");
+	private static final Histogram ADD = Metrics.histogram("addMail");
+	private static final Histogram WRITE = Metrics.histogram("write");
+	private static final Counter WRITTEN = Metrics.counter("write.events");
+	private static final Counter ERRORS = Metrics.counter("errors");
+
+	private static final EventJournal mailJournal = new EventJournal("mailevents", "mailevents");
+	private static final GroupCommit<Submission> committer = new GroupCommit<Submission>("mail-committer",
+			new GroupCommit.Writer<Submission>(){
+				public void write(List<Submission> items) throws IOException{
+					List<Mail> batch = new ArrayList<Mail>(items.size());
+					List<double[]> measured = new ArrayList<double[]>(items.size());
+					for (Submission s: items){
+						batch.add(s.mail);
+						measured.add(s.measured);
+					}
+					writeMail(batch, measured);
+				}
+			}, 2000, 256);
+	private static volatile EventStore mailStore;
+	/**
+	 * Held while mailevents.xml is appended to or read into a new store, so appends <br>
+	 * reach the store in the order they are in the file and the file is never read <br>
+	 * half written. The lock on XMLWorker is only taken inside it, for the moment <br>
+	 * the written events are added to the store, so queries never wait on the disk.
+	 */
+	private static final Object mailWriteLock = new Object();
+	/** Set while an append by this program is under way, see getMailStore */
+	private static volatile boolean appending;
+	private static BusinessFigures figures;
+	private static RollupCube[] cubes;
+	private static final EventJournal costJournal = new EventJournal("costevents", "costevents");
+	/** Held while the price history is read or changed. Nothing else is locked inside it */
+	private static final Object priceLock = new Object();
+	private static volatile PriceHistory priceHistory;
+	private static volatile long priceHistoryChecked;
+	/** Graph whose leg costs were last set, and the day and history they were set from */
+	private static volatile RouteGraph costsGraph;
+	private static volatile int costsDay;
+	private static volatile PriceHistory costsHistory;
+	private static volatile long costsChecked;
+	/** Snapshot queries are run over, and the store whose first events are in it */
+	private static SnapshotQuery.Mapping snapshotBase;
+	private static EventStore snapshotBaseStore;
+	private static boolean snapshotRewriting;
+	/** Events added since the snapshot queries are run over before it is rewritten */
+	private static final int SNAPSHOT_TAIL = 1 << 16;
 
 	/**
 	 * Method which given a file name will seek out all tags with the given name
@@ -127,29 +187,6 @@ public class XMLWorker {
 	}
 
 
-	/**
-	 * Method which loads the given xml file, and returns the root of the xml's tree.
-	 * (This is the tag which contains ALL the data).
-	 * @param filename XML File to read
-	 * @return root node
-	 * @throws ParserConfigurationException
-	 * @throws SAXException
-	 * @throws IOException
-	 */
-	private static Document getDocElement(String filename) throws ParserConfigurationException, SAXException, IOException{
-		File file = new File(filename + ".xml");
-
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();		
-		DocumentBuilder db = dbf.newDocumentBuilder();
-		Document doc = db.parse(file);
-		doc.getDocumentElement().normalize();
-
-		//get the root element
-		return doc;		
-	}
-
-	
-	
 	/**
 	 * Method which reads in the list of countries. 
 	 * @return List of countries
@@ -158,52 +195,235 @@ public class XMLWorker {
 		ArrayList<String> data = new ArrayList<String>();
 
 		try { data = readTag("countries", "country"); } 
-		catch (Exception e) { e.printStackTrace(); }
+		catch (Exception e) { failed(e); }
 
 		return data;
 	}
 
 
 	/**
+	 * Method which reads the data of every keyTag element in the given file, keeping <br>
+	 * only those whose tags equal the corresponding match string. <br>
+	 * The file is streamed one element at a time, so memory use does not grow with <br>
+	 * the size of the file.
 	 * 
-	 * @param fileName
-	 * @param keyTag
-	 * @param tags
-	 * @param match
-	 * @return
+	 * @param fileName XML file to read
+	 * @param keyTag Tag of the elements to read, i.e. "mail"
+	 * @param tags Tags to be read from each element
+	 * @param match Data each tag must equal, or null for no condition on that tag
+	 * @return ArrayList of the data of each matching element, in the order of tags
 	 * @throws ParserConfigurationException
 	 * @throws SAXException
 	 * @throws IOException
 	 */
 	public static ArrayList<ArrayList<String>> readTagsConditional(String fileName, String keyTag, String[] tags, String[] match) throws ParserConfigurationException, SAXException, IOException{
-		Element root = getRootElement(fileName);
 		ArrayList<ArrayList<String>> retArr = new ArrayList<ArrayList<String>>();
 
-		NodeList rootList = root.getElementsByTagName(keyTag);
-		for (int i = 0; i < rootList.getLength(); i++){
-			ArrayList<String> dat = new ArrayList<String>();
-			Element e = (Element)rootList.item(i);
-			System.out.println(e.getNodeName());
-			boolean isOk = true;
-			for (int k = 0; k < tags.length; k++){
-				NodeList nl = e.getElementsByTagName(tags[k]);
-				// The list of nodes in indent
-				if(nl != null && nl.getLength() > 0) {
-					Element el = (Element)nl.item(0);
-					
-					if (match[k] == null || (match[k]!= null && el.getTextContent().equals(match[k])))
-						dat.add(el.getTextContent());
-					else isOk = false;
+		EventReader reader = new EventReader(fileName, new String[]{keyTag}, tags);
+		try {
+			while (reader.next()){
+				boolean isOk = true;
+				// Check the filters before building anything for this element
+				for (int k = 0; k < tags.length && isOk; k++){
+					String value = reader.getValue(k);
+					if (value != null && match[k] != null && !value.equals(match[k]))
+						isOk = false;
+				}
+				if (!isOk) continue;
+
+				ArrayList<String> dat = new ArrayList<String>(tags.length);
+				for (int k = 0; k < tags.length; k++){
+					if (reader.getValue(k) != null)
+						dat.add(reader.getValue(k));
 				}
-			}	
-			if(isOk)
 				retArr.add(dat);
+			}
+		} finally {
+			reader.close();
 		}
 
 		return retArr;
 	}
 
 
+	/**
+	 * Method which reads in the legs between depots from routes.xml.
+	 * @return Graph of the legs, empty if the file can't be read
+	 */
+	public static RouteGraph loadRoutes(){
+		RouteGraph graph = new RouteGraph();
+		try {
+			EventReader reader = new EventReader("routes", new String[]{"leg"},
+					new String[]{"from", "to", "type", "distance", "cost", "duration"});
+			try {
+				while (reader.next()){
+					graph.addLeg(new Leg(graph.addDepot(reader.getValue(0)), graph.addDepot(reader.getValue(1)),
+							TransportType.valueOf(reader.getValue(2)), Double.parseDouble(reader.getValue(3)),
+							Double.parseDouble(reader.getValue(4)), Double.parseDouble(reader.getValue(5))));
+				}
+			} finally {
+				reader.close();
+			}
+			// Legs cost what the latest cost events say
+			PriceHistory history = getPriceHistory();
+			int today = EpochDay.today();
+			history.applyCosts(graph, today);
+			costsHistory = history;
+			costsDay = today;
+			costsGraph = graph;
+		} 
+		catch (SAXException e) {failed(e);} 
+		catch (IOException e) {failed(e);}
+		catch (RuntimeException e) {failed(e);}
+
+		return graph;
+	}
+
+	/**
+	 * Method which brings the costs of the legs of a graph up to date, if the day <br>
+	 * has changed or costevents.xml has been read again since they were last set. <br>
+	 * Without it a cost event taking effect on a later day would never reach the <br>
+	 * graph until the next start. It is checked at most once a second.
+	 * @param graph Graph to update
+	 */
+	public static void updateCosts(RouteGraph graph){
+		long now = System.currentTimeMillis();
+		if (graph == costsGraph && now - costsChecked < 1000) return;
+		costsChecked = now;
+		PriceHistory history = getPriceHistory();
+		int today = EpochDay.today();
+		if (graph == costsGraph && today == costsDay && history == costsHistory) return;
+		history.applyCosts(graph, today);
+		costsHistory = history;
+		costsDay = today;
+		costsGraph = graph;
+	}
+
+	/**
+	 * Method which reads in the rules prices are worked out by from rates.xml: a rate <br>
+	 * per km for each priority level, a rate per kg for each weight band (by its upper <br>
+	 * limit) and the markup.
+	 * @return The rates, or null if the file can't be read
+	 */
+	public static RateTable loadRates(){
+		TreeMap<Integer, Double> priorities = new TreeMap<Integer, Double>();
+		TreeMap<Double, Double> bands = new TreeMap<Double, Double>();
+		double markup = 1;
+		try {
+			EventReader reader = new EventReader("rates", new String[]{"priority", "band", "markup"},
+					new String[]{"level", "limit", "rate"});
+			try {
+				while (reader.next()){
+					double rate = Double.parseDouble(reader.getValue(2));
+					if (reader.getKeyTag().equals("priority"))
+						priorities.put(Integer.parseInt(reader.getValue(0).trim()), rate);
+					else if (reader.getKeyTag().equals("band"))
+						bands.put(Double.parseDouble(reader.getValue(1)), rate);
+					else markup = rate;
+				}
+			} finally {
+				reader.close();
+			}
+		} 
+		catch (SAXException e) {failed(e); return null;} 
+		catch (IOException e) {failed(e); return null;}
+		catch (RuntimeException e) {failed(e); return null;}
+
+		// Levels with no rate of their own are charged their level, as past the end
+		double[] priorityRates = new double[priorities.isEmpty() ? 0 : Math.max(0, priorities.lastKey() + 1)];
+		for (int p = 0; p < priorityRates.length; p++)
+			priorityRates[p] = priorities.containsKey(p) ? priorities.get(p) : p;
+		double[] limits = new double[bands.size()];
+		double[] rates = new double[bands.size()];
+		int i = 0;
+		for (Map.Entry<Double, Double> e: bands.entrySet()){
+			limits[i] = e.getKey();
+			rates[i++] = e.getValue();
+		}
+		return new RateTable(priorityRates, limits, rates, markup);
+	}
+
+	/**
+	 * Method which returns the price and transport cost history in costevents.xml. <br>
+	 * The file is only read the first time, or again if it has been changed by <br>
+	 * another program. Prices are looked up for every quote, so the file is checked <br>
+	 * for changes at most once a second. <br>
+	 * It has a lock of its own, so quotes never wait on events being written to <br>
+	 * mailevents.xml.
+	 * @return History of every price and cost event, empty if the file can't be read
+	 */
+	public static PriceHistory getPriceHistory(){
+		long now = System.currentTimeMillis();
+		PriceHistory history = priceHistory;
+		if (history != null && now - priceHistoryChecked < 1000) return history;
+		synchronized (priceLock){
+			if (priceHistory == null || (now - priceHistoryChecked >= 1000 && priceHistory.isStale())){
+				history = null;
+				try {
+					costJournal.recover();
+					history = PriceHistory.load("costevents");
+				} 
+				catch (SAXException e) {failed(e);} 
+				catch (IOException e) {failed(e);}
+				priceHistory = history != null ? history : new PriceHistory(new File("costevents.xml"));
+			}
+			priceHistoryChecked = now;
+			return priceHistory;
+		}
+	}
+
+	/**
+	 * Adds a change to the price customers are charged to the costevents database.
+	 *
+	 * @param day Day the price takes effect, in format dd/mm/yyyy
+	 * @param from Origin
+	 * @param to Destination
+	 * @param priority Priority the price is for
+	 * @param rate Rate per km
+	 */
+	public static void addPriceEvent(String day, String from, String to, double priority, double rate){
+		int epochDay = EpochDay.parse(day);
+		if (epochDay == EpochDay.INVALID) throw new IllegalArgumentException("Bad day " + day);
+		try {
+			synchronized (priceLock){
+				PriceHistory history = getPriceHistory();
+				costJournal.append("price", new String[]{"day", "from", "to", "priority", "rate"},
+						new String[]{day, from, to, "" + priority, "" + rate});
+				history.addPrice(epochDay, from, to, priority, rate);
+				history.markSourceWritten();
+			}
+		}catch(Exception e){failed(e);}
+	}
+
+	/**
+	 * Adds a change to the cost and duration of a leg to the costevents database. <br>
+	 * If it has already taken effect the leg is updated in the route graph too.
+	 *
+	 * @param day Day the cost takes effect, in format dd/mm/yyyy
+	 * @param from Origin of the leg
+	 * @param to Destination of the leg
+	 * @param type Transport the leg uses
+	 * @param cost Cost per kg
+	 * @param duration Duration in hours
+	 */
+	public static void addCostEvent(String day, String from, String to, TransportType type, double cost, double duration){
+		int epochDay = EpochDay.parse(day);
+		if (epochDay == EpochDay.INVALID) throw new IllegalArgumentException("Bad day " + day);
+		PriceHistory history = null;
+		try {
+			synchronized (priceLock){
+				history = getPriceHistory();
+				costJournal.append("cost", new String[]{"day", "from", "to", "type", "cost", "duration"},
+						new String[]{day, from, to, type.name(), "" + cost, "" + duration});
+				history.addCost(epochDay, from, to, type, cost, duration);
+				history.markSourceWritten();
+			}
+		}catch(Exception e){failed(e);}
+		if (history != null && epochDay <= EpochDay.today())
+			history.applyCosts(RouteGraph.getDefault(), EpochDay.today());
+	}
+
+
 	/**
 	 * Method which digs out all parcel events from the xml file excluding mail <br>
 	 * with the given conditions. <br> 
@@ -220,16 +440,13 @@ public class XMLWorker {
 	 */
 	public static ArrayList<Parcel> getParcels(String[] match){
 		ArrayList<Parcel> parcels = new ArrayList<Parcel>();
+		long start = Metrics.start();
 		try {
-			ArrayList<ArrayList<String>> pdata = readTagsConditional("mailevents", "parcel", new String[]{"day", "to", "from", "weight", "volume", "priority"}, match);
-
-			for (ArrayList<String> object: pdata)
-				parcels.add(new Parcel(object.get(0), object.get(1), object.get(2), object.get(3), object.get(4), object.get(5)));
-
+			parcels = getMailStore().getParcels(match);
 		} 
-		catch (ParserConfigurationException e) {e.printStackTrace();} 
-		catch (SAXException e) {e.printStackTrace();} 
-		catch (IOException e) {e.printStackTrace();}
+		catch (SAXException e) {failed(e);} 
+		catch (IOException e) {failed(e);}
+		QUERY.stop(start);
 
 		return parcels;
 	}
@@ -250,19 +467,267 @@ public class XMLWorker {
 	 */
 	public static ArrayList<Mail> getMail(String[] match){
 		ArrayList<Mail> mail = new ArrayList<Mail>();
+		long start = Metrics.start();
+		try {
+			mail = getMailStore().getMail(match);
+		} 
+		catch (SAXException e) {failed(e);} 
+		catch (IOException e) {failed(e);}
+		QUERY.stop(start);
+
+		return mail;
+	}
+
+	/**
+	 * Method which finds one page of the mail events with the given conditions, so a <br>
+	 * long history can be read a page at a time, see getMail for the conditions.<br><br>
+	 * i.e.<br>
+	 * EventStore.Page&lt;Mail&gt; page = getMailPage(match, EventStore.FIRST, 100); <br>
+	 * while (page.hasMore()) page = getMailPage(match, page.getNext(), 100);
+	 *
+	 * @param match Data must match at the corresponding tag to be included in the page.
+	 * @param after getNext() of the page before, or EventStore.FIRST
+	 * @param limit Most events to return
+	 * @return The page
+	 */
+	public static EventStore.Page<Mail> getMailPage(String[] match, long after, int limit){
+		EventStore.Page<Mail> page = new EventStore.Page<Mail>(new ArrayList<Mail>(), after, false);
+		long start = Metrics.start();
 		try {
-			ArrayList<ArrayList<String>> pdata = readTagsConditional("mailevents", "mail", new String[]{"day", "to", "from", "priority"}, match);
+			page = getMailStore().getMailPage(match, after, limit);
+		} 
+		catch (SAXException e) {failed(e);} 
+		catch (IOException e) {failed(e);}
+		QUERY.stop(start);
 
-			for (ArrayList<String> object: pdata)
-				mail.add(new Mail(object.get(0), object.get(1), object.get(2), object.get(3)));
+		return page;
+	}
 
+	/**
+	 * Method which finds one page of the parcel events with the given conditions, <br>
+	 * see getMailPage and getParcels.
+	 *
+	 * @param match Data must match at the corresponding tag to be included in the page.
+	 * @param after getNext() of the page before, or EventStore.FIRST
+	 * @param limit Most events to return
+	 * @return The page
+	 */
+	public static EventStore.Page<Parcel> getParcelPage(String[] match, long after, int limit){
+		EventStore.Page<Parcel> page = new EventStore.Page<Parcel>(new ArrayList<Parcel>(), after, false);
+		long start = Metrics.start();
+		try {
+			page = getMailStore().getParcelPage(match, after, limit);
 		} 
-		catch (ParserConfigurationException e) {e.printStackTrace();} 
-		catch (SAXException e) {e.printStackTrace();} 
-		catch (IOException e) {e.printStackTrace();}
+		catch (SAXException e) {failed(e);} 
+		catch (IOException e) {failed(e);}
+		QUERY.stop(start);
 
-		return mail;
+		return page;
+	}
+
+	/**
+	 * Method which returns the indexed store of the mailevents database. The file is <br>
+	 * only read the first time, or again if it has been changed by another program. <br>
+	 * Checking the store is up to date takes no lock, so queries don't wait on events <br>
+	 * being written.
+	 * @return Store of every mail and parcel event
+	 * @throws SAXException
+	 * @throws IOException
+	 */
+	public static EventStore getMailStore() throws SAXException, IOException{
+		EventStore store = mailStore;
+		// An append of ours makes the file look changed until its events are in the store
+		if (store != null && (appending || !store.isStale())) return store;
+		synchronized (mailWriteLock){
+			synchronized (XMLWorker.class){
+				if (mailStore == null || mailStore.isStale()){
+					if (mailStore == null){
+						// Save the events added this session so the next start doesn't read the xml
+						Runtime.getRuntime().addShutdownHook(new Thread(){
+							public void run(){ saveSnapshot(); }
+						});
+					}
+					// Finish any append a crash cut short before reading the file
+					mailJournal.recover();
+					mailStore = EventStore.load("mailevents");
+					figures = null;
+					cubes = null;
+				}
+				return mailStore;
+			}
+		}
+	}
+
+	/**
+	 * Method which returns the running totals of the mailevents database: revenue, <br>
+	 * expenditure, counts and delivery times, overall and by day, route and priority. <br>
+	 * They are kept up to date by addMail, so reading them doesn't go through the events. <br>
+	 * The first time they are worked out without holding the lock, as pricing may load <br>
+	 * the routes, and then brought up to date with any events added meanwhile.
+	 * @return Figures of every mail and parcel event
+	 * @throws SAXException
+	 * @throws IOException
+	 */
+	public static BusinessFigures getBusinessFigures() throws SAXException, IOException{
+		EventStore store = getMailStore();
+		BusinessFigures built = null;
+		int counted = 0;
+		while (true){
+			synchronized (XMLWorker.class){
+				if (mailStore != store){
+					store = mailStore;
+					built = null;
+				}
+				if (figures != null) return figures;
+				// Events are only added holding the lock, so none can be missed
+				if (built != null && store.size() == counted){
+					built.markSource(store);
+					figures = built;
+					return figures;
+				}
+			}
+			if (built == null){
+				built = BusinessFigures.load("mailevents", store);
+				counted = (int)built.getTotal().getCount();
+			}
+			for (Mail m: store.getRange(counted, store.size())){
+				built.add(m, BusinessFigures.measure(m));
+				counted++;
+			}
+		}
 	}
+
+	/**
+	 * Method which returns the totals of the mailevents database for each period, <br>
+	 * destination, origin and priority, for reports over long stretches of time. <br>
+	 * The cubes are built from the loaded store the first time, and kept up to date <br>
+	 * by addMail, so queries never read the xml. Like the figures, they are built <br>
+	 * without holding the lock and then brought up to date.
+	 * @param period Length of the periods to total over
+	 * @return Cube of every mail and parcel event
+	 * @throws SAXException
+	 * @throws IOException
+	 */
+	public static RollupCube getRollupCube(RollupCube.Period period) throws SAXException, IOException{
+		EventStore store = getMailStore();
+		RollupCube[] built = null;
+		int counted = 0;
+		while (true){
+			synchronized (XMLWorker.class){
+				if (mailStore != store){
+					store = mailStore;
+					built = null;
+				}
+				if (cubes != null) return cubes[period.ordinal()];
+				if (built != null && store.size() == counted){
+					cubes = built;
+					return cubes[period.ordinal()];
+				}
+			}
+			if (built == null){
+				EventBatch batch = store.toBatch();
+				double[] revenue = Cost.getEngine().quote(batch);
+				built = new RollupCube[RollupCube.Period.values().length];
+				for (RollupCube.Period p: RollupCube.Period.values())
+					built[p.ordinal()] = RollupCube.of(p, batch, revenue);
+				counted = batch.size();
+			}
+			for (Mail m: store.getRange(counted, store.size())){
+				double revenue = m.getCost();
+				for (RollupCube cube: built) cube.add(m, revenue);
+				counted++;
+			}
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the loaded store if events have been added since the <br>
+	 * last one was written, so the next start can skip reading the xml. The event <br>
+	 * files are forced to the disk and their write-ahead logs emptied too.
+	 */
+	public static synchronized void saveSnapshot(){
+		try {
+			mailJournal.checkpoint();
+			costJournal.checkpoint();
+		}
+		catch (IOException e) { failed(e); }
+		if (mailStore == null || mailStore.isStale()) return;
+		try {
+			if (!EventSnapshot.isCurrent("mailevents"))
+				EventSnapshot.write(mailStore, "mailevents");
+			if (figures != null && !BusinessFigures.isCurrent("mailevents"))
+				figures.write("mailevents");
+		}
+		catch (IOException e) { failed(e); }
+	}
+
+	/**
+	 * Method which returns a query over the binary snapshot of the mailevents database. <br>
+	 * The query only creates Mail objects for the events which match it. <br>
+	 * The snapshot is mapped and checked once, and events added since it was written <br>
+	 * are checked from the loaded store, so adding events doesn't make the next query <br>
+	 * write a new one. Once many events have been added it is rewritten in the background.
+	 * @return New query over every event
+	 * @throws SAXException
+	 * @throws IOException
+	 */
+	public static SnapshotQuery querySnapshot() throws SAXException, IOException{
+		EventStore store = getMailStore();
+		SnapshotQuery.Mapping base;
+		synchronized (XMLWorker.class){
+			if (snapshotBaseStore != store || snapshotBase == null || snapshotBase.rows > store.size()){
+				// Only the first query after the store is loaded can have to write one
+				File file = EventSnapshot.isCurrent("mailevents") ? EventSnapshot.fileFor("mailevents")
+						: EventSnapshot.write(store, "mailevents");
+				snapshotBase = new SnapshotQuery.Mapping(file);
+				snapshotBaseStore = store;
+			}
+			base = snapshotBase;
+			if (store.size() - base.rows > SNAPSHOT_TAIL && !snapshotRewriting)
+				rewriteSnapshot(store);
+		}
+		return new SnapshotQuery(base, store);
+	}
+
+	/**
+	 * Writes a new snapshot of the store in the background, for queries to be run <br>
+	 * over once it is written.
+	 */
+	private static void rewriteSnapshot(final EventStore store){
+		snapshotRewriting = true;
+		AsyncWorker.submit(new Callable<Void>(){
+			public Void call() throws IOException{
+				try {
+					SnapshotQuery.Mapping written = new SnapshotQuery.Mapping(EventSnapshot.write(store, "mailevents"));
+					synchronized (XMLWorker.class){
+						if (snapshotBaseStore == store) snapshotBase = written;
+					}
+				} finally {
+					synchronized (XMLWorker.class){
+						snapshotRewriting = false;
+					}
+				}
+				return null;
+			}
+		}, null);
+	}
+
+	/**
+	 * Method which returns every mail and parcel event in the mailevents database <br>
+	 * as a column by column batch, for totalling up large numbers of events without <br>
+	 * creating a Mail object for each.
+	 * @return Batch of every event, or an empty batch if the database can't be read
+	 */
+	public static EventBatch getEventBatch(){
+		try {
+			return getMailStore().toBatch();
+		} 
+		catch (SAXException e) {failed(e);} 
+		catch (IOException e) {failed(e);}
+
+		return new EventBatch.Builder(0).build();
+	}
+
 	/**
 	 * Method which takes a list of Mail and returns a new List of Mail where the dates are <br>
 	 * between the range specified
@@ -273,27 +738,65 @@ public class XMLWorker {
 	 */
 	public static ArrayList<Mail> getMailBetweenDates(ArrayList<Mail> mail, String date1, String date2){
 		ArrayList<Mail> newList = new ArrayList<Mail>();
-		Date d1 = XMLWorker.parseDate(date1);
-		Date d2 = XMLWorker.parseDate(date2);
+		int d1 = EpochDay.parse(date1);
+		int d2 = EpochDay.parse(date2);
+		if (d1 == EpochDay.INVALID || d2 == EpochDay.INVALID) return newList;
 
 		// Make sure d1 is the older date
-		if (d1.compareTo(d2) > 0){
-			Date temp = d1;
+		if (d1 > d2){
+			int temp = d1;
 			d1 = d2;
 			d2 = temp;
 		}
 
-		for (Mail m: mail){
-			Date day = XMLWorker.parseDate(m.getDay());
-			// If mail day is between date range, add to new list
-			if (d1.compareTo(day) <= 0 && d2.compareTo(day) >= 0){
-				newList.add(m);
+		// Filter a chunk of the list at a time, in parallel for long lists
+		final ArrayList<Mail> all = mail;
+		final int first = d1, last = d2;
+		List<ArrayList<Mail>> parts = ParallelScan.run(mail.size(), new ParallelScan.Task<ArrayList<Mail>>(){
+			public ArrayList<Mail> scan(int from, int to){
+				ArrayList<Mail> part = new ArrayList<Mail>();
+				for (int i = from; i < to; i++){
+					Mail m = all.get(i);
+					int day = m.getEpochDay();
+					// If mail day is between date range, add to new list
+					if (day != EpochDay.INVALID && first <= day && day <= last){
+						part.add(m);
+					}
+				}
+				return part;
 			}
-		}
+		});
+		for (ArrayList<Mail> part: parts)
+			newList.addAll(part);
 
 		return newList;
 	}
 
+	/**
+	 * Method which finds every mail and parcel event in the mailevents database <br>
+	 * between the two dates (inclusive), using the store's day index rather than <br>
+	 * checking every event.
+	 * @param date1 Date in format dd/mm/yyyy
+	 * @param date2 Date in format dd/mm/yyyy
+	 * @return ArrayList<Mail> mail and parcels between the dates, sorted by day.
+	 */
+	public static ArrayList<Mail> getMailBetweenDates(String date1, String date2){
+		ArrayList<Mail> mail = new ArrayList<Mail>();
+		int d1 = EpochDay.parse(date1);
+		int d2 = EpochDay.parse(date2);
+		if (d1 == EpochDay.INVALID || d2 == EpochDay.INVALID) return mail;
+
+		long start = Metrics.start();
+		try {
+			mail = getMailStore().getBetweenDays(d1, d2);
+		} 
+		catch (SAXException e) {failed(e);} 
+		catch (IOException e) {failed(e);}
+		QUERY.stop(start);
+
+		return mail;
+	}
+
 
 	public static Date parseDate(String input){
 		SimpleDateFormat ft = new SimpleDateFormat ("dd/MM/yyyy");
@@ -311,49 +814,149 @@ public class XMLWorker {
 
 	/**
 	 * Adds a new mail and or parcel event to the mailevents database. Can be as a Mail <br>
-	 * object or Parcel.
+	 * object or Parcel. The event is appended to the end of the file rather than <br>
+	 * the whole file being rewritten. <br>
+	 * Events added at the same time from different threads are written together, see <br>
+	 * submitMail. This returns once the event is written.
 	 * 
 	 * @param mail Object to save data of
 	 */
 	public static void addMail(Mail mail) {
-		Document doc;
+		long start = Metrics.start();
 		try {
-			doc = getDocElement("mailevents");
-		Element root = doc.getDocumentElement();
-		
-		Element newMail = doc.createElement("mail");
-		String[] tags = new String[]{"day", "to", "from", "priority"};
-		String[] data = mail.getData();
-		
-		if (mail instanceof Parcel){
-			newMail = doc.createElement("parcel");
-			tags = new String[]{"day", "to", "from", "weight", "volume", "priority"};
-			data = ((Parcel)mail).getData();
+			submitMail(mail).get();
 		}
-		
-		root.appendChild(newMail);
-		for (int i = 0; i < tags.length; i++){
-			Element e = doc.createElement(tags[i]);
-			e.appendChild(doc.createTextNode(data[i]));
-			newMail.appendChild(e);
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failed(e);
 		}
-		
-		finishWritingXML(doc);
-		}catch(Exception e){e.printStackTrace();}
-	}
-
-	private static void finishWritingXML(Document doc) throws TransformerException{
-		TransformerFactory transformerFactory = TransformerFactory.newInstance();
-		Transformer transformer = transformerFactory.newTransformer();
-		transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-			transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-		DOMSource source = new DOMSource(doc);
-		StreamResult result = new StreamResult(new File("mailevents.xml"));
- 
-		// Output to console for testing
-		// StreamResult result = new StreamResult(System.out);
- 
-		transformer.transform(source, result);
+		catch (ExecutionException e) {failed(e.getCause());}
+		ADD.stop(start);
+	}
+
+	/**
+	 * Queues a new mail and or parcel event to be added to the mailevents database. <br>
+	 * Events queued within a short window of each other (2 ms or 256 events unless <br>
+	 * changed by setGroupCommit) are written with a single append and fsync.
+	 * 
+	 * @param mail Object to save data of
+	 * @return Future which completes once the event is written, or fails with the <br>
+	 * 		   IOException the write failed with
+	 */
+	public static Future<Void> submitMail(Mail mail) {
+		// Priced before queueing, so the writer thread only writes
+		return committer.submit(new Submission(mail, BusinessFigures.measure(mail)));
+	}
+
+	/**
+	 * Sets how long submitted events wait for others to be written with.
+	 * 
+	 * @param window Longest time in microseconds to wait for more events after the first
+	 * @param maxEvents Most events to write at once
+	 */
+	public static void setGroupCommit(long window, int maxEvents){
+		committer.setWindow(window, maxEvents);
+	}
+
+	/**
+	 * Adds a number of mail and or parcel events to the mailevents database with a <br>
+	 * single write to the end of the file, so a large import isn't one write (and <br>
+	 * fsync) per event.
+	 * 
+	 * @param batch Events to save, in order
+	 * @throws IOException if the events couldn't be written, in which case none were
+	 */
+	public static void addMail(List<? extends Mail> batch) throws IOException {
+		List<double[]> measured = new ArrayList<double[]>(batch.size());
+		for (Mail mail: batch)
+			// Priced before taking the lock, as pricing may load the routes
+			measured.add(BusinessFigures.measure(mail));
+		writeMail(batch, measured);
+	}
+
+	/**
+	 * Appends events to the file with a single write and, if the loaded store is up <br>
+	 * to date, adds them to it and to the figures and cubes made from it.
+	 */
+	private static void writeMail(List<? extends Mail> batch, List<double[]> measured) throws IOException {
+		List<String> keyTags = new ArrayList<String>(batch.size());
+		List<String[]> tags = new ArrayList<String[]>(batch.size());
+		List<String[]> data = new ArrayList<String[]>(batch.size());
+		for (Mail mail: batch){
+			boolean isParcel = mail instanceof Parcel;
+			keyTags.add(isParcel ? "parcel" : "mail");
+			tags.add(isParcel ? PARCEL_TAGS : MAIL_TAGS);
+			data.add(isParcel ? ((Parcel)mail).getData() : mail.getData());
+		}
+
+		long start = Metrics.start();
+		synchronized (mailWriteLock){
+			EventStore store = mailStore;
+			boolean current = store != null && !store.isStale();
+			appending = true;
+			try {
+				long before = mailJournal.appendAll(keyTags, tags, data);
+				// Keep the loaded store in step rather than reading the file again, unless
+				// another program added events too, in which case it will be read again
+				if (current && before == store.getSourceLength()){
+					synchronized (XMLWorker.class){
+						store.addAll(batch);
+						store.markSourceWritten();
+						// The events are written, so the caller is told they were whatever happens here
+						try {
+							for (int i = 0; i < batch.size(); i++){
+								Mail mail = batch.get(i);
+								if (figures != null) figures.add(mail, measured.get(i));
+								if (cubes != null)
+									for (RollupCube cube: cubes) cube.add(mail, measured.get(i)[0]);
+							}
+							if (figures != null) figures.markSource(store);
+						}
+						catch (RuntimeException e) {
+							// Worked out again from the store the next time they are asked for
+							failed(e);
+							figures = null;
+							cubes = null;
+						}
+					}
+				}
+			} finally {
+				appending = false;
+			}
+		}
+		WRITE.stop(start);
+		WRITTEN.add(batch.size());
+	}
+
+	/**
+	 * Reports an error the caller can't be told about, counting it so the errors <br>
+	 * show up in the metrics.
+	 */
+	private static void failed(Throwable e){
+		ERRORS.inc();
+		e.printStackTrace();
+	}
+
+	/**
+	 * An event waiting to be written by the committer.
+	 */
+	private static class Submission {
+		final Mail mail;
+		final double[] measured;
+
+		Submission(Mail mail, double[] measured){
+			this.mail = mail;
+			this.measured = measured;
+		}
+	}
+
+	/**
+	 * Sets when new events are forced out to the disk. Defaults to after every event.
+	 * 
+	 * @param policy fsync policy for the write-ahead log of mailevents.xml
+	 */
+	public static void setSyncPolicy(EventJournal.SyncPolicy policy){
+		mailJournal.setSyncPolicy(policy);
 	}
 
 
@@ -0,0 +1,41 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Number of times something has happened, i.e. events written or cache misses. <br>
+ * Does nothing while metrics are disabled.
+ */
+public class Counter implements CounterMBean {
+
+	private final String name;
+	private final AtomicLong count = new AtomicLong();
+
+	Counter(String name){
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void inc(){
+		if (Metrics.enabled) count.incrementAndGet();
+	}
+
+	public void add(long n){
+		if (Metrics.enabled) count.addAndGet(n);
+	}
+
+	public long getCount(){
+		return count.get();
+	}
+
+	public void reset(){
+		count.set(0);
+	}
+
+	public String toString(){
+		return name + " " + count.get();
+	}
+}
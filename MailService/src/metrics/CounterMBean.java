@@ -0,0 +1,9 @@
+package metrics;
+
+/**
+ * What JMX shows of a Counter.
+ */
+public interface CounterMBean {
+	long getCount();
+	void reset();
+}
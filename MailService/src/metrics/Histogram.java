@@ -0,0 +1,153 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of how long something takes, in the style of HdrHistogram. <br>
+ * Times are counted in buckets whose width grows with the time, so every time <br>
+ * from a nanosecond to hours is kept to within 1.6% using a fixed 20 KB of counts, <br>
+ * and recording a time is a few atomic adds with no locking or allocation. <br>
+ * Does nothing while metrics are disabled.
+ *
+ * An example will illustrate how it is used.
+ *
+ * long start = Metrics.start(); <br>
+ * ... <br>
+ * QUOTE.stop(start);
+ */
+public class Histogram implements HistogramMBean {
+
+	/** Buckets below this hold one nanosecond each */
+	private static final int SUB_BUCKETS = 128;
+	private static final int HALF = SUB_BUCKETS / 2;
+	/** Times from 2^MAX_BITS ns (about 5 hours) up go in the last bucket */
+	private static final int MAX_BITS = 44;
+	private static final int BUCKETS = (MAX_BITS - 5) * HALF;
+
+	private final String name;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	Histogram(String name){
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Records the time since start.
+	 * @param start What Metrics.start() returned. 0, which it returns while metrics <br>
+	 * 		  are disabled, records nothing
+	 */
+	public void stop(long start){
+		if (start != 0) record(System.nanoTime() - start);
+	}
+
+	/**
+	 * @param nanos Time to record
+	 */
+	public void record(long nanos){
+		if (!Metrics.enabled) return;
+		if (nanos < 0) nanos = 0;
+		counts.incrementAndGet(index(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long m;
+		while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)){}
+	}
+
+	/**
+	 * Bucket of a time. Below SUB_BUCKETS each time has its own bucket, above it the <br>
+	 * top 7 bits of the time pick one of HALF buckets for each power of two.
+	 */
+	static int index(long v){
+		if (v < SUB_BUCKETS) return (int)v;
+		int shift = 63 - Long.numberOfLeadingZeros(v) - 6;
+		if (shift > MAX_BITS - 7) return BUCKETS - 1;
+		return shift * HALF + (int)(v >>> shift);
+	}
+
+	/**
+	 * @return Time in the middle of a bucket
+	 */
+	static long valueOf(int index){
+		if (index < SUB_BUCKETS) return index;
+		int shift = index / HALF - 1;
+		long sub = index % HALF + HALF;
+		return (sub << shift) + (1L << shift) / 2;
+	}
+
+	public long getCount(){
+		return count.get();
+	}
+
+	/**
+	 * @return Mean time in ms
+	 */
+	public double getMean(){
+		long n = count.get();
+		return n == 0 ? 0 : total.get() / 1e6 / n;
+	}
+
+	/**
+	 * @return Longest time in ms
+	 */
+	public double getMax(){
+		return max.get() / 1e6;
+	}
+
+	/**
+	 * @param quantile Between 0 and 1, i.e. 0.99
+	 * @return Time in ms which that share of the times were at or under
+	 */
+	public double getPercentile(double quantile){
+		long n = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++){
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0) return 0;
+		long rank = Math.max(1, (long)Math.ceil(quantile * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++){
+			seen += snapshot[i];
+			if (seen >= rank) return Math.min(valueOf(i), max.get()) / 1e6;
+		}
+		return getMax();
+	}
+
+	public double get50thPercentile(){
+		return getPercentile(0.5);
+	}
+
+	public double get90thPercentile(){
+		return getPercentile(0.9);
+	}
+
+	public double get99thPercentile(){
+		return getPercentile(0.99);
+	}
+
+	public double get999thPercentile(){
+		return getPercentile(0.999);
+	}
+
+	public void reset(){
+		for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	public String toString(){
+		return String.format("%s count %d mean %.3f p50 %.3f p90 %.3f p99 %.3f p99.9 %.3f max %.3f ms",
+				name, getCount(), getMean(), get50thPercentile(), get90thPercentile(),
+				get99thPercentile(), get999thPercentile(), getMax());
+	}
+}
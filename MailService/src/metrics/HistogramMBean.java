@@ -0,0 +1,15 @@
+package metrics;
+
+/**
+ * What JMX shows of a Histogram. Times are in milliseconds.
+ */
+public interface HistogramMBean {
+	long getCount();
+	double getMean();
+	double getMax();
+	double get50thPercentile();
+	double get90thPercentile();
+	double get99thPercentile();
+	double get999thPercentile();
+	void reset();
+}
@@ -0,0 +1,164 @@
+package metrics;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timings of the busy parts of the system: reading and querying the <br>
+ * events, writing them, pricing and routing. <br>
+ * Metrics are off unless the program is started with -Dkps.metrics=true or <br>
+ * setEnabled(true) is called. While they are off, timing a call costs one read of <br>
+ * a volatile field and nothing is counted. <br>
+ * Once enabled every metric can be read through JMX, under kps:type=Counter and <br>
+ * kps:type=Histogram, i.e. with jconsole. -Dkps.metrics.report=60 also prints them <br>
+ * all every 60 seconds.
+ */
+public final class Metrics {
+
+	static volatile boolean enabled;
+
+	private static final Map<String, Counter> counters = new TreeMap<String, Counter>();
+	private static final Map<String, Histogram> histograms = new TreeMap<String, Histogram>();
+	private static boolean jmx;
+	private static ScheduledExecutorService reporter;
+
+	static {
+		if (Boolean.getBoolean("kps.metrics")){
+			setEnabled(true);
+			long period = Long.getLong("kps.metrics.report", 0);
+			if (period > 0) startReporter(period, System.out);
+		}
+	}
+
+	private Metrics(){}
+
+	/**
+	 * Turns metrics on or off. Turning them on also makes them readable through JMX.
+	 */
+	public static synchronized void setEnabled(boolean on){
+		enabled = on;
+		if (on && !jmx){
+			jmx = true;
+			for (Counter c: counters.values()) register("Counter", c.getName(), c);
+			for (Histogram h: histograms.values()) register("Histogram", h.getName(), h);
+		}
+	}
+
+	public static boolean isEnabled(){
+		return enabled;
+	}
+
+	/**
+	 * @return The time to pass to Histogram.stop, or 0 if metrics are off
+	 */
+	public static long start(){
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * @param name Name of the counter, i.e. "write.events"
+	 * @return The counter of that name, made the first time it is asked for
+	 */
+	public static synchronized Counter counter(String name){
+		Counter c = counters.get(name);
+		if (c == null){
+			c = new Counter(name);
+			counters.put(name, c);
+			if (jmx) register("Counter", name, c);
+		}
+		return c;
+	}
+
+	/**
+	 * @param name Name of the histogram, i.e. "quote"
+	 * @return The histogram of that name, made the first time it is asked for
+	 */
+	public static synchronized Histogram histogram(String name){
+		Histogram h = histograms.get(name);
+		if (h == null){
+			h = new Histogram(name);
+			histograms.put(name, h);
+			if (jmx) register("Histogram", name, h);
+		}
+		return h;
+	}
+
+	public static synchronized List<Counter> getCounters(){
+		return new ArrayList<Counter>(counters.values());
+	}
+
+	public static synchronized List<Histogram> getHistograms(){
+		return new ArrayList<Histogram>(histograms.values());
+	}
+
+	/**
+	 * Sets every metric back to zero.
+	 */
+	public static synchronized void reset(){
+		for (Counter c: counters.values()) c.reset();
+		for (Histogram h: histograms.values()) h.reset();
+	}
+
+	/**
+	 * @return Every metric which has counted anything, a line each
+	 */
+	public static synchronized String report(){
+		StringBuilder sb = new StringBuilder();
+		for (Counter c: counters.values())
+			if (c.getCount() > 0) sb.append(c).append('\n');
+		for (Histogram h: histograms.values())
+			if (h.getCount() > 0) sb.append(h).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Prints the report every period seconds on a background thread.
+	 *
+	 * @param period Seconds between reports
+	 * @param out Where to print them
+	 */
+	public static synchronized void startReporter(long period, final PrintStream out){
+		stopReporter();
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "metrics-reporter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		reporter.scheduleAtFixedRate(new Runnable(){
+			public void run(){
+				String report = report();
+				if (report.length() > 0) out.print("Metrics at " + new Date() + "\n" + report);
+			}
+		}, period, period, TimeUnit.SECONDS);
+	}
+
+	public static synchronized void stopReporter(){
+		if (reporter != null) reporter.shutdownNow();
+		reporter = null;
+	}
+
+	private static void register(String type, String name, Object bean){
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName id = new ObjectName("kps:type=" + type + ",name=" + ObjectName.quote(name));
+			if (!server.isRegistered(id)) server.registerMBean(bean, id);
+		} catch (Exception e) {
+			// Metrics still count, they just can't be seen through JMX
+			e.printStackTrace();
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package service;
 
 public class Cost {
+	private static PricingEngine engine;
+
 	double costVal;
 	boolean mail;
 	Mail m;
@@ -9,29 +11,34 @@ public class Cost {
 	public Cost(Mail m){
 		this.m = m;
 		mail = true;
-		calculateMailCost();
+		costVal = getEngine().quote(m);
 	}
 	
 	public Cost (Parcel p){
 		this.p = p;
 		mail = false;
-		calculatePackageCost();
+		costVal = getEngine().quote(p);
 	}
-	
-	private void calculatePackageCost() {
-		int distance = m.getToAddress().length() - m.getToAddress().length(); //just uses difference in adress string until proper distances are added
-		distance = Math.abs(distance);
-		costVal = p.getWeight() *p.getPriority() * distance;
+
+	/**
+	 * @return The engine all prices are worked out by, a RatePricingEngine on the <br>
+	 * 		   default rates and routes unless another has been set
+	 */
+	public static synchronized PricingEngine getEngine() {
+		if (engine == null)
+			engine = new RatePricingEngine();
+		return engine;
 	}
 
-	private void calculateMailCost() {
-		int distance = m.getToAddress().length() - m.getToAddress().length(); //just uses difference in adress string until proper distances are added
-		distance = Math.abs(distance);
-		this.costVal = distance * m.getPriority();
+	/**
+	 * @param e Engine to price by from now on, or null to go back to the default
+	 */
+	public static synchronized void setEngine(PricingEngine e) {
+		engine = e;
 	}
 
 	public double getPrice() {
-		return costVal*1.125;
+		return costVal;
 		
 	}
 
@@ -0,0 +1,159 @@
+package service;
+
+import java.util.Calendar;
+
+/**
+ * Days stored as the number of days since 1/01/1970, so they can be kept and <br>
+ * compared as a plain int. <br>
+ * Parsing and formatting work straight on the characters, without creating a <br>
+ * SimpleDateFormat or Date for every call.
+ */
+public final class EpochDay {
+
+	/** Returned by parse when a day can't be read */
+	public static final int INVALID = Integer.MIN_VALUE;
+
+	/** Longest day, month and year parse reads */
+	private static final int MAX_DIGITS = 4, MAX_YEAR_DIGITS = 5;
+
+	private EpochDay(){}
+
+	/**
+	 * Reads a day in the format dd/mm/yyyy, i.e. "10/05/2013" or "1/05/2013". <br>
+	 * Like SimpleDateFormat days and months past the end roll over, so "32/01/2013" <br>
+	 * is the 1/02/2013. <br>
+	 * Days and months of more than 4 digits and years of more than 5 aren't read, so <br>
+	 * the result always fits in an int.
+	 *
+	 * @param day Day to read
+	 * @return Days since 1/01/1970, or INVALID if the day is not in the format
+	 */
+	public static int parse(String day){
+		if (day == null) return INVALID;
+		// The three numbers of the day, read in turn
+		int d = 0, m = 0, y = 0;
+		int part = 0, digits = 0;
+		for (int i = 0; i < day.length(); i++){
+			char c = day.charAt(i);
+			if (c == '/'){
+				if (digits == 0 || ++part > 2) return INVALID;
+				digits = 0;
+			}
+			else if (c >= '0' && c <= '9' && digits < (part == 2 ? MAX_YEAR_DIGITS : MAX_DIGITS)){
+				int n = c - '0';
+				if (part == 0) d = d * 10 + n;
+				else if (part == 1) m = m * 10 + n;
+				else y = y * 10 + n;
+				digits++;
+			}
+			else return INVALID;
+		}
+		if (part != 2 || digits == 0) return INVALID;
+		return of(y, m, d);
+	}
+
+	/**
+	 * @param year Year, i.e. 2013
+	 * @param month Month of the year, 1 to 12. Other values roll over into other years
+	 * @param day Day of the month. Values past the end of the month roll over
+	 * @return Days since 1/01/1970
+	 */
+	public static int of(int year, int month, int day){
+		// Bring the month into 1..12, carrying into the year
+		int m0 = month - 1;
+		int carry = m0 >= 0 ? m0 / 12 : (m0 - 11) / 12;
+		year += carry;
+		m0 -= carry * 12;
+		return fromCivil(year, m0 + 1, 1) + day - 1;
+	}
+
+	/**
+	 * @return Today in the local time zone, as days since 1/01/1970
+	 */
+	public static int today(){
+		Calendar c = Calendar.getInstance();
+		return of(c.get(Calendar.YEAR), c.get(Calendar.MONTH) + 1, c.get(Calendar.DAY_OF_MONTH));
+	}
+
+	/**
+	 * @param epochDay Days since 1/01/1970
+	 * @return Months since January 1970 of the month the day is in
+	 */
+	public static int monthOf(int epochDay){
+		int c = toCivil(epochDay);
+		return ((c >> 9) - 1970) * 12 + ((c >> 5) & 15) - 1;
+	}
+
+	/**
+	 * @param month Months since January 1970
+	 * @return Days since 1/01/1970 of the first day of the month
+	 */
+	public static int startOfMonth(int month){
+		return of(1970, month + 1, 1);
+	}
+
+	/**
+	 * @param epochDay Days since 1/01/1970
+	 * @return Weeks, starting on Monday, since the week of 1/01/1970
+	 */
+	public static int weekOf(int epochDay){
+		// 1/01/1970 was a Thursday
+		int d = epochDay + 3;
+		return d >= 0 ? d / 7 : (d - 6) / 7;
+	}
+
+	/**
+	 * @param week Weeks since the week of 1/01/1970
+	 * @return Days since 1/01/1970 of the Monday the week starts on
+	 */
+	public static int startOfWeek(int week){
+		return week * 7 - 3;
+	}
+
+	/**
+	 * Year, month and day of a day, packed as year << 9 | month << 5 | day. <br>
+	 * See http://howardhinnant.github.io/date_algorithms.html
+	 */
+	private static int toCivil(int epochDay){
+		int z = epochDay + 719468;
+		int era = (z >= 0 ? z : z - 146096) / 146097;
+		int doe = z - era * 146097;
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int y = yoe + era * 400;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int d = doy - (153 * mp + 2) / 5 + 1;
+		int m = mp < 10 ? mp + 3 : mp - 9;
+		if (m <= 2) y++;
+		return y << 9 | m << 5 | d;
+	}
+
+	/**
+	 * Days from 1/01/1970 of a day in the proleptic Gregorian calendar. <br>
+	 * See http://howardhinnant.github.io/date_algorithms.html
+	 */
+	private static int fromCivil(int y, int m, int d){
+		if (m <= 2) y--;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yoe = y - era * 400;
+		int doy = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5 + d - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	/**
+	 * @param epochDay Days since 1/01/1970
+	 * @return The day in the format dd/mm/yyyy
+	 */
+	public static String format(int epochDay){
+		int c = toCivil(epochDay);
+		int y = c >> 9, m = (c >> 5) & 15, d = c & 31;
+
+		StringBuilder sb = new StringBuilder(10);
+		if (d < 10) sb.append('0');
+		sb.append(d).append('/');
+		if (m < 10) sb.append('0');
+		sb.append(m).append('/').append(y);
+		return sb.toString();
+	}
+}
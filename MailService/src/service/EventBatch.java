@@ -0,0 +1,283 @@
+package service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Column by column copy of a number of mail and parcel events, for totalling <br>
+ * up large numbers of events. <br>
+ * Each event is a row across primitive arrays: days as epoch days, places as codes <br>
+ * into a dictionary of locations, and priority, weight and volume as doubles. <br>
+ * Mail has a weight and volume of 0.
+ *
+ * The arrays returned by the getters are the batch's own, and must not be changed.
+ */
+public class EventBatch {
+
+	private final int size;
+	private final int[] days;
+	private final int[] to;
+	private final int[] from;
+	private final double[] priority;
+	private final double[] weight;
+	private final double[] volume;
+	private final boolean[] parcel;
+	private final String[] locations;
+	private final HashMap<String, Integer> codes;
+
+	private EventBatch(Builder b){
+		this.size = b.size;
+		this.days = Arrays.copyOf(b.days, b.size);
+		this.to = Arrays.copyOf(b.to, b.size);
+		this.from = Arrays.copyOf(b.from, b.size);
+		this.priority = Arrays.copyOf(b.priority, b.size);
+		this.weight = Arrays.copyOf(b.weight, b.size);
+		this.volume = Arrays.copyOf(b.volume, b.size);
+		this.parcel = Arrays.copyOf(b.parcel, b.size);
+		this.locations = Arrays.copyOf(b.locations, b.locationCount);
+		this.codes = new HashMap<String, Integer>(b.codes);
+	}
+
+	/**
+	 * Makes a batch of the given Mail and Parcel objects, in the same order.
+	 *
+	 * @param events Events to copy
+	 * @return Batch of the events
+	 */
+	public static EventBatch of(List<? extends Mail> events){
+		Builder b = new Builder(events.size());
+		for (Mail m: events){
+			if (m instanceof Parcel){
+				Parcel p = (Parcel)m;
+				b.add(m.getEpochDay(), m.getToAddress(), m.getFrom(), m.getPriority(), p.getWeight(), p.getVolume(), true);
+			}
+			else b.add(m.getEpochDay(), m.getToAddress(), m.getFrom(), m.getPriority(), 0, 0, false);
+		}
+		return b.build();
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public int[] getDays(){
+		return days;
+	}
+
+	/**
+	 * @return Location code of the destination of each event
+	 */
+	public int[] getTo(){
+		return to;
+	}
+
+	/**
+	 * @return Location code of the origin of each event
+	 */
+	public int[] getFrom(){
+		return from;
+	}
+
+	public double[] getPriority(){
+		return priority;
+	}
+
+	public double[] getWeight(){
+		return weight;
+	}
+
+	public double[] getVolume(){
+		return volume;
+	}
+
+	public boolean[] getParcel(){
+		return parcel;
+	}
+
+	/**
+	 * @return Number of different locations in the batch. Codes are 0 up to this
+	 */
+	public int getLocationCount(){
+		return locations.length;
+	}
+
+	/**
+	 * @param code Location code from getTo or getFrom
+	 * @return Name of the location
+	 */
+	public String getLocation(int code){
+		return locations[code];
+	}
+
+	/**
+	 * @param location Name of a location
+	 * @return Its code in this batch, or -1 if no event goes to or from it
+	 */
+	public int getLocationCode(String location){
+		Integer code = codes.get(location);
+		return code == null ? -1 : code;
+	}
+
+	/**
+	 * @return Total weight of every parcel in the batch
+	 */
+	public double totalWeight(){
+		return sum(weight);
+	}
+
+	/**
+	 * @return Total volume of every parcel in the batch
+	 */
+	public double totalVolume(){
+		return sum(volume);
+	}
+
+	/**
+	 * Adds up a column a chunk at a time, in parallel for big batches.
+	 */
+	private double sum(final double[] column){
+		double total = 0;
+		for (double part: ParallelScan.run(size, new ParallelScan.Task<Double>(){
+			public Double scan(int from, int to){
+				double t = 0;
+				for (int i = from; i < to; i++)
+					t += column[i];
+				return t;
+			}
+		}))
+			total += part;
+		return total;
+	}
+
+	/**
+	 * @return Number of events to each destination, indexed by location code
+	 */
+	public int[] countByDestination(){
+		int[] counts = new int[locations.length];
+		for (int[] part: ParallelScan.run(size, new ParallelScan.Task<int[]>(){
+			public int[] scan(int from, int end){
+				int[] c = new int[locations.length];
+				for (int i = from; i < end; i++)
+					c[to[i]]++;
+				return c;
+			}
+		}))
+			for (int k = 0; k < counts.length; k++)
+				counts[k] += part[k];
+		return counts;
+	}
+
+	/**
+	 * @return Total weight sent to each destination, indexed by location code
+	 */
+	public double[] weightByDestination(){
+		return sumByDestination(weight);
+	}
+
+	/**
+	 * @return Total volume sent to each destination, indexed by location code
+	 */
+	public double[] volumeByDestination(){
+		return sumByDestination(volume);
+	}
+
+	/**
+	 * Adds up a column for each destination a chunk at a time, in parallel for big batches.
+	 */
+	private double[] sumByDestination(final double[] column){
+		double[] totals = new double[locations.length];
+		for (double[] part: ParallelScan.run(size, new ParallelScan.Task<double[]>(){
+			public double[] scan(int from, int end){
+				double[] t = new double[locations.length];
+				for (int i = from; i < end; i++)
+					t[to[i]] += column[i];
+				return t;
+			}
+		}))
+			for (int k = 0; k < totals.length; k++)
+				totals[k] += part[k];
+		return totals;
+	}
+
+	/**
+	 * Adds events to a new batch one at a time.
+	 */
+	public static class Builder {
+		private int size;
+		private int[] days;
+		private int[] to;
+		private int[] from;
+		private double[] priority;
+		private double[] weight;
+		private double[] volume;
+		private boolean[] parcel;
+		private String[] locations = new String[16];
+		private int locationCount;
+		private final HashMap<String, Integer> codes = new HashMap<String, Integer>();
+
+		/**
+		 * @param capacity Number of events expected
+		 */
+		public Builder(int capacity){
+			capacity = Math.max(capacity, 16);
+			days = new int[capacity];
+			to = new int[capacity];
+			from = new int[capacity];
+			priority = new double[capacity];
+			weight = new double[capacity];
+			volume = new double[capacity];
+			parcel = new boolean[capacity];
+		}
+
+		/**
+		 * Adds an event to the end of the batch.
+		 *
+		 * @param day Day in days since 1/01/1970
+		 * @param toAddress Destination
+		 * @param fromAddress Origin
+		 * @param priority Priority
+		 * @param weight Weight, 0 for mail
+		 * @param volume Volume, 0 for mail
+		 * @param isParcel Whether the event is a parcel
+		 * @return this builder
+		 */
+		public Builder add(int day, String toAddress, String fromAddress, double priority, double weight, double volume, boolean isParcel){
+			if (size == days.length){
+				int n = size * 2;
+				days = Arrays.copyOf(days, n);
+				to = Arrays.copyOf(to, n);
+				from = Arrays.copyOf(from, n);
+				this.priority = Arrays.copyOf(this.priority, n);
+				this.weight = Arrays.copyOf(this.weight, n);
+				this.volume = Arrays.copyOf(this.volume, n);
+				parcel = Arrays.copyOf(parcel, n);
+			}
+			days[size] = day;
+			to[size] = code(toAddress);
+			from[size] = code(fromAddress);
+			this.priority[size] = priority;
+			this.weight[size] = weight;
+			this.volume[size] = volume;
+			parcel[size] = isParcel;
+			size++;
+			return this;
+		}
+
+		private int code(String location){
+			Integer code = codes.get(location);
+			if (code == null){
+				if (locationCount == locations.length)
+					locations = Arrays.copyOf(locations, locationCount * 2);
+				code = locationCount;
+				locations[locationCount++] = location;
+				codes.put(location, code);
+			}
+			return code;
+		}
+
+		public EventBatch build(){
+			return new EventBatch(this);
+		}
+	}
+}
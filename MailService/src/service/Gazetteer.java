@@ -0,0 +1,219 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import file.XMLWorker;
+import metrics.Histogram;
+import metrics.Metrics;
+
+/**
+ * Every place a clerk can send mail to or from: the countries in countries.xml and <br>
+ * the depots in routes.xml. Names are kept in a prefix trie packed into arrays, <br>
+ * so finding the places starting with what has been typed takes a walk of one <br>
+ * node per letter, a few microseconds however many places there are. <br>
+ * A gazetteer can't be changed once made, so it can be read from any thread.
+ *
+ * An example will illustrate how it is used.
+ *
+ * ArrayList<String> found = Gazetteer.getDefault().complete("new", EnumSet.of(Gazetteer.Kind.COUNTRY), 10);
+ */
+public final class Gazetteer {
+
+	/**
+	 * What a place is.
+	 */
+	public enum Kind {
+		COUNTRY, DEPOT
+	}
+
+	private static final Histogram COMPLETE = Metrics.histogram("gazetteer.complete");
+
+	private static Gazetteer defaultGazetteer;
+
+	/** Names in order of their folded form */
+	private final String[] names;
+	/** Kinds of each name, one bit per Kind */
+	private final int[] kinds;
+
+	/**
+	 * Nodes of the trie, node 0 being the root. The names under a node are next <br>
+	 * to each other in names, from first to end.
+	 */
+	private final char[] label;
+	private final int[] firstChild;
+	private final int[] nextSibling;
+	private final int[] first;
+	private final int[] end;
+	private int nodes;
+
+	/**
+	 * @param places Kinds of each place by name. Names differing only in case are <br>
+	 * 		  treated as the same place
+	 */
+	public Gazetteer(Map<String, EnumSet<Kind>> places){
+		TreeMap<String, Integer> sorted = new TreeMap<String, Integer>();
+		TreeMap<String, String> shown = new TreeMap<String, String>();
+		int letters = 0;
+		for (Map.Entry<String, EnumSet<Kind>> e: places.entrySet()){
+			String name = e.getKey().trim();
+			if (name.isEmpty()) continue;
+			String key = fold(name);
+			Integer bits = sorted.get(key);
+			sorted.put(key, (bits == null ? 0 : bits) | bits(e.getValue()));
+			if (!shown.containsKey(key)) shown.put(key, name);
+			letters += key.length();
+		}
+
+		names = shown.values().toArray(new String[shown.size()]);
+		kinds = new int[names.length];
+		String[] keys = sorted.keySet().toArray(new String[sorted.size()]);
+		for (int i = 0; i < keys.length; i++)
+			kinds[i] = sorted.get(keys[i]);
+
+		int capacity = letters + 1;
+		label = new char[capacity];
+		firstChild = new int[capacity];
+		nextSibling = new int[capacity];
+		first = new int[capacity];
+		end = new int[capacity];
+		build(keys, 0, keys.length, 0);
+	}
+
+	/**
+	 * @return The gazetteer of countries.xml and routes.xml, loaded the first time <br>
+	 * 		   it is needed
+	 */
+	public static synchronized Gazetteer getDefault(){
+		if (defaultGazetteer == null)
+			defaultGazetteer = load(XMLWorker.loadCountries(), RouteGraph.getDefault());
+		return defaultGazetteer;
+	}
+
+	/**
+	 * @param countries Names of countries
+	 * @param routes Graph to take the depots of
+	 * @return Gazetteer of the countries and depots
+	 */
+	public static Gazetteer load(Iterable<String> countries, RouteGraph routes){
+		TreeMap<String, EnumSet<Kind>> places = new TreeMap<String, EnumSet<Kind>>();
+		for (String c: countries)
+			add(places, c, Kind.COUNTRY);
+		for (int i = 0; i < routes.getDepotCount(); i++)
+			add(places, routes.getDepot(i).getAddress(), Kind.DEPOT);
+		return new Gazetteer(places);
+	}
+
+	private static void add(Map<String, EnumSet<Kind>> places, String name, Kind kind){
+		EnumSet<Kind> k = places.get(name);
+		if (k == null) places.put(name, k = EnumSet.noneOf(Kind.class));
+		k.add(kind);
+	}
+
+	/**
+	 * Finds the places whose name starts with the given text, ignoring case.
+	 *
+	 * @param prefix Text typed so far
+	 * @param kinds Kinds of place to find
+	 * @param limit Most places to return
+	 * @return The names, in alphabetical order
+	 */
+	public ArrayList<String> complete(String prefix, EnumSet<Kind> kinds, int limit){
+		long start = Metrics.start();
+		ArrayList<String> found = new ArrayList<String>();
+		int node = find(fold(prefix.trim()));
+		if (node >= 0){
+			int want = bits(kinds);
+			for (int i = first[node]; i < end[node] && found.size() < limit; i++)
+				if ((this.kinds[i] & want) != 0) found.add(names[i]);
+		}
+		COMPLETE.stop(start);
+		return found;
+	}
+
+	/**
+	 * @param kind Kind of place
+	 * @return Every place of that kind, in alphabetical order
+	 */
+	public ArrayList<String> getAll(Kind kind){
+		return complete("", EnumSet.of(kind), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param name Name of a place, in any case
+	 * @param kind Kind of place
+	 * @return The name as it is in the gazetteer, or null if there is no such place
+	 */
+	public String lookup(String name, Kind kind){
+		String key = fold(name.trim());
+		int node = find(key);
+		// The exact name sorts before every longer name under its node
+		if (node < 0 || first[node] == end[node]) return null;
+		int i = first[node];
+		return fold(names[i]).equals(key) && (kinds[i] & 1 << kind.ordinal()) != 0 ? names[i] : null;
+	}
+
+	/**
+	 * @return Number of places
+	 */
+	public int size(){
+		return names.length;
+	}
+
+	/**
+	 * Walks the trie along the key.
+	 * @return The node the key ends at, or -1 if no name starts with it
+	 */
+	private int find(String key){
+		int node = 0;
+		for (int d = 0; d < key.length() && node >= 0; d++){
+			char c = key.charAt(d);
+			int child = firstChild[node];
+			while (child > 0 && label[child] != c)
+				child = nextSibling[child];
+			node = child > 0 ? child : -1;
+		}
+		return node;
+	}
+
+	/**
+	 * Adds the node for keys[from..to), which all share their first depth letters, <br>
+	 * and the nodes under it.
+	 * @return The node
+	 */
+	private int build(String[] keys, int from, int to, int depth){
+		int node = nodes++;
+		first[node] = from;
+		end[node] = to;
+		// A name which ends here sorts before the longer names
+		int i = from;
+		while (i < to && keys[i].length() == depth) i++;
+		int last = 0;
+		while (i < to){
+			char c = keys[i].charAt(depth);
+			int j = i;
+			while (j < to && keys[j].charAt(depth) == c) j++;
+			int child = build(keys, i, j, depth + 1);
+			label[child] = c;
+			if (last == 0) firstChild[node] = child;
+			else nextSibling[last] = child;
+			last = child;
+			i = j;
+		}
+		return node;
+	}
+
+	private static String fold(String s){
+		return s.toLowerCase(Locale.ENGLISH);
+	}
+
+	private static int bits(EnumSet<Kind> kinds){
+		int bits = 0;
+		for (Kind k: kinds)
+			bits |= 1 << k.ordinal();
+		return bits;
+	}
+}
@@ -0,0 +1,58 @@
+package service;
+
+/**
+ * One direct connection between two depots, by one type of transport.
+ */
+public class Leg {
+	private Depot from;
+	private Depot to;
+	private TransportType type;
+	private double distance;
+	private double cost;
+	private double duration;
+
+	/**
+	 * @param from Depot the leg starts at
+	 * @param to Depot the leg ends at
+	 * @param type How mail is carried
+	 * @param distance Length of the leg in km
+	 * @param cost What it costs to carry 1kg along the leg
+	 * @param duration How long the leg takes, in hours
+	 */
+	public Leg(Depot from, Depot to, TransportType type, double distance, double cost, double duration) {
+		this.from = from;
+		this.to = to;
+		this.type = type;
+		this.distance = distance;
+		this.cost = cost;
+		this.duration = duration;
+	}
+
+	public Depot getFrom() {
+		return from;
+	}
+
+	public Depot getTo() {
+		return to;
+	}
+
+	public TransportType getType() {
+		return type;
+	}
+
+	public double getDistance() {
+		return distance;
+	}
+
+	public double getCost() {
+		return cost;
+	}
+
+	public double getDuration() {
+		return duration;
+	}
+
+	public String toString(){
+		return from.getAddress() + " -> " + to.getAddress() + " (" + type + ")";
+	}
+}
@@ -7,12 +7,14 @@ private String day;
 private String toAddress;
 private String from;
 private double priority;
+private int epochDay;
 
 public Mail(String day, String toAddress, String from, int priority) {
 this.day = day;
 this.toAddress = toAddress;
 this.from = from;
 this.priority = priority;
+this.epochDay = EpochDay.parse(day);
 }
 
 public Mail(String day, String toAddress, String from, String priority) {
@@ -20,6 +22,7 @@ this.day = day;
 this.toAddress = toAddress;
 this.from = from;
 this.priority = Double.parseDouble(priority);
+this.epochDay = EpochDay.parse(day);
 }	
 
 
@@ -27,6 +30,13 @@ public String getDay() {
 return day;
 }
 
+/**
+ * @return Day as days since 1/01/1970, or EpochDay.INVALID if it couldn't be read
+ */
+public int getEpochDay() {
+return epochDay;
+}
+
 public String getToAddress() {
 return toAddress;
 }
@@ -40,9 +50,7 @@ return priority;
 }
 
 public double getCost(){
-Cost c = new Cost(this);
-
-return c.getPrice();
+return Cost.getEngine().quote(this);
 }
 
 public String[] getData(){
@@ -0,0 +1,96 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits a scan over a large number of events into fixed size chunks and runs the <br>
+ * chunks on a shared pool with a thread per core. <br>
+ * Results come back in chunk order, and chunks are the same size whatever the number <br>
+ * of cores, so merging them gives the same answer as scanning on one thread.
+ */
+public final class ParallelScan {
+
+	/** Events per chunk. Scans of fewer events than this run on the calling thread */
+	public static final int CHUNK = 1 << 16;
+
+	/**
+	 * Scans one chunk of events.
+	 */
+	public interface Task<T> {
+		/**
+		 * @param from First event of the chunk
+		 * @param to One past the last event of the chunk
+		 * @return Result for the chunk
+		 */
+		T scan(int from, int to);
+	}
+
+	private static ExecutorService pool;
+
+	private ParallelScan(){}
+
+	/**
+	 * Runs the task over events 0 to size.
+	 *
+	 * @param size Number of events
+	 * @param task Scan of a chunk
+	 * @return Result of each chunk, in order
+	 */
+	public static <T> List<T> run(int size, final Task<T> task){
+		List<T> results = new ArrayList<T>();
+		int chunks = (size + CHUNK - 1) / CHUNK;
+		// Small scans, and scans started by a chunk, aren't worth handing to the pool
+		if (chunks <= 1 || Thread.currentThread() instanceof Worker){
+			for (int from = 0; from < size; from += CHUNK)
+				results.add(task.scan(from, Math.min(size, from + CHUNK)));
+			if (size == 0) results.add(task.scan(0, 0));
+			return results;
+		}
+
+		List<Future<T>> futures = new ArrayList<Future<T>>(chunks);
+		for (int from = 0; from < size; from += CHUNK){
+			final int start = from;
+			final int end = Math.min(size, from + CHUNK);
+			futures.add(getPool().submit(new Callable<T>(){
+				public T call(){ return task.scan(start, end); }
+			}));
+		}
+		try {
+			for (Future<T> f: futures)
+				results.add(f.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		return results;
+	}
+
+	private static synchronized ExecutorService getPool(){
+		if (pool == null){
+			pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory(){
+				private int count;
+				public synchronized Thread newThread(Runnable r){
+					return new Worker(r, "scan-" + count++);
+				}
+			});
+		}
+		return pool;
+	}
+
+	private static class Worker extends Thread {
+		Worker(Runnable r, String name){
+			super(r, name);
+			setDaemon(true);
+		}
+	}
+}
@@ -7,11 +7,16 @@ public class Parcel extends Mail{
 
 	private String weight;
 	private String volume;
+	// Parsed once here rather than on every call
+	private double weightVal;
+	private double volumeVal;
 	
 	public Parcel(String day, String toAddress, String from, String weight, String volume, int priority) {
 		super(day, toAddress, from, priority);
 		this.weight = weight;
 		this.volume = volume;
+		this.weightVal = Double.parseDouble(weight);
+		this.volumeVal = Double.parseDouble(volume);
 	}
 
 
@@ -19,10 +24,16 @@ public class Parcel extends Mail{
 		super(day, toAddress, from, priority);
 		this.weight = weight;
 		this.volume = volume;
+		this.weightVal = Double.parseDouble(weight);
+		this.volumeVal = Double.parseDouble(volume);
 	}
 
 	public double getWeight() {
-		return Double.parseDouble(weight);
+		return weightVal;
+	}
+
+	public double getVolume() {
+		return volumeVal;
 	}
 
 	public String volume(){
@@ -0,0 +1,162 @@
+package service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import file.PriceHistory;
+
+/**
+ * Bounded cache of prices, which throws away the least recently used price once it <br>
+ * is full. <br>
+ * Prices are kept per kg, keyed by origin, destination, priority, the weight band <br>
+ * of the RateTable and the day the price event in force took effect, so parcels of <br>
+ * similar weight sent while the same price applied share one entry. <br>
+ * Everything is thrown away when the price history or the routes change.
+ */
+public class PriceCache {
+
+	public static final int DEFAULT_SIZE = 10000;
+
+	private final int maxSize;
+	private final LinkedHashMap<Key, Double> entries;
+	private RouteTable routes;
+	private int routesVersion;
+	private PriceHistory history;
+	private int historyVersion;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+
+	/**
+	 * @param maxSize Most prices to keep
+	 */
+	public PriceCache(int maxSize){
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<Key, Double>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<Key, Double> eldest){
+				if (size() <= PriceCache.this.maxSize) return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @param origin Origin, trimmed
+	 * @param destination Destination, trimmed
+	 * @param priority Priority of the mail
+	 * @param band Weight band, or -1 for mail
+	 * @param since Day the price in force took effect, or EpochDay.INVALID for the <br>
+	 * 		  RateTable's price
+	 * @return The price, or NaN if it isn't cached
+	 */
+	public synchronized double get(String origin, String destination, double priority, int band, int since){
+		Double price = entries.get(new Key(origin, destination, priority, band, since));
+		if (price == null){
+			misses++;
+			return Double.NaN;
+		}
+		hits++;
+		return price;
+	}
+
+	public synchronized void put(String origin, String destination, double priority, int band, int since, double price){
+		entries.put(new Key(origin, destination, priority, band, since), price);
+	}
+
+	/**
+	 * Throws everything away if the price history or the routes have changed since <br>
+	 * the cache was last checked.
+	 *
+	 * @param table Route table prices are being worked out from
+	 * @param prices Price history prices are being worked out from
+	 */
+	synchronized void validate(RouteTable table, PriceHistory prices){
+		boolean changed = false;
+		if (table != routes || table.getVersion() != routesVersion){
+			changed = routes != null;
+			routes = table;
+			routesVersion = table.getVersion();
+		}
+		if (prices != history || prices.getVersion() != historyVersion){
+			changed |= history != null;
+			history = prices;
+			historyVersion = prices.getVersion();
+		}
+		if (changed) invalidate();
+	}
+
+	/**
+	 * Throws away every cached price.
+	 */
+	public synchronized void invalidate(){
+		if (!entries.isEmpty()) invalidations++;
+		entries.clear();
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	public synchronized long getHits(){
+		return hits;
+	}
+
+	public synchronized long getMisses(){
+		return misses;
+	}
+
+	public synchronized long getEvictions(){
+		return evictions;
+	}
+
+	public synchronized long getInvalidations(){
+		return invalidations;
+	}
+
+	/**
+	 * @return Fraction of lookups which were cached, 0 if there have been none
+	 */
+	public synchronized double getHitRate(){
+		long total = hits + misses;
+		return total == 0 ? 0 : (double)hits / total;
+	}
+
+	public synchronized String toString(){
+		return "PriceCache[size=" + entries.size() + "/" + maxSize + ", hits=" + hits + ", misses=" + misses
+				+ ", evictions=" + evictions + ", invalidations=" + invalidations + "]";
+	}
+
+	private static class Key {
+		final String origin;
+		final String destination;
+		final double priority;
+		final int band;
+		final int since;
+
+		Key(String origin, String destination, double priority, int band, int since){
+			this.origin = origin;
+			this.destination = destination;
+			this.priority = priority;
+			this.band = band;
+			this.since = since;
+		}
+
+		public boolean equals(Object o){
+			if (!(o instanceof Key)) return false;
+			Key k = (Key)o;
+			return origin.equals(k.origin) && destination.equals(k.destination)
+					&& Double.compare(priority, k.priority) == 0 && band == k.band && since == k.since;
+		}
+
+		public int hashCode(){
+			long p = Double.doubleToLongBits(priority);
+			int h = origin.hashCode() * 31 + destination.hashCode();
+			h = h * 31 + (int)(p ^ (p >>> 32));
+			h = h * 31 + band;
+			return h * 31 + since;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package service;
+
+import java.util.List;
+
+/**
+ * Works out what customers are charged for mail and parcels. <br>
+ * The engine used everywhere can be swapped with {@link Cost#setEngine(PricingEngine)}.
+ */
+public interface PricingEngine {
+
+	/**
+	 * @param mail Mail or Parcel to price
+	 * @return Price of sending it
+	 */
+	double quote(Mail mail);
+
+	/**
+	 * Prices a number of events at once.
+	 *
+	 * @param mail Mail and Parcels to price
+	 * @return Price of each, in the same order
+	 */
+	double[] quote(List<? extends Mail> mail);
+
+	/**
+	 * Prices every event in a batch in one pass over its columns.
+	 *
+	 * @param batch Events to price
+	 * @return Price of each, in the same order
+	 */
+	double[] quote(EventBatch batch);
+}
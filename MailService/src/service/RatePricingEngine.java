@@ -0,0 +1,171 @@
+package service;
+
+import java.util.HashMap;
+import java.util.List;
+
+import file.PriceHistory;
+import file.XMLWorker;
+import metrics.Histogram;
+import metrics.Metrics;
+
+/**
+ * Pricing engine which charges by the distance of the shortest route, using the <br>
+ * rules of a RateTable. Where a price event in the PriceHistory sets the rate for a <br>
+ * route and priority, the rate in force on the day of the mail is used instead. <br>
+ * A batch is priced in two passes: the distance of each different origin and <br>
+ * destination pair is looked up once, then every price is worked out in a single <br>
+ * loop over the batch's columns. <br>
+ * Single quotes go through a PriceCache, if the engine has one.
+ */
+public class RatePricingEngine implements PricingEngine {
+
+	private static final Histogram QUOTE = Metrics.histogram("quote");
+	private static final Histogram QUOTE_BATCH = Metrics.histogram("quote.batch");
+
+	private final RateTable rates;
+	private final RouteTable routes;
+	private final PriceHistory history;
+	private final PriceCache cache;
+
+	/**
+	 * @param rates Rules to price by
+	 * @param routes Where distances come from, or null for whatever <br>
+	 * 		  RouteTable.getDefault() is at the time
+	 * @param history Price events, or null for whatever XMLWorker.getPriceHistory() <br>
+	 * 		  is at the time
+	 * @param cache Cache for single quotes, or null to work every price out
+	 */
+	public RatePricingEngine(RateTable rates, RouteTable routes, PriceHistory history, PriceCache cache){
+		this.rates = rates;
+		this.routes = routes;
+		this.history = history;
+		this.cache = cache;
+	}
+
+	/**
+	 * Engine using the price events in costevents.xml, without a cache.
+	 */
+	public RatePricingEngine(RateTable rates, RouteTable routes){
+		this(rates, routes, null, null);
+	}
+
+	/**
+	 * Engine using the default rates, routes and price events, with a cache which <br>
+	 * is cleared whenever any of them change.
+	 */
+	public RatePricingEngine(){
+		this(RateTable.getDefault(), null, null, new PriceCache(PriceCache.DEFAULT_SIZE));
+	}
+
+	public RateTable getRates(){
+		return rates;
+	}
+
+	/**
+	 * @return The cache of single quotes, or null if there isn't one
+	 */
+	public PriceCache getCache(){
+		return cache;
+	}
+
+	public double quote(Mail mail){
+		long start = Metrics.start();
+		boolean isParcel = mail instanceof Parcel;
+		double weight = isParcel ? ((Parcel)mail).getWeight() : 0;
+		int band = isParcel ? rates.band(weight) : -1;
+		double unit = unitPrice(normalise(mail.getFrom()), normalise(mail.getToAddress()), mail.getPriority(), band, mail.getEpochDay());
+		QUOTE.stop(start);
+		return isParcel ? unit * weight : unit;
+	}
+
+	/**
+	 * Price of mail, or price per kg of a parcel in the given band, on the given day.
+	 */
+	private double unitPrice(String from, String to, double priority, int band, int day){
+		RouteTable table = table();
+		PriceHistory prices = history();
+		int since = prices.rateSince(from, to, priority, day);
+		if (cache == null)
+			return unitPrice(table, prices, from, to, priority, band, day, since);
+
+		cache.validate(table, prices);
+		double unit = cache.get(from, to, priority, band, since);
+		if (Double.isNaN(unit)){
+			unit = unitPrice(table, prices, from, to, priority, band, day, since);
+			cache.put(from, to, priority, band, since, unit);
+		}
+		return unit;
+	}
+
+	private double unitPrice(RouteTable table, PriceHistory prices, String from, String to, double priority, int band, int day, int since){
+		double rate = since == EpochDay.INVALID ? rates.priorityRate(priority) : prices.rateOn(from, to, priority, day);
+		return rates.unitPriceAtRate(distance(table, from, to), rate, band);
+	}
+
+	public double[] quote(List<? extends Mail> mail){
+		return quote(EventBatch.of(mail));
+	}
+
+	public double[] quote(EventBatch batch){
+		long start = Metrics.start();
+		int n = batch.size();
+		int[] from = batch.getFrom();
+		int[] to = batch.getTo();
+
+		// Look up each different route once
+		RouteTable table = table();
+		double[] distance = new double[n];
+		HashMap<Long, Double> known = new HashMap<Long, Double>();
+		for (int i = 0; i < n; i++){
+			Long key = ((long)from[i] << 32) | to[i];
+			Double d = known.get(key);
+			if (d == null){
+				d = distance(table, normalise(batch.getLocation(from[i])), normalise(batch.getLocation(to[i])));
+				known.put(key, d);
+			}
+			distance[i] = d;
+		}
+
+		// Rate per km of each event, from the price in force on its day if there is one
+		int[] days = batch.getDays();
+		double[] priority = batch.getPriority();
+		double[] rate = new double[n];
+		PriceHistory events = history();
+		boolean hasPrices = events.hasPrices();
+		for (int i = 0; i < n; i++){
+			double r = hasPrices ? events.rateOn(batch.getLocation(from[i]), batch.getLocation(to[i]), priority[i], days[i]) : Double.NaN;
+			rate[i] = Double.isNaN(r) ? rates.priorityRate(priority[i]) : r;
+		}
+
+		double[] weight = batch.getWeight();
+		boolean[] parcel = batch.getParcel();
+		double[] prices = new double[n];
+		for (int i = 0; i < n; i++){
+			if (parcel[i])
+				prices[i] = rates.unitPriceAtRate(distance[i], rate[i], rates.band(weight[i])) * weight[i];
+			else
+				prices[i] = rates.unitPriceAtRate(distance[i], rate[i], -1);
+		}
+		QUOTE_BATCH.stop(start);
+		return prices;
+	}
+
+	/**
+	 * Length of the shortest route, or 0 if there is no known route.
+	 */
+	private static double distance(RouteTable table, String from, String to){
+		return Math.max(table.distance(from, to, RouteTable.PriorityClass.SHORTEST), 0);
+	}
+
+	private RouteTable table(){
+		return routes == null ? RouteTable.getDefault() : routes;
+	}
+
+	private PriceHistory history(){
+		return history == null ? XMLWorker.getPriceHistory() : history;
+	}
+
+	private static String normalise(String place){
+		return place == null ? "" : place.trim();
+	}
+}
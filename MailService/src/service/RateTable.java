@@ -0,0 +1,130 @@
+package service;
+
+import java.util.Arrays;
+
+import file.XMLWorker;
+
+/**
+ * Rules prices are worked out by: a rate per km for each priority, a rate per kg <br>
+ * for each band of weight, and a markup on top. <br>
+ * The default table is read from rates.xml. As shipped it gives the prices the old <br>
+ * Cost class did: distance x priority for mail, and distance x priority x weight for <br>
+ * parcels, plus 12.5%.
+ */
+public class RateTable {
+
+	/** Used if rates.xml can't be read. Gives the same prices as rates.xml as shipped */
+	private static final RateTable BUILT_IN = new RateTable(new double[0], new double[0], new double[0], 1.125);
+
+	private static RateTable defaultTable;
+
+	private final double[] priorityRates;
+	private final double[] bandLimits;
+	private final double[] bandRates;
+	private final double markup;
+
+	/**
+	 * @param priorityRates Rate per km for priority 0, 1, 2 and so on. Priorities past <br>
+	 * 		  the end, or which aren't whole numbers, use the priority itself as the rate
+	 * @param bandLimits Upper weight limit (inclusive) of each weight band, increasing
+	 * @param bandRates Rate per kg for each band. Weights above the last limit use 1
+	 * @param markup Everything is multiplied by this at the end
+	 */
+	public RateTable(double[] priorityRates, double[] bandLimits, double[] bandRates, double markup){
+		if (bandLimits.length != bandRates.length)
+			throw new IllegalArgumentException("Each weight band needs a rate");
+		this.priorityRates = Arrays.copyOf(priorityRates, priorityRates.length);
+		this.bandLimits = Arrays.copyOf(bandLimits, bandLimits.length);
+		this.bandRates = Arrays.copyOf(bandRates, bandRates.length);
+		this.markup = markup;
+	}
+
+	/**
+	 * @return The rates in rates.xml, loaded the first time they are needed
+	 */
+	public static synchronized RateTable getDefault(){
+		if (defaultTable == null){
+			defaultTable = XMLWorker.loadRates();
+			if (defaultTable == null) defaultTable = BUILT_IN;
+		}
+		return defaultTable;
+	}
+
+	/**
+	 * @param priority Priority of the mail
+	 * @return Rate per km
+	 */
+	public double priorityRate(double priority){
+		int p = (int)priority;
+		if (p == priority && p >= 0 && p < priorityRates.length)
+			return priorityRates[p];
+		return priority;
+	}
+
+	/**
+	 * @param weight Weight of a parcel in kg
+	 * @return Rate per kg for the band the weight is in
+	 */
+	public double weightRate(double weight){
+		return bandRate(band(weight));
+	}
+
+	/**
+	 * @param band Index of a weight band
+	 * @return Rate per kg for the band
+	 */
+	public double bandRate(int band){
+		return band < bandRates.length ? bandRates[band] : 1;
+	}
+
+	/**
+	 * @param weight Weight of a parcel in kg
+	 * @return Index of the band the weight is in, which is the number of bands if <br>
+	 * 		   it is above the last limit
+	 */
+	public int band(double weight){
+		int i = Arrays.binarySearch(bandLimits, weight);
+		return i >= 0 ? i : -i - 1;
+	}
+
+	public double getMarkup(){
+		return markup;
+	}
+
+	/**
+	 * Price of sending mail (or a parcel, if weight is more than 0).
+	 *
+	 * @param distance Length of the route in km
+	 * @param priority Priority of the mail
+	 * @param weight Weight in kg, 0 for mail
+	 * @param isParcel Whether it is a parcel
+	 * @return Price
+	 */
+	public double price(double distance, double priority, double weight, boolean isParcel){
+		if (!isParcel) return unitPrice(distance, priority, -1);
+		return unitPrice(distance, priority, band(weight)) * weight;
+	}
+
+	/**
+	 * Price of sending mail, or price per kg of sending a parcel. This is the same for <br>
+	 * every parcel in a weight band, so it is what gets cached.
+	 *
+	 * @param distance Length of the route in km
+	 * @param priority Priority of the mail
+	 * @param band Weight band of a parcel, or -1 for mail
+	 * @return Price, or price per kg
+	 */
+	public double unitPrice(double distance, double priority, int band){
+		return unitPriceAtRate(distance, priorityRate(priority), band);
+	}
+
+	/**
+	 * Same as unitPrice, but at a rate per km given by a price event rather than <br>
+	 * the rate for the priority.
+	 */
+	public double unitPriceAtRate(double distance, double rate, int band){
+		double perKm = rate;
+		if (band >= 0) perKm *= bandRate(band);
+		return distance * perKm * markup;
+	}
+}
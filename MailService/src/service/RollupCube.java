@@ -0,0 +1,562 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Totals of the mail and parcel events for each period (day, week or month), <br>
+ * destination, origin and priority, so reports over any of them add up a few <br>
+ * hundred cells instead of going through every event.
+ *
+ * Cells are kept in a compacted segment sorted by period, then destination, origin <br>
+ * and priority, so the cells of a range of periods are next to each other. <br>
+ * Events added after the cube is built go into a small table of new cells, which <br>
+ * is merged into the segment on a background thread once it gets big. Queries look <br>
+ * at both, so they never miss an event. <br>
+ * There is room for 8190 places and 62 priorities. Events to or from any more are <br>
+ * totalled under OTHER_PLACES and OTHER_PRIORITIES.
+ *
+ * An example will illustrate how it is used. Revenue per destination per week in 2013:
+ *
+ * ArrayList<RollupCube.Row> rows = XMLWorker.getRollupCube(RollupCube.Period.WEEK).query() <br>
+ * 		.between("01/01/2013", "31/12/2013").byTo().run();
+ */
+public class RollupCube {
+
+	/**
+	 * Length of the periods events are totalled over.
+	 */
+	public enum Period {
+		DAY, WEEK, MONTH;
+
+		/**
+		 * @param epochDay Days since 1/01/1970
+		 * @return Number of the period the day is in
+		 */
+		public int periodOf(int epochDay){
+			if (this == WEEK) return EpochDay.weekOf(epochDay);
+			if (this == MONTH) return EpochDay.monthOf(epochDay);
+			return epochDay;
+		}
+
+		/**
+		 * @param period Number of a period
+		 * @return Days since 1/01/1970 of the first day of the period
+		 */
+		public int startOf(int period){
+			if (this == WEEK) return EpochDay.startOfWeek(period);
+			if (this == MONTH) return EpochDay.startOfMonth(period);
+			return period;
+		}
+	}
+
+	/** New cells there can be before they are merged into the segment */
+	static final int COMPACT_AT = 4096;
+
+	/** Cells are keyed by period << 32 | destination << 19 | origin << 6 | priority */
+	private static final int PLACE_BITS = 13, PRIORITY_BITS = 6;
+	private static final int ANY_PLACE = (1 << PLACE_BITS) - 1, ANY_PRIORITY = (1 << PRIORITY_BITS) - 1;
+	private static final int OTHER_PLACE = ANY_PLACE - 1, OTHER_PRIORITY = ANY_PRIORITY - 1;
+
+	/** Place the events of places past the last code are totalled under */
+	public static final String OTHER_PLACES = "Other places";
+	/** Priority the events of priorities past the last code are totalled under */
+	public static final double OTHER_PRIORITIES = -1;
+
+	private static ExecutorService compactor;
+
+	private final Period period;
+	private final HashMap<String, Integer> placeCodes = new HashMap<String, Integer>();
+	private final ArrayList<String> places = new ArrayList<String>();
+	private final HashMap<Double, Integer> priorityCodes = new HashMap<Double, Integer>();
+	private final ArrayList<Double> priorities = new ArrayList<Double>();
+
+	private final Object compactLock = new Object();
+	private Segment segment = new Segment(new long[0], new Cell[0]);
+	/** Cells being merged into the segment */
+	private HashMap<Long, Cell> merging = new HashMap<Long, Cell>();
+	/** Cells added since the last merge started */
+	private HashMap<Long, Cell> added = new HashMap<Long, Cell>();
+	private boolean compactionQueued;
+	private int compactions;
+
+	/**
+	 * @param period Length of the periods to total over
+	 */
+	public RollupCube(Period period){
+		this.period = period;
+	}
+
+	/**
+	 * Builds a cube of every event in a batch.
+	 *
+	 * @param period Length of the periods to total over
+	 * @param batch Events
+	 * @param revenue Price of each event in the batch
+	 * @return The cube, already compacted
+	 */
+	public static RollupCube of(Period period, EventBatch batch, double[] revenue){
+		RollupCube cube = new RollupCube(period);
+		int[] days = batch.getDays();
+		int[] to = batch.getTo();
+		int[] from = batch.getFrom();
+		double[] priority = batch.getPriority();
+		double[] weight = batch.getWeight();
+		double[] volume = batch.getVolume();
+		boolean[] parcel = batch.getParcel();
+		synchronized (cube){
+			for (int i = 0; i < batch.size(); i++)
+				cube.addCell(days[i], batch.getLocation(to[i]), batch.getLocation(from[i]), priority[i],
+						parcel[i], revenue[i], weight[i], volume[i]);
+		}
+		cube.compact();
+		return cube;
+	}
+
+	public Period getPeriod(){
+		return period;
+	}
+
+	/**
+	 * Adds an event to the cube.
+	 *
+	 * @param m Event
+	 * @param revenue Price of the event
+	 */
+	public void add(Mail m, double revenue){
+		boolean isParcel = m instanceof Parcel;
+		add(m.getEpochDay(), m.getToAddress(), m.getFrom(), m.getPriority(), isParcel, revenue,
+				isParcel ? ((Parcel)m).getWeight() : 0, isParcel ? ((Parcel)m).getVolume() : 0);
+	}
+
+	/**
+	 * Adds an event to the cube. Events on a day which couldn't be read are left out.
+	 */
+	public synchronized void add(int day, String to, String from, double priority, boolean isParcel,
+			double revenue, double weight, double volume){
+		addCell(day, to, from, priority, isParcel, revenue, weight, volume);
+		if (added.size() >= COMPACT_AT && !compactionQueued){
+			compactionQueued = true;
+			getCompactor().execute(new Runnable(){
+				public void run(){ compact(); }
+			});
+		}
+	}
+
+	private void addCell(int day, String to, String from, double priority, boolean isParcel,
+			double revenue, double weight, double volume){
+		if (day == EpochDay.INVALID) return;
+		Long key = key(period.periodOf(day), placeCode(to), placeCode(from), priorityCode(priority));
+		Cell c = added.get(key);
+		if (c == null){
+			c = new Cell();
+			added.put(key, c);
+		}
+		c.add(isParcel ? 1 : 0, 1, revenue, weight, volume);
+	}
+
+	/**
+	 * Merges the cells added since the last compaction into the sorted segment. <br>
+	 * Events can still be added and queries run while the merge is going on.
+	 */
+	public void compact(){
+		synchronized (compactLock){
+			Segment old;
+			HashMap<Long, Cell> toMerge;
+			synchronized (this){
+				compactionQueued = false;
+				if (added.isEmpty()) return;
+				merging = added;
+				added = new HashMap<Long, Cell>();
+				toMerge = merging;
+				old = segment;
+			}
+
+			Segment merged = old.merge(toMerge);
+
+			synchronized (this){
+				segment = merged;
+				merging = new HashMap<Long, Cell>();
+				compactions++;
+			}
+		}
+	}
+
+	/**
+	 * @return Number of compactions done so far
+	 */
+	public synchronized int getCompactionCount(){
+		return compactions;
+	}
+
+	/**
+	 * @return Number of cells in the cube
+	 */
+	public synchronized int getCellCount(){
+		return segment.keys.length + merging.size() + added.size();
+	}
+
+	/**
+	 * @return New query over every cell of the cube
+	 */
+	public Query query(){
+		return new Query();
+	}
+
+	private int placeCode(String place){
+		Integer code = placeCodes.get(place);
+		if (code == null){
+			// Adding an event must never fail, so places past the last code share one
+			if (places.size() >= OTHER_PLACE){
+				if (places.size() == OTHER_PLACE){
+					places.add(OTHER_PLACES);
+					placeCodes.put(OTHER_PLACES, OTHER_PLACE);
+				}
+				return OTHER_PLACE;
+			}
+			code = places.size();
+			places.add(place);
+			placeCodes.put(place, code);
+		}
+		return code;
+	}
+
+	private int priorityCode(double priority){
+		Integer code = priorityCodes.get(priority);
+		if (code == null){
+			if (priorities.size() >= OTHER_PRIORITY){
+				if (priorities.size() == OTHER_PRIORITY){
+					priorities.add(OTHER_PRIORITIES);
+					priorityCodes.put(OTHER_PRIORITIES, OTHER_PRIORITY);
+				}
+				return OTHER_PRIORITY;
+			}
+			code = priorities.size();
+			priorities.add(priority);
+			priorityCodes.put(priority, code);
+		}
+		return code;
+	}
+
+	private static long key(int period, int to, int from, int priority){
+		return ((long)period << 32) | ((long)to << (PLACE_BITS + PRIORITY_BITS)) | ((long)from << PRIORITY_BITS) | priority;
+	}
+
+	private static int periodOf(long key){
+		return (int)(key >> 32);
+	}
+
+	private static int toOf(long key){
+		return (int)(key >>> (PLACE_BITS + PRIORITY_BITS)) & ANY_PLACE;
+	}
+
+	private static int fromOf(long key){
+		return (int)(key >>> PRIORITY_BITS) & ANY_PLACE;
+	}
+
+	private static int priorityOf(long key){
+		return (int)key & ANY_PRIORITY;
+	}
+
+	private static synchronized ExecutorService getCompactor(){
+		if (compactor == null){
+			compactor = Executors.newSingleThreadExecutor(new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "rollup-compactor");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return compactor;
+	}
+
+	/**
+	 * Totals of one cell.
+	 */
+	private static class Cell {
+		long parcels;
+		long count;
+		double revenue;
+		double weight;
+		double volume;
+
+		void add(long parcels, long count, double revenue, double weight, double volume){
+			this.parcels += parcels;
+			this.count += count;
+			this.revenue += revenue;
+			this.weight += weight;
+			this.volume += volume;
+		}
+
+		void add(Cell c){
+			add(c.parcels, c.count, c.revenue, c.weight, c.volume);
+		}
+	}
+
+	/**
+	 * Cells sorted by key. Never changed once made, so it can be read without a lock.
+	 */
+	private static class Segment {
+		final long[] keys;
+		final Cell[] cells;
+
+		Segment(long[] keys, Cell[] cells){
+			this.keys = keys;
+			this.cells = cells;
+		}
+
+		/**
+		 * @return New segment with the given cells added to this one's
+		 */
+		Segment merge(HashMap<Long, Cell> extra){
+			long[] extraKeys = new long[extra.size()];
+			int n = 0;
+			for (Long k: extra.keySet()) extraKeys[n++] = k;
+			Arrays.sort(extraKeys);
+
+			long[] mergedKeys = new long[keys.length + extraKeys.length];
+			Cell[] mergedCells = new Cell[mergedKeys.length];
+			int i = 0, j = 0, size = 0;
+			while (i < keys.length || j < extraKeys.length){
+				if (j == extraKeys.length || (i < keys.length && keys[i] < extraKeys[j])){
+					mergedKeys[size] = keys[i];
+					mergedCells[size++] = cells[i++];
+				}
+				else {
+					Cell c = new Cell();
+					if (i < keys.length && keys[i] == extraKeys[j]) c.add(cells[i++]);
+					c.add(extra.get(extraKeys[j]));
+					mergedKeys[size] = extraKeys[j++];
+					mergedCells[size++] = c;
+				}
+			}
+			return new Segment(Arrays.copyOf(mergedKeys, size), Arrays.copyOf(mergedCells, size));
+		}
+
+		/**
+		 * @return Index of the first cell with a key of at least the given one
+		 */
+		int lowerBound(long key){
+			int i = Arrays.binarySearch(keys, key);
+			return i >= 0 ? i : -i - 1;
+		}
+	}
+
+	/**
+	 * One line of the result of a query: the totals of the matching events in a period, <br>
+	 * for each destination, origin and priority the query is broken down by.
+	 */
+	public static class Row {
+		private final int start;
+		private final String to;
+		private final String from;
+		private final double priority;
+		private final Cell cell;
+
+		Row(int start, String to, String from, double priority, Cell cell){
+			this.start = start;
+			this.to = to;
+			this.from = from;
+			this.priority = priority;
+			this.cell = cell;
+		}
+
+		/** @return Days since 1/01/1970 of the first day of the period */
+		public int getStart(){
+			return start;
+		}
+
+		/** @return Destination, or null if the query isn't broken down by it */
+		public String getTo(){
+			return to;
+		}
+
+		/** @return Origin, or null if the query isn't broken down by it */
+		public String getFrom(){
+			return from;
+		}
+
+		/** @return Priority, or NaN if the query isn't broken down by it */
+		public double getPriority(){
+			return priority;
+		}
+
+		public long getCount(){
+			return cell.count;
+		}
+
+		public long getParcelCount(){
+			return cell.parcels;
+		}
+
+		public double getRevenue(){
+			return cell.revenue;
+		}
+
+		public double getWeight(){
+			return cell.weight;
+		}
+
+		public double getVolume(){
+			return cell.volume;
+		}
+
+		public String toString(){
+			return EpochDay.format(start) + (to == null ? "" : " to " + to) + (from == null ? "" : " from " + from)
+					+ (Double.isNaN(priority) ? "" : " priority " + priority) + ": " + cell.count + " events, $" + cell.revenue;
+		}
+	}
+
+	/**
+	 * Query over the cells of the cube. Every condition is optional. Results are <br>
+	 * totalled per period, and per destination, origin and priority only if asked.
+	 */
+	public class Query {
+		private String to;
+		private String from;
+		private double priority = Double.NaN;
+		private int firstPeriod = Integer.MIN_VALUE;
+		private int lastPeriod = Integer.MAX_VALUE;
+		private boolean byTo;
+		private boolean byFrom;
+		private boolean byPriority;
+
+		Query(){}
+
+		/** Only count events to the given place */
+		public Query to(String to){
+			this.to = to;
+			return this;
+		}
+
+		/** Only count events from the given place */
+		public Query from(String from){
+			this.from = from;
+			return this;
+		}
+
+		/** Only count events with the given priority */
+		public Query priority(double priority){
+			this.priority = priority;
+			return this;
+		}
+
+		/**
+		 * Only count events in the periods on or between the two days. The range is <br>
+		 * rounded out to whole periods.
+		 * @param firstDay Days since 1/01/1970
+		 * @param lastDay Days since 1/01/1970
+		 */
+		public Query between(int firstDay, int lastDay){
+			firstPeriod = period.periodOf(Math.min(firstDay, lastDay));
+			lastPeriod = period.periodOf(Math.max(firstDay, lastDay));
+			return this;
+		}
+
+		/**
+		 * Same as above.
+		 * @param date1 Date in format dd/mm/yyyy
+		 * @param date2 Date in format dd/mm/yyyy
+		 */
+		public Query between(String date1, String date2){
+			int d1 = EpochDay.parse(date1);
+			int d2 = EpochDay.parse(date2);
+			if (d1 == EpochDay.INVALID || d2 == EpochDay.INVALID)
+				throw new IllegalArgumentException("Bad date " + date1 + " or " + date2);
+			return between(d1, d2);
+		}
+
+		/** Break the totals down by destination */
+		public Query byTo(){
+			byTo = true;
+			return this;
+		}
+
+		/** Break the totals down by origin */
+		public Query byFrom(){
+			byFrom = true;
+			return this;
+		}
+
+		/** Break the totals down by priority */
+		public Query byPriority(){
+			byPriority = true;
+			return this;
+		}
+
+		/**
+		 * Runs the query.
+		 * @return A row for each period and breakdown with any events, in order of period
+		 */
+		public ArrayList<Row> run(){
+			TreeMap<Long, Cell> totals = new TreeMap<Long, Cell>();
+			int toCode, fromCode, priorityCode;
+			Segment seg;
+			synchronized (RollupCube.this){
+				toCode = to == null ? ANY_PLACE : code(to, placeCodes);
+				fromCode = from == null ? ANY_PLACE : code(from, placeCodes);
+				priorityCode = Double.isNaN(priority) ? ANY_PRIORITY : code(priority, priorityCodes);
+				if (toCode < 0 || fromCode < 0 || priorityCode < 0) return new ArrayList<Row>();
+				seg = segment;
+				collect(merging, toCode, fromCode, priorityCode, totals);
+				collect(added, toCode, fromCode, priorityCode, totals);
+			}
+
+			// The segment never changes, so it is scanned without holding the lock
+			long firstKey = key(firstPeriod, 0, 0, 0);
+			long lastKey = key(lastPeriod, ANY_PLACE, ANY_PLACE, ANY_PRIORITY);
+			for (int i = seg.lowerBound(firstKey); i < seg.keys.length && seg.keys[i] <= lastKey; i++)
+				collect(seg.keys[i], seg.cells[i], toCode, fromCode, priorityCode, totals);
+
+			ArrayList<Row> rows = new ArrayList<Row>(totals.size());
+			synchronized (RollupCube.this){
+				for (Map.Entry<Long, Cell> e: totals.entrySet()){
+					long k = e.getKey();
+					rows.add(new Row(period.startOf(periodOf(k)),
+							toOf(k) == ANY_PLACE ? null : places.get(toOf(k)),
+							fromOf(k) == ANY_PLACE ? null : places.get(fromOf(k)),
+							priorityOf(k) == ANY_PRIORITY ? Double.NaN : priorities.get(priorityOf(k)),
+							e.getValue()));
+				}
+			}
+			return rows;
+		}
+
+		private <K> int code(K value, HashMap<K, Integer> codes){
+			Integer code = codes.get(value);
+			return code == null ? -1 : code;
+		}
+
+		private void collect(HashMap<Long, Cell> cells, int toCode, int fromCode, int priorityCode, TreeMap<Long, Cell> totals){
+			for (Map.Entry<Long, Cell> e: cells.entrySet())
+				collect(e.getKey(), e.getValue(), toCode, fromCode, priorityCode, totals);
+		}
+
+		/**
+		 * Adds a cell to the totals if it matches, under the key of the row it belongs to.
+		 */
+		private void collect(long key, Cell cell, int toCode, int fromCode, int priorityCode, TreeMap<Long, Cell> totals){
+			int p = periodOf(key);
+			if (p < firstPeriod || p > lastPeriod) return;
+			if (toCode != ANY_PLACE && toOf(key) != toCode) return;
+			if (fromCode != ANY_PLACE && fromOf(key) != fromCode) return;
+			if (priorityCode != ANY_PRIORITY && priorityOf(key) != priorityCode) return;
+
+			Long row = key(p, byTo ? toOf(key) : ANY_PLACE, byFrom ? fromOf(key) : ANY_PLACE,
+					byPriority ? priorityOf(key) : ANY_PRIORITY);
+			Cell total = totals.get(row);
+			if (total == null){
+				total = new Cell();
+				totals.put(row, total);
+			}
+			total.add(cell);
+		}
+	}
+}
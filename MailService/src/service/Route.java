@@ -3,6 +3,7 @@ package service;
 public class Route {
 	private String destination;
 	private Depot[] changePoints;
+	private Leg[] legs;
 	
 	
 	
@@ -14,6 +15,20 @@ public class Route {
 	
 	
 	
+	/**
+	 * @param destination Where the route ends
+	 * @param changePoints Every depot on the route, from the origin to the destination
+	 * @param legs Legs between each of the depots
+	 */
+	public Route(String destination, Depot[] changePoints, Leg[] legs) {
+		super();
+		this.destination = destination;
+		this.changePoints = changePoints;
+		this.legs = legs;
+	}
+	
+	
+	
 	public Route(String destination) {
 		super();
 		this.destination = destination;
@@ -33,6 +48,39 @@ public class Route {
 	public void setChangePoints(Depot[] changePoints) {
 		this.changePoints = changePoints;
 	}
+	public Leg[] getLegs() {
+		return legs;
+	}
+	
+	/**
+	 * @return Total length of the legs in km
+	 */
+	public double getDistance() {
+		double total = 0;
+		if (legs != null)
+			for (Leg l: legs) total += l.getDistance();
+		return total;
+	}
+	
+	/**
+	 * @return Total cost per kg of the legs
+	 */
+	public double getCost() {
+		double total = 0;
+		if (legs != null)
+			for (Leg l: legs) total += l.getCost();
+		return total;
+	}
+	
+	/**
+	 * @return Total time of the legs in hours
+	 */
+	public double getDuration() {
+		double total = 0;
+		if (legs != null)
+			for (Leg l: legs) total += l.getDuration();
+		return total;
+	}
 	
 	
 }
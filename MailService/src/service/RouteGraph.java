@@ -0,0 +1,378 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+
+import file.XMLWorker;
+import metrics.Histogram;
+import metrics.Metrics;
+
+/**
+ * Graph of the depots mail passes through and the legs between them. <br>
+ * Routes are found with Dijkstra's algorithm over the legs, using an indexed heap <br>
+ * so a query over hundreds of depots takes well under a millisecond. <br>
+ * The graph can be used from any thread. Changes and route finding hold the <br>
+ * graph's lock, and listeners are only told of a change once it is released, so <br>
+ * a listener may find routes holding a lock of its own.
+ */
+public class RouteGraph {
+
+	/**
+	 * What a route is made as small as possible by.
+	 */
+	public enum Measure {
+		DISTANCE, COST, DURATION
+	}
+
+	/**
+	 * Told whenever a leg is added, changed or removed.
+	 */
+	public interface Listener {
+		/**
+		 * @param old The leg before the change, or null if it was added
+		 * @param updated The leg after the change, or null if it was removed
+		 */
+		void legChanged(Leg old, Leg updated);
+	}
+
+	private static final Histogram FIND = Metrics.histogram("route.find");
+
+	private static RouteGraph defaultGraph;
+
+	private final ArrayList<Listener> listeners = new ArrayList<Listener>();
+
+	private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+	private final ArrayList<Depot> depots = new ArrayList<Depot>();
+	/** Legs leaving each depot, by depot index */
+	private final ArrayList<ArrayList<Leg>> legs = new ArrayList<ArrayList<Leg>>();
+
+	/**
+	 * @return The graph of the legs in routes.xml, loaded the first time it is needed, <br>
+	 * 		   with the costs of its legs in force today
+	 */
+	public static RouteGraph getDefault(){
+		RouteGraph graph;
+		synchronized (RouteGraph.class){
+			if (defaultGraph == null)
+				defaultGraph = XMLWorker.loadRoutes();
+			graph = defaultGraph;
+		}
+		// Cost events may have taken effect since the graph was loaded
+		XMLWorker.updateCosts(graph);
+		return graph;
+	}
+
+	/**
+	 * @param graph Graph to use for pricing from now on
+	 */
+	public static synchronized void setDefault(RouteGraph graph){
+		defaultGraph = graph;
+	}
+
+	/**
+	 * Adds a depot at the given address, if there isn't one already.
+	 *
+	 * @param address Place of the depot, i.e. "Wellington"
+	 * @return The depot at that address
+	 */
+	public synchronized Depot addDepot(String address){
+		Integer i = index.get(address);
+		if (i != null) return depots.get(i);
+
+		Depot d = new Depot(address, null);
+		index.put(address, depots.size());
+		depots.add(d);
+		legs.add(new ArrayList<Leg>());
+		return d;
+	}
+
+	/**
+	 * @param address Place of the depot
+	 * @return The depot, or null if there is no depot there
+	 */
+	public synchronized Depot getDepot(String address){
+		Integer i = index.get(address);
+		return i == null ? null : depots.get(i);
+	}
+
+	/**
+	 * @return Number of depots in the graph
+	 */
+	public synchronized int getDepotCount(){
+		return depots.size();
+	}
+
+	/**
+	 * Adds a leg to the graph. Its depots are added too if they are not already in it.
+	 *
+	 * @param leg Leg to add
+	 */
+	public void addLeg(Leg leg){
+		synchronized (this){
+			addDepot(leg.getFrom().getAddress());
+			addDepot(leg.getTo().getAddress());
+			legs.get(index.get(leg.getFrom().getAddress())).add(leg);
+		}
+		fireLegChanged(null, leg);
+	}
+
+	/**
+	 * Removes a leg from the graph.
+	 *
+	 * @param leg Leg to remove
+	 * @return false if the leg wasn't in the graph
+	 */
+	public boolean removeLeg(Leg leg){
+		synchronized (this){
+			Integer from = index.get(leg.getFrom().getAddress());
+			if (from == null || !legs.get(from).remove(leg)) return false;
+		}
+		fireLegChanged(leg, null);
+		return true;
+	}
+
+	/**
+	 * Replaces a leg with a new one, i.e. when its cost or time changes.
+	 *
+	 * @param old Leg in the graph
+	 * @param updated Leg to put in its place
+	 */
+	public void replaceLeg(Leg old, Leg updated){
+		synchronized (this){
+			Integer from = index.get(old.getFrom().getAddress());
+			if (from != null) legs.get(from).remove(old);
+			addDepot(updated.getFrom().getAddress());
+			addDepot(updated.getTo().getAddress());
+			legs.get(index.get(updated.getFrom().getAddress())).add(updated);
+		}
+		fireLegChanged(old, updated);
+	}
+
+	/**
+	 * @param from Origin
+	 * @param to Destination
+	 * @return Every leg directly between the two depots
+	 */
+	public synchronized ArrayList<Leg> getLegs(String from, String to){
+		ArrayList<Leg> found = new ArrayList<Leg>();
+		Integer i = index.get(from);
+		if (i != null)
+			for (Leg leg: legs.get(i))
+				if (leg.getTo().getAddress().equals(to)) found.add(leg);
+		return found;
+	}
+
+	public synchronized void addListener(Listener l){
+		listeners.add(l);
+	}
+
+	public synchronized void removeListener(Listener l){
+		listeners.remove(l);
+	}
+
+	/**
+	 * Tells the listeners of a change. Not to be called holding the graph's lock.
+	 */
+	private void fireLegChanged(Leg old, Leg updated){
+		ArrayList<Listener> told;
+		synchronized (this){
+			told = new ArrayList<Listener>(listeners);
+		}
+		for (Listener l: told)
+			l.legChanged(old, updated);
+	}
+
+	/**
+	 * @param address Place of a depot
+	 * @return Index of the depot in the graph, or -1 if there is none there
+	 */
+	synchronized int indexOf(String address){
+		Integer i = index.get(address);
+		return i == null ? -1 : i;
+	}
+
+	synchronized Depot getDepot(int i){
+		return depots.get(i);
+	}
+
+	/**
+	 * Finds the shortest route between two places, by any transport.
+	 *
+	 * @param from Origin
+	 * @param to Destination
+	 * @return The route, or null if there is no way to get there
+	 */
+	public Route findRoute(String from, String to){
+		return findRoute(from, to, Measure.DISTANCE, EnumSet.allOf(TransportType.class));
+	}
+
+	/**
+	 * Finds the best route between two places using only the given transport.
+	 *
+	 * @param from Origin
+	 * @param to Destination
+	 * @param measure What to keep as small as possible
+	 * @param allowed Types of transport the route may use
+	 * @return The route, or null if there is no way to get there
+	 */
+	public synchronized Route findRoute(String from, String to, Measure measure, EnumSet<TransportType> allowed){
+		Integer source = index.get(from);
+		Integer target = index.get(to);
+		if (source == null || target == null) return null;
+
+		long start = Metrics.start();
+		Leg[] via = shortestPaths(source, target, measure, allowed);
+		Route r = toRoute(source, target, via);
+		FIND.stop(start);
+		return r;
+	}
+
+	/**
+	 * Builds the route to target from the result of shortestPaths.
+	 * @return The route, or null if target can't be reached
+	 */
+	synchronized Route toRoute(int source, int target, Leg[] via){
+		if (source != target && via[target] == null) return null;
+
+		// Walk back from the destination to build the route
+		ArrayList<Leg> path = new ArrayList<Leg>();
+		for (int at = target; at != source; at = index.get(via[at].getFrom().getAddress()))
+			path.add(0, via[at]);
+
+		Depot[] changePoints = new Depot[path.size() + 1];
+		changePoints[0] = depots.get(source);
+		for (int i = 0; i < path.size(); i++)
+			changePoints[i + 1] = path.get(i).getTo();
+		return new Route(depots.get(target).getAddress(), changePoints, path.toArray(new Leg[path.size()]));
+	}
+
+	/**
+	 * Length of the shortest route between two places.
+	 *
+	 * @param from Origin
+	 * @param to Destination
+	 * @return Distance in km, or -1 if there is no way to get there
+	 */
+	public double distance(String from, String to){
+		Route r = findRoute(from, to);
+		return r == null ? -1 : r.getDistance();
+	}
+
+	/**
+	 * Runs Dijkstra's algorithm from source, stopping once target is reached (or at <br>
+	 * the end if target is -1).
+	 *
+	 * @return The leg used to reach each depot on the best route to it
+	 */
+	synchronized Leg[] shortestPaths(int source, int target, Measure measure, EnumSet<TransportType> allowed){
+		double[] dist = new double[depots.size()];
+		return shortestPaths(source, target, measure, allowed, dist);
+	}
+
+	/**
+	 * Same as above, also filling in dist with the measure of the best route to each <br>
+	 * depot (infinity if it can't be reached).
+	 */
+	synchronized Leg[] shortestPaths(int source, int target, Measure measure, EnumSet<TransportType> allowed, double[] dist){
+		int n = depots.size();
+		Arrays.fill(dist, Double.POSITIVE_INFINITY);
+		Leg[] via = new Leg[n];
+		Heap heap = new Heap(n);
+
+		dist[source] = 0;
+		heap.push(source, 0);
+		while (!heap.isEmpty()){
+			int at = heap.pop();
+			if (at == target) break;
+			for (Leg leg: legs.get(at)){
+				if (!allowed.contains(leg.getType())) continue;
+				int next = index.get(leg.getTo().getAddress());
+				double d = dist[at] + weight(leg, measure);
+				if (d < dist[next]){
+					dist[next] = d;
+					via[next] = leg;
+					heap.push(next, d);
+				}
+			}
+		}
+		return via;
+	}
+
+	static double weight(Leg leg, Measure measure){
+		if (measure == Measure.COST) return leg.getCost();
+		if (measure == Measure.DURATION) return leg.getDuration();
+		return leg.getDistance();
+	}
+
+	/**
+	 * Binary min heap of depot indexes keyed by distance, which can lower the key of <br>
+	 * a depot already in it.
+	 */
+	private static class Heap {
+		private final int[] heap;
+		private final int[] pos;
+		private final double[] key;
+		private int size;
+
+		Heap(int n){
+			heap = new int[n];
+			pos = new int[n];
+			key = new double[n];
+			Arrays.fill(pos, -1);
+		}
+
+		boolean isEmpty(){
+			return size == 0;
+		}
+
+		void push(int node, double k){
+			key[node] = k;
+			if (pos[node] < 0){
+				pos[node] = size;
+				heap[size++] = node;
+			}
+			up(pos[node]);
+		}
+
+		int pop(){
+			int top = heap[0];
+			pos[top] = -1;
+			if (--size > 0){
+				heap[0] = heap[size];
+				pos[heap[0]] = 0;
+				down(0);
+			}
+			return top;
+		}
+
+		private void up(int i){
+			while (i > 0){
+				int parent = (i - 1) / 2;
+				if (key[heap[parent]] <= key[heap[i]]) break;
+				swap(i, parent);
+				i = parent;
+			}
+		}
+
+		private void down(int i){
+			while (true){
+				int l = 2 * i + 1, r = l + 1, min = i;
+				if (l < size && key[heap[l]] < key[heap[min]]) min = l;
+				if (r < size && key[heap[r]] < key[heap[min]]) min = r;
+				if (min == i) return;
+				swap(i, min);
+				i = min;
+			}
+		}
+
+		private void swap(int a, int b){
+			int t = heap[a];
+			heap[a] = heap[b];
+			heap[b] = t;
+			pos[heap[a]] = a;
+			pos[heap[b]] = b;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package service;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.Metrics;
+
+/**
+ * Cache of the best route between every pair of depots for each class of service, <br>
+ * built from a RouteGraph. <br>
+ * For each origin and class the whole shortest path tree is worked out at once, so <br>
+ * after the first quote from an origin every other quote from it is a lookup. <br>
+ * When a leg changes only the trees it could affect are thrown away: those whose <br>
+ * route to the end of the leg used the old leg, and those the new leg gives a <br>
+ * better route to it.
+ */
+public class RouteTable implements RouteGraph.Listener {
+
+	/**
+	 * Class of service a route is found for.
+	 */
+	public enum PriorityClass {
+		/** Shortest route by any transport. Used for pricing by distance */
+		SHORTEST(RouteGraph.Measure.DISTANCE, EnumSet.allOf(TransportType.class)),
+		/** Fastest route, flying where possible */
+		AIR(RouteGraph.Measure.DURATION, EnumSet.allOf(TransportType.class)),
+		/** Cheapest route by sea and land only */
+		SURFACE(RouteGraph.Measure.COST, EnumSet.of(TransportType.SEA, TransportType.LAND));
+
+		final RouteGraph.Measure measure;
+		final EnumSet<TransportType> allowed;
+
+		PriorityClass(RouteGraph.Measure measure, EnumSet<TransportType> allowed){
+			this.measure = measure;
+			this.allowed = allowed;
+		}
+
+		/**
+		 * @param mailType Type of mail as shown on the clerk's form, i.e. "International Air"
+		 * @return The class of service for it
+		 */
+		public static PriorityClass forMailType(String mailType){
+			return mailType != null && mailType.contains("Air") ? AIR : SURFACE;
+		}
+	}
+
+	private static final Histogram ROUTE = Metrics.histogram("route");
+	private static final Counter RECOMPUTED = Metrics.counter("route.recompute");
+
+	private static RouteTable defaultTable;
+
+	private final RouteGraph graph;
+	private final HashMap<Key, Tree> trees = new HashMap<Key, Tree>();
+	private int recomputed;
+	private int version;
+
+	/**
+	 * @param graph Graph to find routes in. The table keeps itself up to date as <br>
+	 * 		  legs of the graph change
+	 */
+	public RouteTable(RouteGraph graph){
+		this.graph = graph;
+		graph.addListener(this);
+	}
+
+	/**
+	 * @return Table over RouteGraph.getDefault()
+	 */
+	public static synchronized RouteTable getDefault(){
+		if (defaultTable == null || defaultTable.graph != RouteGraph.getDefault())
+			defaultTable = new RouteTable(RouteGraph.getDefault());
+		return defaultTable;
+	}
+
+	/**
+	 * Works out the route between every pair of depots for every class up front.
+	 */
+	public synchronized void precompute(){
+		for (int i = 0; i < graph.getDepotCount(); i++)
+			for (PriorityClass c: PriorityClass.values())
+				tree(graph.getDepot(i).getAddress(), c);
+	}
+
+	/**
+	 * @param from Origin
+	 * @param to Destination
+	 * @param priority Class of service
+	 * @return The best route, or null if there is no way to get there
+	 */
+	public synchronized Route getRoute(String from, String to, PriorityClass priority){
+		long start = Metrics.start();
+		Tree tree = tree(from, priority);
+		Route r = null;
+		if (tree != null){
+			r = tree.routes.get(to);
+			if (r == null && !tree.routes.containsKey(to)){
+				int target = graph.indexOf(to);
+				r = target < 0 || target >= tree.via.length ? null : graph.toRoute(tree.source, target, tree.via);
+				tree.routes.put(to, r);
+			}
+		}
+		ROUTE.stop(start);
+		return r;
+	}
+
+	/**
+	 * @return Distance in km of the best route, or -1 if there is no way to get there
+	 */
+	public double distance(String from, String to, PriorityClass priority){
+		Route r = getRoute(from, to, priority);
+		return r == null ? -1 : r.getDistance();
+	}
+
+	/**
+	 * @return Number of shortest path trees worked out so far. Useful for checking <br>
+	 * 		   how much a change to the graph threw away
+	 */
+	public synchronized int getRecomputeCount(){
+		return recomputed;
+	}
+
+	/**
+	 * @return Number of times a leg of the graph has changed since the table was <br>
+	 * 		   made, so anything worked out from its routes can tell when to redo it
+	 */
+	public synchronized int getVersion(){
+		return version;
+	}
+
+	private Tree tree(String from, PriorityClass priority){
+		Key key = new Key(from, priority);
+		Tree tree = trees.get(key);
+		if (tree == null){
+			// Held so no depot is added between sizing the tree and filling it in
+			synchronized (graph){
+				int source = graph.indexOf(from);
+				if (source < 0) return null;
+				tree = new Tree(source, graph.getDepotCount());
+				tree.via = graph.shortestPaths(source, -1, priority.measure, priority.allowed, tree.dist);
+			}
+			trees.put(key, tree);
+			recomputed++;
+			RECOMPUTED.inc();
+		}
+		return tree;
+	}
+
+	public synchronized void legChanged(Leg old, Leg updated){
+		version++;
+		Iterator<Map.Entry<Key, Tree>> it = trees.entrySet().iterator();
+		while (it.hasNext()){
+			Map.Entry<Key, Tree> e = it.next();
+			if (wasUsed(e.getValue(), old) || improves(e.getValue(), e.getKey().priority, updated))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Whether the tree's route to the end of the old leg went along it, so routes <br>
+	 * through it may now be worse.
+	 */
+	private boolean wasUsed(Tree tree, Leg old){
+		if (old == null) return false;
+		int v = graph.indexOf(old.getTo().getAddress());
+		return v < tree.via.length && tree.via[v] == old;
+	}
+
+	/**
+	 * Whether the new leg gives a better route to its end, and so to everything after it.
+	 */
+	private boolean improves(Tree tree, PriorityClass priority, Leg updated){
+		if (updated == null || !priority.allowed.contains(updated.getType())) return false;
+		int u = graph.indexOf(updated.getFrom().getAddress());
+		int v = graph.indexOf(updated.getTo().getAddress());
+		// Depots added since the tree was made
+		if (u >= tree.dist.length || v >= tree.dist.length) return true;
+		return tree.dist[u] + RouteGraph.weight(updated, priority.measure) < tree.dist[v];
+	}
+
+	/**
+	 * Shortest path tree from one origin, and the routes built from it so far.
+	 */
+	private static class Tree {
+		final int source;
+		final double[] dist;
+		Leg[] via;
+		final HashMap<String, Route> routes = new HashMap<String, Route>();
+
+		Tree(int source, int depots){
+			this.source = source;
+			this.dist = new double[depots];
+		}
+	}
+
+	private static class Key {
+		final String origin;
+		final PriorityClass priority;
+
+		Key(String origin, PriorityClass priority){
+			this.origin = origin;
+			this.priority = priority;
+		}
+
+		public boolean equals(Object o){
+			if (!(o instanceof Key)) return false;
+			Key k = (Key)o;
+			return origin.equals(k.origin) && priority == k.priority;
+		}
+
+		public int hashCode(){
+			return origin.hashCode() * 31 + priority.hashCode();
+		}
+	}
+}
@@ -0,0 +1,8 @@
+package service;
+
+/**
+ * Ways mail can be carried along a leg of a route.
+ */
+public enum TransportType {
+	AIR, SEA, LAND
+}